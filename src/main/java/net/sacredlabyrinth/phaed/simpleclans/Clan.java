@@ -1,5 +1,7 @@
 package net.sacredlabyrinth.phaed.simpleclans;
 
+import net.sacredlabyrinth.phaed.simpleclans.managers.SettingsManager;
+import net.sacredlabyrinth.phaed.simpleclans.managers.StorageManager;
 import net.sacredlabyrinth.phaed.simpleclans.uuid.UUIDMigration;
 import net.sacredlabyrinth.phaed.simpleclans.events.*;
 import org.bukkit.ChatColor;
@@ -11,6 +13,9 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.sql.Timestamp;
 import java.text.MessageFormat;
@@ -34,7 +39,22 @@ public class Clan implements Serializable, Comparable<Clan> {
     private List<String> allies = new ArrayList<>();
     private List<String> rivals = new ArrayList<>();
     private List<String> bb = new ArrayList<>();
-    private List<String> members = new ArrayList<>();
+    private Map<UUID, ClanPlayer> members = new LinkedHashMap<>();
+    // used instead of members on servers that have not migrated to uuids, keyed by lowercase name
+    private Map<String, ClanPlayer> memberNames = new LinkedHashMap<>();
+    // built on first use, dropped whenever a member joins, leaves or changes rank
+    private transient List<ClanPlayer> membersView;
+    private transient List<ClanPlayer> leadersView;
+    private transient List<ClanPlayer> nonLeadersView;
+    private transient List<ClanPlayer> sortedMembersView;
+    // members with a player online, kept up to date by the join and quit events
+    private transient Set<ClanPlayer> onlineMembers = Collections.newSetFromMap(new IdentityHashMap<ClanPlayer, Boolean>());
+    private transient List<ClanPlayer> onlineMembersView;
+    // sums over the members, kept up to date as their counts change
+    private transient int totalRival;
+    private transient int totalNeutral;
+    private transient int totalCivilian;
+    private transient int totalDeaths;
     private HashMap<String, Clan> warringClans = new HashMap<>();
     private int homeX = 0;
     private int homeY = 0;
@@ -42,6 +62,7 @@ public class Clan implements Serializable, Comparable<Clan> {
     private String homeWorld = "";
     private boolean allowWithdraw = false;
     private boolean allowDeposit = true;
+    private final EnumSet<Column> changedColumns = EnumSet.noneOf(Column.class);
 
     /**
      *
@@ -151,6 +172,7 @@ public class Clan implements Serializable, Comparable<Clan> {
      */
     public void setName(String name) {
         this.name = name;
+        markChanged(Column.NAME);
     }
 
     /**
@@ -169,6 +191,7 @@ public class Clan implements Serializable, Comparable<Clan> {
      */
     public void setBalance(double balance) {
         this.balance = balance;
+        markChanged(Column.BALANCE);
     }
 
     /**
@@ -222,6 +245,7 @@ public class Clan implements Serializable, Comparable<Clan> {
      */
     public void setLastUsed(long lastUsed) {
         this.lastUsed = lastUsed;
+        markChanged(Column.LAST_USED);
     }
 
     /**
@@ -240,6 +264,7 @@ public class Clan implements Serializable, Comparable<Clan> {
      */
     public void setFriendlyFire(boolean friendlyFire) {
         this.friendlyFire = friendlyFire;
+        markChanged(Column.FRIENDLY_FIRE);
     }
 
     /**
@@ -250,9 +275,9 @@ public class Clan implements Serializable, Comparable<Clan> {
      */
     public boolean isMember(Player player) {
         if (SimpleClans.getInstance().hasUUID()) {
-            return this.members.contains(player.getUniqueId().toString());
+            return this.members.containsKey(player.getUniqueId());
         } else {
-            return this.members.contains(player.getName().toLowerCase());
+            return this.memberNames.containsKey(player.getName().toLowerCase());
         }
     }
 
@@ -267,12 +292,12 @@ public class Clan implements Serializable, Comparable<Clan> {
         if (SimpleClans.getInstance().hasUUID()) {
             UUID PlayerUniqueId = UUIDMigration.getForcedPlayerUUID(playerName);
             if (PlayerUniqueId != null) {
-                return this.members.contains(PlayerUniqueId.toString());
+                return this.members.containsKey(PlayerUniqueId);
             } else {
                 return false;
             }
         } else {
-            return this.members.contains(playerName.toLowerCase());
+            return this.memberNames.containsKey(playerName.toLowerCase());
         }
     }
 
@@ -283,7 +308,7 @@ public class Clan implements Serializable, Comparable<Clan> {
      * @return confirmation
      */
     public boolean isMember(UUID playerUniqueId) {
-        return this.members.contains(playerUniqueId.toString());
+        return this.members.containsKey(playerUniqueId);
     }
 
 
@@ -343,6 +368,7 @@ public class Clan implements Serializable, Comparable<Clan> {
      */
     public void setFounded(long founded) {
         this.founded = founded;
+        markChanged(Column.FOUNDED);
     }
 
     /**
@@ -361,6 +387,7 @@ public class Clan implements Serializable, Comparable<Clan> {
      */
     public void setColorTag(String colorTag) {
         this.colorTag = Helper.parseColors(colorTag);
+        markChanged(Column.COLOR_TAG);
     }
 
     /**
@@ -374,7 +401,7 @@ public class Clan implements Serializable, Comparable<Clan> {
         }
 
         bb.add(msg);
-        SimpleClans.getInstance().getStorageManager().updateClan(this);
+        SimpleClans.getInstance().getStorageManager().insertBb(this, msg);
     }
 
     /**
@@ -382,7 +409,7 @@ public class Clan implements Serializable, Comparable<Clan> {
      */
     public void clearBb() {
         bb.clear();
-        SimpleClans.getInstance().getStorageManager().updateClan(this);
+        SimpleClans.getInstance().getStorageManager().clearBb(this);
     }
 
     /**
@@ -391,19 +418,28 @@ public class Clan implements Serializable, Comparable<Clan> {
      * @param cp
      */
     public void importMember(ClanPlayer cp) {
-        String NameOrUUID;
+        ClanPlayer old;
+
+        // a player read again from the database replaces the copy held before
         if (SimpleClans.getInstance().hasUUID()) {
-            if (cp.getUniqueId() != null) {
-                NameOrUUID = cp.getUniqueId().toString();
-            } else {
+            if (cp.getUniqueId() == null) {
                 return;
             }
+            old = this.members.put(cp.getUniqueId(), cp);
         } else {
-            NameOrUUID = cp.getCleanName();
+            old = this.memberNames.put(cp.getCleanName(), cp);
         }
-        if (!this.members.contains(NameOrUUID)) {
-            this.members.add(NameOrUUID);
+
+        if (old != null) {
+            countMember(old, -1);
+            onlineMembers.remove(old);
         }
+        countMember(cp, 1);
+
+        if (cp.toPlayer() != null) {
+            onlineMembers.add(cp);
+        }
+        invalidateMembers();
     }
 
     /**
@@ -416,10 +452,10 @@ public class Clan implements Serializable, Comparable<Clan> {
         if (SimpleClans.getInstance().hasUUID()) {
             UUID PlayerUniqueId = UUIDMigration.getForcedPlayerUUID(playerName);
             if (PlayerUniqueId != null) {
-                this.members.remove(PlayerUniqueId.toString());
+                removeMember(PlayerUniqueId);
             }
         } else {
-            this.members.remove(playerName.toLowerCase());
+            forgetMember(this.memberNames.remove(playerName.toLowerCase()));
         }
     }
 
@@ -429,7 +465,56 @@ public class Clan implements Serializable, Comparable<Clan> {
      * @param playerUniqueId
      */
     public void removeMember(UUID playerUniqueId) {
-        this.members.remove(playerUniqueId.toString());
+        forgetMember(this.members.remove(playerUniqueId));
+    }
+
+    private void forgetMember(ClanPlayer cp) {
+        if (cp != null) {
+            countMember(cp, -1);
+            onlineMembers.remove(cp);
+            invalidateMembers();
+        }
+    }
+
+    /**
+     * (used internally) records a member logging in or out
+     *
+     * @param cp
+     * @param online
+     */
+    public void setMemberOnline(ClanPlayer cp, boolean online) {
+        // a copy that is not the one held as member is not tracked
+        if (getMember(cp) != cp) {
+            return;
+        }
+
+        boolean changed = online ? onlineMembers.add(cp) : onlineMembers.remove(cp);
+
+        if (changed) {
+            onlineMembersView = null;
+        }
+    }
+
+    /**
+     * (used internally) drops the member lists, called when a member changes rank
+     */
+    public void invalidateMembers() {
+        membersView = null;
+        leadersView = null;
+        nonLeadersView = null;
+        sortedMembersView = null;
+        onlineMembersView = null;
+    }
+
+    private ClanPlayer getMember(ClanPlayer cp) {
+        if (SimpleClans.getInstance().hasUUID()) {
+            return cp.getUniqueId() == null ? null : members.get(cp.getUniqueId());
+        }
+        return memberNames.get(cp.getCleanName());
+    }
+
+    private Collection<ClanPlayer> memberPlayers() {
+        return SimpleClans.getInstance().hasUUID() ? members.values() : memberNames.values();
     }
 
     /**
@@ -438,7 +523,7 @@ public class Clan implements Serializable, Comparable<Clan> {
      * @return
      */
     public int getSize() {
-        return this.members.size();
+        return memberPlayers().size();
     }
 
     /**
@@ -501,6 +586,7 @@ public class Clan implements Serializable, Comparable<Clan> {
      */
     public void setVerified(boolean verified) {
         this.verified = verified;
+        markChanged(Column.VERIFIED);
     }
 
     /**
@@ -519,6 +605,7 @@ public class Clan implements Serializable, Comparable<Clan> {
      */
     public void setCapeUrl(String capeUrl) {
         this.capeUrl = capeUrl;
+        markChanged(Column.CAPE_URL);
     }
 
     /**
@@ -575,6 +662,37 @@ public class Clan implements Serializable, Comparable<Clan> {
         this.rivals = Helper.fromArray(packedRivals.split("[|]"));
     }
 
+    /**
+     * (used internally)
+     *
+     * @param tag
+     */
+    public void importAlly(String tag) {
+        if (!allies.contains(tag)) {
+            allies.add(tag);
+        }
+    }
+
+    /**
+     * (used internally)
+     *
+     * @param tag
+     */
+    public void importRival(String tag) {
+        if (!rivals.contains(tag)) {
+            rivals.add(tag);
+        }
+    }
+
+    /**
+     * (used internally)
+     *
+     * @param msg
+     */
+    public void importBb(String msg) {
+        bb.add(msg);
+    }
+
     /**
      * Returns a separator delimited string with all the ally clan's colored
      * tags
@@ -644,17 +762,7 @@ public class Clan implements Serializable, Comparable<Clan> {
     public String getLeadersString(String prefix, String sep) {
         String out = "";
 
-        for (String member : members) {
-            ClanPlayer cp;
-            if (SimpleClans.getInstance().hasUUID()) {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(UUID.fromString(member));
-            } else {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            }
-            if (cp == null) {
-                continue;
-            }
-
+        for (ClanPlayer cp : getMembers()) {
             if (cp.isLeader()) {
                 out += prefix + cp.getName() + sep;
             }
@@ -717,134 +825,85 @@ public class Clan implements Serializable, Comparable<Clan> {
     /**
      * Get all members (leaders, and non-leaders) in the clan
      *
-     * @return the members
+     * @return the members, unmodifiable
      */
     public List<ClanPlayer> getMembers() {
-        List<ClanPlayer> out = new ArrayList<>();
-
-        for (String member : members) {
-            ClanPlayer cp;
-            if (SimpleClans.getInstance().hasUUID()) {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(UUID.fromString(member));
-            } else {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            }
-            if (cp == null) {
-                continue;
-            }
-            out.add(cp);
+        if (membersView == null) {
+            membersView = Collections.unmodifiableList(new ArrayList<>(memberPlayers()));
         }
 
-        return out;
+        return membersView;
     }
 
     /**
      * Get all online members (leaders, and non-leaders) in the clan
      *
-     * @return the members
+     * @return the members, unmodifiable
      */
     public List<ClanPlayer> getOnlineMembers() {
-        List<ClanPlayer> out = new ArrayList<>();
-
-        for (String member : members) {
-            ClanPlayer cp;
-            if (SimpleClans.getInstance().hasUUID()) {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(UUID.fromString(member));
-            } else {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            }
-            if (cp == null) {
-                continue;
-            }
-            if (cp.toPlayer() != null && cp.toPlayer().isOnline()) {
-                out.add(cp);
-            }
+        if (onlineMembersView == null) {
+            onlineMembersView = Collections.unmodifiableList(new ArrayList<>(onlineMembers));
         }
 
-        return out;
+        return onlineMembersView;
     }
 
     /**
      * Get all leaders in the clan
      *
-     * @return the leaders
+     * @return the leaders, unmodifiable
      */
     public List<ClanPlayer> getLeaders() {
-        List<ClanPlayer> out = new ArrayList<>();
+        if (leadersView == null) {
+            List<ClanPlayer> out = new ArrayList<>();
 
-        for (String member : members) {
-            ClanPlayer cp;
-            if (SimpleClans.getInstance().hasUUID()) {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(UUID.fromString(member));
-            } else {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            }
-            if (cp == null) {
-                continue;
+            for (ClanPlayer cp : memberPlayers()) {
+                if (cp.isLeader()) {
+                    out.add(cp);
+                }
             }
 
-            if (cp.isLeader()) {
-                out.add(cp);
-            }
+            leadersView = Collections.unmodifiableList(out);
         }
 
-        return out;
+        return leadersView;
     }
 
     /**
      * Get all non-leader players in the clan
      *
-     * @return non leaders
+     * @return non leaders, sorted and unmodifiable
      */
     public List<ClanPlayer> getNonLeaders() {
-        List<ClanPlayer> out = new ArrayList<>();
+        if (nonLeadersView == null) {
+            List<ClanPlayer> out = new ArrayList<>();
 
-        for (String member : members) {
-            ClanPlayer cp;
-            if (SimpleClans.getInstance().hasUUID()) {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(UUID.fromString(member));
-            } else {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            }
-            if (cp == null) {
-                continue;
+            for (ClanPlayer cp : memberPlayers()) {
+                if (!cp.isLeader()) {
+                    out.add(cp);
+                }
             }
 
-            if (!cp.isLeader()) {
-                out.add(cp);
-            }
+            Collections.sort(out);
+            nonLeadersView = Collections.unmodifiableList(out);
         }
 
-        Collections.sort(out);
-
-        return out;
+        return nonLeadersView;
     }
 
     /**
      * Get all clan's members
      *
-     * @return
+     * @return the members, sorted and unmodifiable
      */
     public List<ClanPlayer> getAllMembers() {
-        List<ClanPlayer> out = new ArrayList<>();
-
-        for (String member : members) {
-            ClanPlayer cp;
-            if (SimpleClans.getInstance().hasUUID()) {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(UUID.fromString(member));
-            } else {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            }
-            if (cp == null) {
-                continue;
-            }
-
-            out.add(cp);
+        if (sortedMembersView == null) {
+            List<ClanPlayer> out = new ArrayList<>(memberPlayers());
+            Collections.sort(out);
+            sortedMembersView = Collections.unmodifiableList(out);
         }
 
-        Collections.sort(out);
-
-        return out;
+        return sortedMembersView;
     }
 
     /**
@@ -867,38 +926,22 @@ public class Clan implements Serializable, Comparable<Clan> {
     }
 
     /**
-     * Gets the clan's total KDR
+     * Get the online members of all the ally clans
      *
      * @return
      */
-    public float getTotalKDR() {
-        if (members.isEmpty()) {
-            return 0;
-        }
+    public Set<ClanPlayer> getAllAllyOnlineMembers() {
+        Set<ClanPlayer> out = new HashSet<>();
 
-        double totalWeightedKills = 0;
-        int totalDeaths = 0;
+        for (String tag : allies) {
+            Clan ally = SimpleClans.getInstance().getClanManager().getClan(tag);
 
-        for (String member : members) {
-            ClanPlayer cp;
-            if (SimpleClans.getInstance().hasUUID()) {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(UUID.fromString(member));
-            } else {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            }
-            if (cp == null) {
-                continue;
+            if (ally != null) {
+                out.addAll(ally.getOnlineMembers());
             }
-
-            totalWeightedKills += cp.getWeightedKills();
-            totalDeaths += cp.getDeaths();
         }
 
-        if (totalDeaths == 0) {
-            totalDeaths = 1;
-        }
-
-        return ((float) totalWeightedKills) / ((float) totalDeaths);
+        return out;
     }
 
     /**
@@ -906,27 +949,22 @@ public class Clan implements Serializable, Comparable<Clan> {
      *
      * @return
      */
-    public int getTotalDeaths() {
-        int totalDeaths = 0;
-
-        if (members.isEmpty()) {
-            return totalDeaths;
+    public float getTotalKDR() {
+        if (getSize() == 0) {
+            return 0;
         }
 
-        for (String member : members) {
-            ClanPlayer cp;
-            if (SimpleClans.getInstance().hasUUID()) {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(UUID.fromString(member));
-            } else {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            }
-            if (cp == null) {
-                continue;
-            }
+        int deaths = totalDeaths == 0 ? 1 : totalDeaths;
 
-            totalDeaths += cp.getDeaths();
-        }
+        return ((float) getTotalWeightedKills()) / ((float) deaths);
+    }
 
+    /**
+     * Gets the clan's total KDR
+     *
+     * @return
+     */
+    public int getTotalDeaths() {
         return totalDeaths;
     }
 
@@ -936,27 +974,11 @@ public class Clan implements Serializable, Comparable<Clan> {
      * @return
      */
     public int getAverageWK() {
-        int total = 0;
-
-        if (members.isEmpty()) {
-            return total;
-        }
-
-        for (String member : members) {
-            ClanPlayer cp;
-            if (SimpleClans.getInstance().hasUUID()) {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(UUID.fromString(member));
-            } else {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            }
-            if (cp == null) {
-                continue;
-            }
-
-            total += cp.getWeightedKills();
+        if (getSize() == 0) {
+            return 0;
         }
 
-        return total / getSize();
+        return (int) getTotalWeightedKills() / getSize();
     }
 
     /**
@@ -965,27 +987,7 @@ public class Clan implements Serializable, Comparable<Clan> {
      * @return
      */
     public int getTotalRival() {
-        int total = 0;
-
-        if (members.isEmpty()) {
-            return total;
-        }
-
-        for (String member : members) {
-            ClanPlayer cp;
-            if (SimpleClans.getInstance().hasUUID()) {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(UUID.fromString(member));
-            } else {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            }
-            if (cp == null) {
-                continue;
-            }
-
-            total += cp.getRivalKills();
-        }
-
-        return total;
+        return totalRival;
     }
 
     /**
@@ -994,27 +996,7 @@ public class Clan implements Serializable, Comparable<Clan> {
      * @return
      */
     public int getTotalNeutral() {
-        int total = 0;
-
-        if (members.isEmpty()) {
-            return total;
-        }
-
-        for (String member : members) {
-            ClanPlayer cp;
-            if (SimpleClans.getInstance().hasUUID()) {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(UUID.fromString(member));
-            } else {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            }
-            if (cp == null) {
-                continue;
-            }
-
-            total += cp.getNeutralKills();
-        }
-
-        return total;
+        return totalNeutral;
     }
 
     /**
@@ -1023,27 +1005,46 @@ public class Clan implements Serializable, Comparable<Clan> {
      * @return
      */
     public int getTotalCivilian() {
-        int total = 0;
+        return totalCivilian;
+    }
+
+    /**
+     * The weights are applied to the totals, so a reload that changes them is seen at once
+     *
+     * @return the weighted kills of all members
+     */
+    private double getTotalWeightedKills() {
+        SettingsManager settings = SimpleClans.getInstance().getSettingsManager();
+        return ((double) totalRival * settings.getKwRival()) + ((double) totalNeutral * settings.getKwNeutral()) + ((double) totalCivilian * settings.getKwCivilian());
+    }
 
-        if (members.isEmpty()) {
-            return total;
+    /**
+     * (used internally) keeps the kill and death totals up to date when a member's counts change
+     *
+     * @param cp
+     * @param rival    change in rival kills
+     * @param neutral  change in neutral kills
+     * @param civilian change in civilian kills
+     * @param deaths   change in deaths
+     */
+    public void memberStatsChanged(ClanPlayer cp, int rival, int neutral, int civilian, int deaths) {
+        // a copy that is not the one held as member is not counted
+        if (getMember(cp) != cp) {
+            return;
         }
 
-        for (String member : members) {
-            ClanPlayer cp;
-            if (SimpleClans.getInstance().hasUUID()) {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(UUID.fromString(member));
-            } else {
-                cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            }
-            if (cp == null) {
-                continue;
-            }
+        addStats(rival, neutral, civilian, deaths);
+    }
 
-            total += cp.getCivilianKills();
-        }
+    private void addStats(int rival, int neutral, int civilian, int deaths) {
+        totalRival += rival;
+        totalNeutral += neutral;
+        totalCivilian += civilian;
+        totalDeaths += deaths;
+    }
 
-        return total;
+    private void countMember(ClanPlayer cp, int sign) {
+        addStats(sign * cp.getRivalKills(), sign * cp.getNeutralKills(), sign * cp.getCivilianKills(), sign * cp.getDeaths());
     }
 
     /**
@@ -1056,10 +1057,12 @@ public class Clan implements Serializable, Comparable<Clan> {
 
         SimpleClans.getInstance().getStorageManager().updateClan(this);
 
-        for (String member : members) {
-            if (SimpleClans.getInstance().hasUUID()) {
-                SimpleClans.getInstance().getSpoutPluginManager().processPlayer(UUID.fromString(member));
-            } else {
+        if (SimpleClans.getInstance().hasUUID()) {
+            for (UUID member : members.keySet()) {
+                SimpleClans.getInstance().getSpoutPluginManager().processPlayer(member);
+            }
+        } else {
+            for (String member : memberNames.keySet()) {
                 SimpleClans.getInstance().getSpoutPluginManager().processPlayer(member);
             }
         }
@@ -1093,8 +1096,7 @@ public class Clan implements Serializable, Comparable<Clan> {
 
         importMember(cp);
 
-        SimpleClans.getInstance().getStorageManager().updateClanPlayer(cp);
-        SimpleClans.getInstance().getStorageManager().updateClan(this);
+        SimpleClans.getInstance().getStorageManager().beginWork().updateClanPlayer(cp).updateClan(this).commit();
         if (SimpleClans.getInstance().hasUUID()) {
             SimpleClans.getInstance().getSpoutPluginManager().processPlayer(cp.getUniqueId());
         } else {
@@ -1139,8 +1141,7 @@ public class Clan implements Serializable, Comparable<Clan> {
         cp.setJoinDate(0);
         removeMember(playerName);
 
-        SimpleClans.getInstance().getStorageManager().updateClanPlayer(cp);
-        SimpleClans.getInstance().getStorageManager().updateClan(this);
+        SimpleClans.getInstance().getStorageManager().beginWork().updateClanPlayer(cp).updateClan(this).commit();
         if (SimpleClans.getInstance().hasUUID()) {
             SimpleClans.getInstance().getSpoutPluginManager().processPlayer(cp.getUniqueId());
         } else {
@@ -1176,8 +1177,7 @@ public class Clan implements Serializable, Comparable<Clan> {
         cp.setJoinDate(0);
         removeMember(playerUniqueId);
 
-        SimpleClans.getInstance().getStorageManager().updateClanPlayer(cp);
-        SimpleClans.getInstance().getStorageManager().updateClan(this);
+        SimpleClans.getInstance().getStorageManager().beginWork().updateClanPlayer(cp).updateClan(this).commit();
         SimpleClans.getInstance().getSpoutPluginManager().processPlayer(cp.getUniqueId());
 
         Player matched = SimpleClans.getInstance().getServer().getPlayer(playerUniqueId);
@@ -1201,8 +1201,7 @@ public class Clan implements Serializable, Comparable<Clan> {
         cp.setLeader(true);
         cp.setTrusted(true);
 
-        SimpleClans.getInstance().getStorageManager().updateClanPlayer(cp);
-        SimpleClans.getInstance().getStorageManager().updateClan(this);
+        SimpleClans.getInstance().getStorageManager().beginWork().updateClanPlayer(cp).updateClan(this).commit();
         if (SimpleClans.getInstance().hasUUID()) {
             SimpleClans.getInstance().getSpoutPluginManager().processPlayer(cp.getUniqueId());
         } else {
@@ -1225,8 +1224,7 @@ public class Clan implements Serializable, Comparable<Clan> {
         cp.setLeader(true);
         cp.setTrusted(true);
 
-        SimpleClans.getInstance().getStorageManager().updateClanPlayer(cp);
-        SimpleClans.getInstance().getStorageManager().updateClan(this);
+        SimpleClans.getInstance().getStorageManager().beginWork().updateClanPlayer(cp).updateClan(this).commit();
         SimpleClans.getInstance().getSpoutPluginManager().processPlayer(cp.getUniqueId());
 
         // add clan permission
@@ -1245,8 +1243,7 @@ public class Clan implements Serializable, Comparable<Clan> {
 
         cp.setLeader(false);
 
-        SimpleClans.getInstance().getStorageManager().updateClanPlayer(cp);
-        SimpleClans.getInstance().getStorageManager().updateClan(this);
+        SimpleClans.getInstance().getStorageManager().beginWork().updateClanPlayer(cp).updateClan(this).commit();
         if (SimpleClans.getInstance().hasUUID()) {
             SimpleClans.getInstance().getSpoutPluginManager().processPlayer(cp.getUniqueId());
         } else {
@@ -1268,8 +1265,7 @@ public class Clan implements Serializable, Comparable<Clan> {
 
         cp.setLeader(false);
 
-        SimpleClans.getInstance().getStorageManager().updateClanPlayer(cp);
-        SimpleClans.getInstance().getStorageManager().updateClan(this);
+        SimpleClans.getInstance().getStorageManager().beginWork().updateClanPlayer(cp).updateClan(this).commit();
         SimpleClans.getInstance().getSpoutPluginManager().processPlayer(cp.getUniqueId());
 
         // add clan permission
@@ -1289,8 +1285,8 @@ public class Clan implements Serializable, Comparable<Clan> {
         ally.removeRival(getTag());
         ally.addAlly(getTag());
 
-        SimpleClans.getInstance().getStorageManager().updateClan(this);
-        SimpleClans.getInstance().getStorageManager().updateClan(ally);
+        SimpleClans.getInstance().getStorageManager().setRelation(this, ally.getTag(), true);
+        SimpleClans.getInstance().getStorageManager().setRelation(ally, getTag(), true);
         SimpleClans.getInstance().getServer().getPluginManager().callEvent(new AllyClanAddEvent(this, ally));
     }
 
@@ -1303,8 +1299,8 @@ public class Clan implements Serializable, Comparable<Clan> {
         removeAlly(ally.getTag());
         ally.removeAlly(getTag());
 
-        SimpleClans.getInstance().getStorageManager().updateClan(this);
-        SimpleClans.getInstance().getStorageManager().updateClan(ally);
+        SimpleClans.getInstance().getStorageManager().deleteRelation(this, ally.getTag());
+        SimpleClans.getInstance().getStorageManager().deleteRelation(ally, getTag());
         SimpleClans.getInstance().getServer().getPluginManager().callEvent(new AllyClanRemoveEvent(this, ally));
     }
 
@@ -1320,8 +1316,8 @@ public class Clan implements Serializable, Comparable<Clan> {
         rival.removeAlly(getTag());
         rival.addRival(getTag());
 
-        SimpleClans.getInstance().getStorageManager().updateClan(this);
-        SimpleClans.getInstance().getStorageManager().updateClan(rival);
+        SimpleClans.getInstance().getStorageManager().setRelation(this, rival.getTag(), false);
+        SimpleClans.getInstance().getStorageManager().setRelation(rival, getTag(), false);
         SimpleClans.getInstance().getServer().getPluginManager().callEvent(new RivalClanAddEvent(this, rival));
     }
 
@@ -1334,8 +1330,8 @@ public class Clan implements Serializable, Comparable<Clan> {
         removeRival(rival.getTag());
         rival.removeRival(getTag());
 
-        SimpleClans.getInstance().getStorageManager().updateClan(this);
-        SimpleClans.getInstance().getStorageManager().updateClan(rival);
+        SimpleClans.getInstance().getStorageManager().deleteRelation(this, rival.getTag());
+        SimpleClans.getInstance().getStorageManager().deleteRelation(rival, getTag());
         SimpleClans.getInstance().getServer().getPluginManager().callEvent(new RivalClanRemoveEvent(this, rival));
     }
 
@@ -1353,19 +1349,7 @@ public class Clan implements Serializable, Comparable<Clan> {
      * @return
      */
     public boolean isAnyOnline() {
-        for (String member : members) {
-            if (SimpleClans.getInstance().hasUUID()) {
-                if (Helper.isOnline(UUID.fromString(member))) {
-                    return true;
-                }
-            } else {
-                if (Helper.isOnline(member)) {
-                    return true;
-                }
-            }
-        }
-
-        return false;
+        return !onlineMembers.isEmpty();
     }
 
     /**
@@ -1495,13 +1479,19 @@ public class Clan implements Serializable, Comparable<Clan> {
     public void audioAnnounce(String playerName, String msg) {
         clanAnnounce(playerName, msg);
 
-        for (String member : members) {
-            Player pl;
-            if (SimpleClans.getInstance().hasUUID()) {
-                pl = SimpleClans.getInstance().getServer().getPlayer(UUID.fromString(member));
-            } else {
-                pl = SimpleClans.getInstance().getServer().getPlayerExact(member);
+        List<Player> players = new ArrayList<>(getSize());
+
+        if (SimpleClans.getInstance().hasUUID()) {
+            for (UUID member : members.keySet()) {
+                players.add(SimpleClans.getInstance().getServer().getPlayer(member));
             }
+        } else {
+            for (String member : memberNames.keySet()) {
+                players.add(SimpleClans.getInstance().getServer().getPlayerExact(member));
+            }
+        }
+
+        for (Player pl : players) {
             if (pl == null) {
                 continue;
             }
@@ -1551,29 +1541,29 @@ public class Clan implements Serializable, Comparable<Clan> {
      */
     public void disband() {
         SimpleClans.getInstance().getServer().getPluginManager().callEvent(new DisbandClanEvent(this));
-        Collection<ClanPlayer> clanPlayers = SimpleClans.getInstance().getClanManager().getAllClanPlayers();
         List<Clan> clans = SimpleClans.getInstance().getClanManager().getClans();
+        StorageManager.UnitOfWork work = SimpleClans.getInstance().getStorageManager().beginWork();
 
-        for (ClanPlayer cp : clanPlayers) {
-            if (cp.getTag().equals(getTag())) {
-                SimpleClans.getInstance().getPermissionsManager().removeClanPermissions(this);
-                cp.setClan(null);
+        for (ClanPlayer cp : getMembers()) {
+            SimpleClans.getInstance().getPermissionsManager().removeClanPermissions(this);
+            cp.setClan(null);
 
-                if (isVerified()) {
-                    cp.addPastClan(getColorTag() + (cp.isLeader() ? ChatColor.DARK_RED + "*" : ""));
-                }
+            if (isVerified()) {
+                cp.addPastClan(getColorTag() + (cp.isLeader() ? ChatColor.DARK_RED + "*" : ""));
+            }
 
-                cp.setLeader(false);
+            cp.setLeader(false);
 
-                SimpleClans.getInstance().getStorageManager().updateClanPlayer(cp);
-                if (SimpleClans.getInstance().hasUUID()) {
-                    SimpleClans.getInstance().getSpoutPluginManager().processPlayer(cp.getUniqueId());
-                } else {
-                    SimpleClans.getInstance().getSpoutPluginManager().processPlayer(cp.getName());
-                }
+            work.updateClanPlayer(cp);
+            if (SimpleClans.getInstance().hasUUID()) {
+                SimpleClans.getInstance().getSpoutPluginManager().processPlayer(cp.getUniqueId());
+            } else {
+                SimpleClans.getInstance().getSpoutPluginManager().processPlayer(cp.getName());
             }
         }
 
+        // the members leave and the clan is deleted in one transaction
+        work.deleteClan(this).commit();
         clans.remove(this);
 
         for (Clan c : clans) {
@@ -1599,7 +1589,6 @@ public class Clan implements Serializable, Comparable<Clan> {
             @Override
             public void run() {
                 SimpleClans.getInstance().getClanManager().removeClan(thisOne.getTag());
-                SimpleClans.getInstance().getStorageManager().deleteClan(thisOne);
             }
         }, 1);
     }
@@ -1641,6 +1630,7 @@ public class Clan implements Serializable, Comparable<Clan> {
     public void addWarringClan(Clan clan) {
         if (!warringClans.containsKey(clan.getTag())) {
             warringClans.put(clan.getTag(), clan);
+            markChanged(Column.FLAGS);
         }
         SimpleClans.getInstance().getStorageManager().updateClan(this);
     }
@@ -1655,6 +1645,7 @@ public class Clan implements Serializable, Comparable<Clan> {
         Clan warring = warringClans.remove(clan.getTag());
 
         if (warring != null) {
+            markChanged(Column.FLAGS);
             SimpleClans.getInstance().getStorageManager().updateClan(this);
             return true;
         }
@@ -1745,6 +1736,44 @@ public class Clan implements Serializable, Comparable<Clan> {
         }
     }
 
+    /**
+     * Write the flags in the binary snapshot format
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeFlags(DataOutput out) throws IOException {
+        out.writeInt(warringClans.size());
+
+        for (String tag : warringClans.keySet()) {
+            out.writeUTF(tag);
+        }
+
+        out.writeInt(homeX);
+        out.writeInt(homeY);
+        out.writeInt(homeZ);
+        out.writeUTF(homeWorld == null ? "" : homeWorld);
+    }
+
+    /**
+     * Read the flags in from the binary snapshot format, the warring clans still have to be validated
+     *
+     * @param in
+     * @throws IOException
+     */
+    public void readFlags(DataInput in) throws IOException {
+        int warring = in.readInt();
+
+        for (int i = 0; i < warring; i++) {
+            warringClans.put(in.readUTF(), null);
+        }
+
+        homeX = in.readInt();
+        homeY = in.readInt();
+        homeZ = in.readInt();
+        homeWorld = in.readUTF();
+    }
+
     public void validateWarring() {
         for (Iterator iter = warringClans.keySet().iterator(); iter.hasNext(); ) {
             String clanName = (String) iter.next();
@@ -1753,6 +1782,7 @@ public class Clan implements Serializable, Comparable<Clan> {
 
             if (clan == null) {
                 iter.remove();
+                markChanged(Column.FLAGS);
             } else {
                 SimpleClans.debug("validated: " + clanName);
                 warringClans.put(clanName, clan);
@@ -1774,6 +1804,8 @@ public class Clan implements Serializable, Comparable<Clan> {
             homeZ = home.getBlockZ();
             homeWorld = home.getWorld().getName();
         }
+
+        markChanged(Column.FLAGS);
         SimpleClans.getInstance().getStorageManager().updateClan(this);
     }
 
@@ -1846,4 +1878,79 @@ public class Clan implements Serializable, Comparable<Clan> {
     public void setAllowDeposit(boolean allowDeposit) {
         this.allowDeposit = allowDeposit;
     }
+
+    /**
+     * (used internally)
+     *
+     * @param column the column whose value was changed
+     */
+    private void markChanged(Column column) {
+        synchronized (changedColumns) {
+            changedColumns.add(column);
+        }
+    }
+
+    /**
+     * (used internally)
+     * Returns the columns changed since the last call and forgets them, the caller is expected to write them
+     *
+     * @return the changed columns
+     */
+    public Set<Column> takeChanges() {
+        synchronized (changedColumns) {
+            EnumSet<Column> out = EnumSet.copyOf(changedColumns);
+            changedColumns.clear();
+            return out;
+        }
+    }
+
+    /**
+     * (used internally)
+     * Marks taken columns as changed again after writing them failed, so the next write retries them
+     *
+     * @param columns the columns returned by takeChanges()
+     */
+    public void restoreChanges(Set<Column> columns) {
+        synchronized (changedColumns) {
+            changedColumns.addAll(columns);
+        }
+    }
+
+    /**
+     * (used internally)
+     * Forgets every change, used once the clan has been read from the database
+     */
+    public void clearChanges() {
+        synchronized (changedColumns) {
+            changedColumns.clear();
+        }
+    }
+
+    /**
+     * Columns of sc_clans that can change after the row is inserted
+     */
+    public enum Column {
+        VERIFIED("verified"),
+        COLOR_TAG("color_tag"),
+        NAME("name"),
+        FRIENDLY_FIRE("friendly_fire"),
+        FOUNDED("founded"),
+        LAST_USED("last_used"),
+        CAPE_URL("cape_url"),
+        BALANCE("balance"),
+        FLAGS("flags");
+
+        private final String name;
+
+        Column(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the column name
+         */
+        public String getName() {
+            return name;
+        }
+    }
 }
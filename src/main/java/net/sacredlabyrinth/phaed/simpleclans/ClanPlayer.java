@@ -7,6 +7,9 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.sql.Timestamp;
 import java.text.MessageFormat;
@@ -48,6 +51,8 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
 
     private String rank = "";
 
+    private final EnumSet<Column> changedColumns = EnumSet.noneOf(Column.class);
+
     /**
      *
      */
@@ -171,6 +176,13 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     public void setName(String name)
     {
         this.displayName = name;
+        markChanged(Column.NAME);
+
+        // members are sorted by name before the uuid migration
+        if (clan != null)
+        {
+            clan.invalidateMembers();
+        }
     }
 
     /**
@@ -203,9 +215,16 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
         if (leader)
         {
             trusted = leader;
+            markChanged(Column.TRUSTED);
         }
 
         this.leader = leader;
+        markChanged(Column.LEADER);
+
+        if (clan != null)
+        {
+            clan.invalidateMembers();
+        }
     }
 
     /**
@@ -263,6 +282,7 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     public void setLastSeen(long lastSeen)
     {
         this.lastSeen = lastSeen;
+        markChanged(Column.LAST_SEEN);
     }
 
     /**
@@ -271,6 +291,7 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     public void updateLastSeen()
     {
         this.lastSeen = (new Date()).getTime();
+        markChanged(Column.LAST_SEEN);
     }
 
     /**
@@ -323,7 +344,13 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
      */
     public void setRivalKills(int rivalKills)
     {
+        if (clan != null)
+        {
+            clan.memberStatsChanged(this, rivalKills - this.rivalKills, 0, 0, 0);
+        }
+
         this.rivalKills = rivalKills;
+        markChanged(Column.RIVAL_KILLS);
     }
 
     /**
@@ -351,7 +378,13 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
      */
     public void setCivilianKills(int civilianKills)
     {
+        if (clan != null)
+        {
+            clan.memberStatsChanged(this, 0, 0, civilianKills - this.civilianKills, 0);
+        }
+
         this.civilianKills = civilianKills;
+        markChanged(Column.CIVILIAN_KILLS);
     }
 
     /**
@@ -379,7 +412,13 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
      */
     public void setNeutralKills(int neutralKills)
     {
+        if (clan != null)
+        {
+            clan.memberStatsChanged(this, 0, neutralKills - this.neutralKills, 0, 0);
+        }
+
         this.neutralKills = neutralKills;
+        markChanged(Column.NEUTRAL_KILLS);
     }
 
     /**
@@ -408,6 +447,7 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     public void setFriendlyFire(boolean friendlyFire)
     {
         this.friendlyFire = friendlyFire;
+        markChanged(Column.FRIENDLY_FIRE);
     }
 
     /**
@@ -447,7 +487,13 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
      */
     public void setDeaths(int deaths)
     {
+        if (clan != null)
+        {
+            clan.memberStatsChanged(this, 0, 0, 0, deaths - this.deaths);
+        }
+
         this.deaths = deaths;
+        markChanged(Column.DEATHS);
     }
 
     /**
@@ -504,6 +550,7 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     public void setJoinDate(long joinDate)
     {
         this.joinDate = joinDate;
+        markChanged(Column.JOIN_DATE);
     }
 
     /**
@@ -569,6 +616,7 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     public void setPackedPastClans(String PackedPastClans)
     {
         this.pastClans = Helper.fromArray2(PackedPastClans.split("[|]"));
+        markChanged(Column.PACKED_PAST_CLANS);
     }
 
     /**
@@ -579,6 +627,7 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     public void addPastClan(String tag)
     {
         this.getPastClans().add(tag);
+        markChanged(Column.PACKED_PAST_CLANS);
     }
 
     /**
@@ -589,6 +638,7 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     public void removePastClan(String tag)
     {
         this.getPastClans().remove(tag);
+        markChanged(Column.PACKED_PAST_CLANS);
     }
 
     /**
@@ -655,6 +705,7 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
         }
 
         this.clan = clan;
+        markChanged(Column.TAG);
     }
 
     /**
@@ -700,6 +751,7 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     public void setTrusted(boolean trusted)
     {
         this.trusted = trusted;
+        markChanged(Column.TRUSTED);
     }
 
     /**
@@ -836,6 +888,44 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
         }
     }
 
+    /**
+     * Write the flags in the binary snapshot format
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeFlags(DataOutput out) throws IOException
+    {
+        out.writeUTF(rank == null ? "" : rank);
+        out.writeUTF(channel.name());
+        out.writeBoolean(globalChat);
+        out.writeBoolean(allyChat);
+        out.writeBoolean(clanChat);
+        out.writeBoolean(useChatShortcut);
+        out.writeBoolean(bbEnabled);
+        out.writeBoolean(tagEnabled);
+        out.writeBoolean(capeEnabled);
+    }
+
+    /**
+     * Read the flags in from the binary snapshot format
+     *
+     * @param in
+     * @throws IOException
+     */
+    public void readFlags(DataInput in) throws IOException
+    {
+        rank = in.readUTF();
+        channel = Channel.valueOf(in.readUTF());
+        globalChat = in.readBoolean();
+        allyChat = in.readBoolean();
+        clanChat = in.readBoolean();
+        useChatShortcut = in.readBoolean();
+        bbEnabled = in.readBoolean();
+        tagEnabled = in.readBoolean();
+        capeEnabled = in.readBoolean();
+    }
+
     public Channel getChannel()
     {
         return channel;
@@ -859,21 +949,25 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     public void setGlobalChat(boolean globalChat)
     {
         this.globalChat = globalChat;
+        markChanged(Column.FLAGS);
     }
 
     public void setAllyChat(boolean allyChat)
     {
         this.allyChat = allyChat;
+        markChanged(Column.FLAGS);
     }
 
     public void setClanChat(boolean clanChat)
     {
         this.clanChat = clanChat;
+        markChanged(Column.FLAGS);
     }
 
     public void setChannel(Channel channel)
     {
         this.channel = channel;
+        markChanged(Column.FLAGS);
     }
 
     public boolean isBbEnabled()
@@ -884,6 +978,7 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     public void setBbEnabled(boolean bbEnabled)
     {
         this.bbEnabled = bbEnabled;
+        markChanged(Column.FLAGS);
         SimpleClans.getInstance().getStorageManager().updateClanPlayer(this);
     }
 
@@ -895,6 +990,7 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     public void setCapeEnabled(boolean capeEnabled)
     {
         this.capeEnabled = capeEnabled;
+        markChanged(Column.FLAGS);
         SimpleClans.getInstance().getStorageManager().updateClanPlayer(this);
     }
 
@@ -906,6 +1002,7 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     public void setTagEnabled(boolean tagEnabled)
     {
         this.tagEnabled = tagEnabled;
+        markChanged(Column.FLAGS);
         SimpleClans.getInstance().getStorageManager().updateClanPlayer(this);
         SimpleClans.getInstance().getClanManager().updateDisplayName(this.toPlayer());
     }
@@ -923,6 +1020,97 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     public void setRank(String rank)
     {
         this.rank = rank;
+        markChanged(Column.FLAGS);
+    }
+
+    /**
+     * (used internally)
+     *
+     * @param column the column whose value was changed
+     */
+    private void markChanged(Column column)
+    {
+        synchronized (changedColumns)
+        {
+            changedColumns.add(column);
+        }
+    }
+
+    /**
+     * (used internally)
+     * Returns the columns changed since the last call and forgets them, the caller is expected to write them
+     *
+     * @return the changed columns
+     */
+    public Set<Column> takeChanges()
+    {
+        synchronized (changedColumns)
+        {
+            EnumSet<Column> out = EnumSet.copyOf(changedColumns);
+            changedColumns.clear();
+            return out;
+        }
+    }
+
+    /**
+     * (used internally)
+     * Marks taken columns as changed again after writing them failed, so the next write retries them
+     *
+     * @param columns the columns returned by takeChanges()
+     */
+    public void restoreChanges(Set<Column> columns)
+    {
+        synchronized (changedColumns)
+        {
+            changedColumns.addAll(columns);
+        }
+    }
+
+    /**
+     * (used internally)
+     * Forgets every change, used once the player has been read from the database
+     */
+    public void clearChanges()
+    {
+        synchronized (changedColumns)
+        {
+            changedColumns.clear();
+        }
+    }
+
+    /**
+     * Columns of sc_players that can change after the row is inserted
+     */
+    public enum Column
+    {
+        NAME("name"),
+        LEADER("leader"),
+        TAG("tag"),
+        FRIENDLY_FIRE("friendly_fire"),
+        NEUTRAL_KILLS("neutral_kills"),
+        RIVAL_KILLS("rival_kills"),
+        CIVILIAN_KILLS("civilian_kills"),
+        DEATHS("deaths"),
+        LAST_SEEN("last_seen"),
+        JOIN_DATE("join_date"),
+        PACKED_PAST_CLANS("packed_past_clans"),
+        TRUSTED("trusted"),
+        FLAGS("flags");
+
+        private final String name;
+
+        Column(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * @return the column name
+         */
+        public String getName()
+        {
+            return name;
+        }
     }
 
     public enum Channel
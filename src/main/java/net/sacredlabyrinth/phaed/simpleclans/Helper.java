@@ -518,6 +518,7 @@ public class Helper {
      * @param str
      * @return
      */
+    @Deprecated
     public static String escapeQuotes(String str) {
         if (str == null) {
             return "";
@@ -608,7 +609,8 @@ public class Helper {
 
     public static Player getPlayer(String playerName) {
         if (SimpleClans.getInstance().hasUUID()) {
-            return SimpleClans.getInstance().getServer().getPlayer(UUIDMigration.getForcedPlayerUUID(playerName));
+            UUID playerUniqueId = UUIDMigration.getForcedPlayerUUID(playerName);
+            return playerUniqueId == null ? null : SimpleClans.getInstance().getServer().getPlayer(playerUniqueId);
         }
 
         return SimpleClans.getInstance().getServer().getPlayer(playerName);
@@ -4,12 +4,15 @@ import net.sacredlabyrinth.phaed.simpleclans.executors.*;
 import net.sacredlabyrinth.phaed.simpleclans.listeners.SCEntityListener;
 import net.sacredlabyrinth.phaed.simpleclans.listeners.SCPlayerListener;
 import net.sacredlabyrinth.phaed.simpleclans.managers.*;
+import net.sacredlabyrinth.phaed.simpleclans.uuid.UUIDCache;
 import net.sacredlabyrinth.phaed.simpleclans.uuid.UUIDMigration;
+import net.sacredlabyrinth.phaed.simpleclans.uuid.UUIDResolver;
 
 import org.bukkit.ChatColor;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
@@ -19,6 +22,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.PropertyResourceBundle;
 import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,6 +42,8 @@ public class SimpleClans extends JavaPlugin {
     private PermissionsManager permissionsManager;
     private TeleportManager teleportManager;
     private LanguageManager languageManager;
+    private UUIDResolver uuidResolver;
+    private UUIDCache uuidCache;
     private boolean hasUUID;
 
     /**
@@ -79,6 +85,10 @@ public class SimpleClans extends JavaPlugin {
         this.hasUUID = UUIDMigration.canReturnUUID();
         languageManager = new LanguageManager();
 
+        uuidResolver = new UUIDResolver(settingsManager.getUuidProfileUrl(), settingsManager.getUuidResolverWindow(), settingsManager.getUuidResolverRequestsPerMinute());
+        uuidCache = new UUIDCache(new File(getDataFolder(), "uuid-cache.txt"), uuidResolver, TimeUnit.HOURS.toMillis(settingsManager.getUuidCacheTtl()), TimeUnit.MINUTES.toMillis(settingsManager.getUuidCacheNegativeTtl()));
+        uuidCache.load();
+
         spoutPluginManager = new SpoutPluginManager();
         permissionsManager = new PermissionsManager();
         requestManager = new RequestManager();
@@ -94,6 +104,13 @@ public class SimpleClans extends JavaPlugin {
         spoutPluginManager.processAllPlayers();
         permissionsManager.loadPermissions();
 
+        getServer().getScheduler().runTaskTimerAsynchronously(this, new Runnable() {
+            @Override
+            public void run() {
+                uuidCache.save();
+            }
+        }, 20L * 60 * 5, 20L * 60 * 5);
+
         CommandHelper.registerCommand(getSettingsManager().getCommandClan());
         CommandHelper.registerCommand(getSettingsManager().getCommandAccept());
         CommandHelper.registerCommand(getSettingsManager().getCommandDeny());
@@ -117,8 +134,27 @@ public class SimpleClans extends JavaPlugin {
     @Override
     public void onDisable() {
         getServer().getScheduler().cancelTasks(this);
+        getStorageManager().shutdownExecutor();
+        getStorageManager().flushPendingWrites();
+        getStorageManager().saveSnapshot(false);
         getStorageManager().closeConnection();
         getPermissionsManager().savePermissions();
+        uuidResolver.shutdown();
+        uuidCache.save();
+    }
+
+    /**
+     * @return the resolver batching uuid lookups by name
+     */
+    public UUIDResolver getUuidResolver() {
+        return uuidResolver;
+    }
+
+    /**
+     * @return the cache of uuids looked up by name
+     */
+    public UUIDCache getUuidCache() {
+        return uuidCache;
     }
 
     /**
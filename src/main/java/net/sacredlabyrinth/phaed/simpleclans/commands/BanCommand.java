@@ -40,6 +40,10 @@ public class BanCommand {
 
         if (SimpleClans.getInstance().hasUUID()) {
             UUID PlayerUniqueId = UUIDMigration.getForcedPlayerUUID(banned);
+            if (PlayerUniqueId == null) {
+                ChatBlock.sendMessage(player, ChatColor.RED + plugin.getLang("no.player.matched"));
+                return;
+            }
             if (plugin.getSettingsManager().isBanned(PlayerUniqueId)) {
                 ChatBlock.sendMessage(player, ChatColor.RED + plugin.getLang("this.player.is.already.banned"));
                 return;
@@ -63,7 +63,7 @@ public class CoordsCommand {
 
         chatBlock.addRow("  " + headColor + plugin.getLang("name"), plugin.getLang("distance"), plugin.getLang("coords.upper"), plugin.getLang("world"));
 
-        List<ClanPlayer> members = Helper.stripOffLinePlayers(clan.getMembers());
+        List<ClanPlayer> members = clan.getOnlineMembers();
 
         Map<Integer, List<String>> rows = new TreeMap<>();
 
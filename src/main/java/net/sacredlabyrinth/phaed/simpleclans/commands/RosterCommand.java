@@ -6,6 +6,7 @@ import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -69,10 +70,10 @@ public class RosterCommand {
                 chatBlock.setFlexibility(false, true, false, true);
                 chatBlock.addRow("  " + headColor + plugin.getLang("sender"), plugin.getLang("rank"), plugin.getLang("seen"));
 
-                List<ClanPlayer> leaders = clan.getLeaders();
+                List<ClanPlayer> leaders = new ArrayList<>(clan.getLeaders());
                 plugin.getClanManager().sortClanPlayersByLastSeen(leaders);
 
-                List<ClanPlayer> members = clan.getNonLeaders();
+                List<ClanPlayer> members = new ArrayList<>(clan.getNonLeaders());
                 plugin.getClanManager().sortClanPlayersByLastSeen(members);
 
                 for (ClanPlayer cp : leaders) {
@@ -3,6 +3,7 @@ package net.sacredlabyrinth.phaed.simpleclans.commands;
 import java.text.DecimalFormat;
 import java.text.MessageFormat;
 import java.text.NumberFormat;
+import java.util.ArrayList;
 import java.util.List;
 
 import net.sacredlabyrinth.phaed.simpleclans.*;
@@ -67,10 +68,10 @@ public class StatsCommand {
         chatBlock.setAlignment("l", "c", "c", "c", "c", "c", "c");
         chatBlock.addRow("  " + headColor + plugin.getLang("name"), plugin.getLang("kdr"), plugin.getLang("rival"), plugin.getLang("neutral"), plugin.getLang("civilian.abbreviation"), plugin.getLang("deaths"));
 
-        List<ClanPlayer> leaders = clan.getLeaders();
+        List<ClanPlayer> leaders = new ArrayList<>(clan.getLeaders());
         plugin.getClanManager().sortClanPlayersByKDR(leaders);
 
-        List<ClanPlayer> members = clan.getNonLeaders();
+        List<ClanPlayer> members = new ArrayList<>(clan.getNonLeaders());
         plugin.getClanManager().sortClanPlayersByKDR(members);
 
         addRows(leaders, chatBlock);
@@ -0,0 +1,81 @@
+package net.sacredlabyrinth.phaed.simpleclans.commands;
+
+import net.sacredlabyrinth.phaed.simpleclans.ChatBlock;
+import net.sacredlabyrinth.phaed.simpleclans.Helper;
+import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+import net.sacredlabyrinth.phaed.simpleclans.managers.ClanManager;
+import net.sacredlabyrinth.phaed.simpleclans.storage.ConnectionPool;
+import net.sacredlabyrinth.phaed.simpleclans.storage.KillBuffer;
+import net.sacredlabyrinth.phaed.simpleclans.storage.KillRetention;
+import net.sacredlabyrinth.phaed.simpleclans.storage.StorageExecutor;
+import net.sacredlabyrinth.phaed.simpleclans.storage.WriteBehindQueue;
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.text.DecimalFormat;
+import java.text.MessageFormat;
+
+/**
+ * @author phaed
+ */
+public class StorageCommand {
+    public StorageCommand() {
+    }
+
+    /**
+     * Execute the command
+     *
+     * @param sender
+     * @param arg
+     */
+    public void execute(CommandSender sender, String[] arg) {
+        SimpleClans plugin = SimpleClans.getInstance();
+        String headColor = plugin.getSettingsManager().getPageHeadingsColor();
+        String subColor = plugin.getSettingsManager().getPageSubTitleColor();
+
+        if (sender instanceof Player && !plugin.getPermissionsManager().has((Player) sender, "simpleclans.admin.storage")) {
+            ChatBlock.sendMessage(sender, ChatColor.RED + plugin.getLang("insufficient.permissions"));
+            return;
+        }
+
+        DecimalFormat millis = new DecimalFormat("0.##");
+        ChatBlock.sendBlank(sender);
+        ChatBlock.saySingle(sender, plugin.getSettingsManager().getServerName() + subColor + " " + plugin.getLang("storage.statistics") + " " + headColor + Helper.generatePageSeparator(plugin.getSettingsManager().getPageSep()));
+        ChatBlock.sendBlank(sender);
+
+        ConnectionPool pool = plugin.getStorageManager().getPool();
+
+        if (pool != null) {
+            ChatBlock.sendMessage(sender, ChatColor.AQUA + MessageFormat.format(plugin.getLang("storage.pool.connections"), pool.getActiveCount(), pool.getIdleCount(), pool.getMaxSize(), pool.getWaitingCount()));
+            ChatBlock.sendMessage(sender, ChatColor.AQUA + MessageFormat.format(plugin.getLang("storage.pool.wait"), millis.format(pool.getAverageWaitMillis()), millis.format(pool.getMaxWaitMillis()), pool.getBorrowCount(), pool.getTimeoutCount(), pool.getLeakCount()));
+        }
+
+        ChatBlock.sendMessage(sender, ChatColor.AQUA + MessageFormat.format(plugin.getLang("storage.import"), plugin.getStorageManager().getLastImportTimings()));
+
+        StorageExecutor executor = plugin.getStorageManager().getExecutor();
+        ChatBlock.sendMessage(sender, ChatColor.AQUA + MessageFormat.format(plugin.getLang("storage.executor"), executor.getThreadCount(), executor.getQueueDepth(), executor.getCompletedCount(), millis.format(executor.getAverageLatencyMillis()), millis.format(executor.getMaxLatencyMillis()), executor.getBlockedCount()));
+
+        WriteBehindQueue queue = plugin.getStorageManager().getWriteBehindQueue();
+        ChatBlock.sendMessage(sender, ChatColor.AQUA + MessageFormat.format(plugin.getLang("storage.write.behind"), queue.getPendingClans(), queue.getPendingClanPlayers(), queue.getWrittenCount(), queue.getCoalescedCount()));
+
+        KillBuffer kills = plugin.getStorageManager().getKillBuffer();
+
+        if (kills != null) {
+            ChatBlock.sendMessage(sender, ChatColor.AQUA + MessageFormat.format(plugin.getLang("storage.kill.buffer"), kills.getQueuedCount(), kills.getWrittenCount(), kills.getBatchCount(), kills.getDroppedCount()));
+        }
+
+        KillRetention retention = plugin.getStorageManager().getKillRetention();
+
+        if (retention != null) {
+            ChatBlock.sendMessage(sender, ChatColor.AQUA + MessageFormat.format(plugin.getLang("storage.kill.retention"), retention.getRolledUpCount(), plugin.getSettingsManager().getKillRetentionDays()));
+        }
+
+        if (plugin.getSettingsManager().isLazyPlayers()) {
+            ClanManager clans = plugin.getClanManager();
+            ChatBlock.sendMessage(sender, ChatColor.AQUA + MessageFormat.format(plugin.getLang("storage.lazy.players"), clans.getResidentClanPlayerCount(), clans.getCachedClanPlayerCount(), plugin.getSettingsManager().getLazyPlayersCacheSize(), clans.getLoadedClanPlayerCount(), clans.getPrefetchedClanPlayerCount(), clans.getEvictedClanPlayerCount()));
+        }
+
+        ChatBlock.sendBlank(sender);
+    }
+}
@@ -5,7 +5,9 @@ import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
@@ -65,8 +67,19 @@ public class VitalsCommand {
 
         chatBlock.addRow("  " + headColor + plugin.getLang("name"), plugin.getLang("health"), plugin.getLang("hunger"), plugin.getLang("food"), plugin.getLang("armor"), plugin.getLang("weapons"));
 
-        List<ClanPlayer> members = Helper.stripOffLinePlayers(clan.getLeaders());
-        members.addAll(Helper.stripOffLinePlayers(clan.getNonLeaders()));
+        List<ClanPlayer> members = new ArrayList<>();
+        List<ClanPlayer> nonLeaders = new ArrayList<>();
+
+        for (ClanPlayer cpm : clan.getOnlineMembers()) {
+            if (cpm.isLeader()) {
+                members.add(cpm);
+            } else {
+                nonLeaders.add(cpm);
+            }
+        }
+
+        Collections.sort(nonLeaders);
+        members.addAll(nonLeaders);
 
         addRows(members, chatBlock);
 
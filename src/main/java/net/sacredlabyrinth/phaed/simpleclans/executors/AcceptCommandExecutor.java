@@ -51,7 +51,7 @@ public class AcceptCommandExecutor implements CommandExecutor {
             }
             if (SimpleClans.getInstance().hasUUID()) {
                 cp = plugin.getClanManager().getCreateClanPlayer(player.getUniqueId());
-                cp.setName(player.getName());
+                plugin.getClanManager().updateClanPlayerName(cp, player.getName());
             } else {
                 cp = plugin.getClanManager().getCreateClanPlayer(player.getName());
             }
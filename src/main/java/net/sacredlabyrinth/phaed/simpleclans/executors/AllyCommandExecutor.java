@@ -70,8 +70,8 @@ public class AllyCommandExecutor implements CommandExecutor {
             Player self = cp.toPlayer();
             ChatBlock.sendMessage(self, message);
 
-            Set<ClanPlayer> allies = cp.getClan().getAllAllyMembers();
-            allies.addAll(cp.getClan().getMembers());
+            Set<ClanPlayer> allies = cp.getClan().getAllAllyOnlineMembers();
+            allies.addAll(cp.getClan().getOnlineMembers());
 
             for (ClanPlayer ally : allies) {
                 if (ally.isMutedAlly()) {
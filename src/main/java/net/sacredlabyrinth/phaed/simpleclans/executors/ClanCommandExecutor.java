@@ -54,6 +54,7 @@ public final class ClanCommandExecutor implements CommandExecutor {
     private BankCommand bankCommand;
     private PlaceCommand placeCommand;
     private ResetKDRCommand resetKDRCommand;
+    private StorageCommand storageCommand;
 
     /**
      *
@@ -101,6 +102,7 @@ public final class ClanCommandExecutor implements CommandExecutor {
         bankCommand = new BankCommand();
         placeCommand = new PlaceCommand();
         resetKDRCommand = new ResetKDRCommand();
+        storageCommand = new StorageCommand();
     }
 
     @Override
@@ -204,6 +206,8 @@ public final class ClanCommandExecutor implements CommandExecutor {
                         placeCommand.execute(player, subargs);
                     } else if (subcommand.equalsIgnoreCase(plugin.getLang("resetkdr.command"))) {
                         resetKDRCommand.execute(player, subargs);
+                    } else if (subcommand.equalsIgnoreCase(plugin.getLang("storage.command"))) {
+                        storageCommand.execute(player, subargs);
                     } else {
                         ChatBlock.sendMessage(player, ChatColor.RED + plugin.getLang("does.not.match"));
                     }
@@ -231,6 +235,8 @@ public final class ClanCommandExecutor implements CommandExecutor {
                         lookupCommand.execute(sender, subargs);
                     } else if (subcommand.equalsIgnoreCase(plugin.getLang("globalff.command"))) {
                         globalffCommand.execute(sender, subargs);
+                    } else if (subcommand.equalsIgnoreCase(plugin.getLang("storage.command"))) {
+                        storageCommand.execute(sender, subargs);
                     } else {
                         ChatBlock.sendMessage(sender, ChatColor.RED + plugin.getLang("does.not.match"));
                     }
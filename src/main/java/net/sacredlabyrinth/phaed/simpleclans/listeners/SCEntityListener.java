@@ -15,6 +15,7 @@ import org.bukkit.event.entity.EntityTargetLivingEntityEvent;
 import org.bukkit.event.player.PlayerInteractEntityEvent;
 
 import java.text.MessageFormat;
+import java.util.List;
 
 /**
  * @author phaed
@@ -121,9 +122,11 @@ public class SCEntityListener implements Listener
 
                 if (reward != 0 && plugin.getSettingsManager().isMoneyPerKill())
                 {
-                    for (ClanPlayer cp : acp.getClan().getOnlineMembers())
+                    List<ClanPlayer> online = acp.getClan().getOnlineMembers();
+                    double money = Math.round((reward / online.size()) * 100D) / 100D;
+
+                    for (ClanPlayer cp : online)
                     {
-                        double money = Math.round((reward / acp.getClan().getOnlineMembers().size()) * 100D) / 100D;
                         cp.toPlayer().sendMessage(ChatColor.AQUA + MessageFormat.format(plugin.getLang("player.got.money"), money, victim.getName(), kdr));
                         plugin.getPermissionsManager().playerGrantMoney(cp.getName(), money);
                     }
@@ -208,6 +208,24 @@ public class SCPlayerListener implements Listener {
         }
     }
 
+    /**
+     * @param event
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onAsyncPlayerPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            return;
+        }
+
+        // other BungeeCord servers may have changed the player, so it is read again on every login
+        if (plugin.getSettingsManager().getUseBungeeCord()) {
+            plugin.getClanManager().prefetchJoinRecord(event.getUniqueId());
+            return;
+        }
+
+        plugin.getClanManager().prefetchClanPlayer(event.getUniqueId(), event.getName());
+    }
+
     /**
      * @param event
      */
@@ -215,7 +233,14 @@ public class SCPlayerListener implements Listener {
     public void onPlayerJoin(PlayerJoinEvent event) {
         final Player player = event.getPlayer();
 
+        SimpleClans.getInstance().getStorageManager().excludeFromPurge(player);
+
+        if (!SimpleClans.getInstance().getSettingsManager().getUseBungeeCord()) {
+            SimpleClans.getInstance().getClanManager().loadOnlineClanPlayer(player);
+        }
+
         if (SimpleClans.getInstance().getSettingsManager().isBlacklistedWorld(player.getLocation().getWorld().getName())) {
+            SimpleClans.getInstance().getClanManager().updateOnlineMember(player, true);
             return;
         }
 
@@ -226,6 +251,10 @@ public class SCPlayerListener implements Listener {
             cp = SimpleClans.getInstance().getClanManager().getClanPlayer(player);
         }
 
+        if (cp != null) {
+            cp.getClan().setMemberOnline(cp, true);
+        }
+
         SimpleClans.getInstance().getStorageManager().updatePlayerNameAsync(player);
         SimpleClans.getInstance().getClanManager().updateLastSeen(player);
         SimpleClans.getInstance().getClanManager().updateDisplayName(player);
@@ -233,7 +262,7 @@ public class SCPlayerListener implements Listener {
         if (cp == null) {
             return;
         }
-        cp.setName(player.getName());
+        SimpleClans.getInstance().getClanManager().updateClanPlayerName(cp, player.getName());
 
         if (SimpleClans.getInstance().hasUUID()) {
             SimpleClans.getInstance().getSpoutPluginManager().processPlayer(cp.getUniqueId());
@@ -284,7 +313,10 @@ public class SCPlayerListener implements Listener {
      */
     @EventHandler
     public void onPlayerQuit(PlayerQuitEvent event) {
+        plugin.getClanManager().updateOnlineMember(event.getPlayer(), false);
+
         if (plugin.getSettingsManager().isBlacklistedWorld(event.getPlayer().getLocation().getWorld().getName())) {
+            plugin.getClanManager().unloadOnlineClanPlayer(event.getPlayer());
             return;
         }
 
@@ -293,6 +325,7 @@ public class SCPlayerListener implements Listener {
         SimpleClans.getInstance().getPermissionsManager().removeClanPlayerPermissions(cp);
         plugin.getClanManager().updateLastSeen(event.getPlayer());
         plugin.getRequestManager().endPendingRequest(event.getPlayer().getName());
+        plugin.getClanManager().unloadOnlineClanPlayer(event.getPlayer());
     }
 
     /**
@@ -12,6 +12,7 @@ import org.bukkit.inventory.PlayerInventory;
 import java.text.DecimalFormat;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author phaed
@@ -20,13 +21,68 @@ public final class ClanManager {
 
     private SimpleClans plugin;
     private HashMap<String, Clan> clans = new HashMap<>();
-    private HashMap<String, ClanPlayer> clanPlayers = new HashMap<>();
+    private final ClanPlayerRegistry<UUID> clanPlayers;
+    private final ClanPlayerRegistry<String> legacyClanPlayers;
+    // every player in either registry by lowercase name, also read off the main thread by the uuid lookups
+    private final ConcurrentHashMap<String, ClanPlayer> clanPlayersByName = new ConcurrentHashMap<>();
+    private boolean lazyPlayers;
+    private long loadedClanPlayers;
+    private long prefetchedClanPlayers;
+    private final ConcurrentHashMap<UUID, StorageManager.ClanPlayerRecord> joinRecords = new ConcurrentHashMap<>();
+    // keys of players the database did not have, so repeated lookups of unknown players do not read it again
+    private final Set<Object> missingClanPlayers;
 
     /**
      *
      */
     public ClanManager() {
         plugin = SimpleClans.getInstance();
+        lazyPlayers = plugin.getSettingsManager().isLazyPlayers();
+
+        final int cacheSize = Math.max(1, plugin.getSettingsManager().getLazyPlayersCacheSize());
+
+        missingClanPlayers = Collections.synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<Object, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Boolean> eldest) {
+                return size() > cacheSize;
+            }
+        }));
+
+        clanPlayers = new ClanPlayerRegistry<UUID>(cacheSize) {
+            @Override
+            protected boolean isResident(ClanPlayer cp) {
+                return ClanManager.this.isResident(cp);
+            }
+
+            @Override
+            protected void evicted(ClanPlayer cp) {
+                flushEvicted(cp);
+            }
+        };
+
+        // only used on servers that have not migrated to uuids, keyed by lowercase name
+        legacyClanPlayers = new ClanPlayerRegistry<String>(cacheSize) {
+            @Override
+            protected boolean isResident(ClanPlayer cp) {
+                return ClanManager.this.isResident(cp);
+            }
+
+            @Override
+            protected void evicted(ClanPlayer cp) {
+                flushEvicted(cp);
+            }
+        };
+    }
+
+    private void flushEvicted(ClanPlayer cp) {
+        StorageManager storage = plugin.getStorageManager();
+
+        unindexName(cp);
+
+        // null while the storage manager is still running the startup import
+        if (storage != null) {
+            storage.flushClanPlayer(cp);
+        }
     }
 
     /**
@@ -35,6 +91,9 @@ public final class ClanManager {
     public void cleanData() {
         clans.clear();
         clanPlayers.clear();
+        legacyClanPlayers.clear();
+        clanPlayersByName.clear();
+        missingClanPlayers.clear();
     }
 
     /**
@@ -52,12 +111,300 @@ public final class ClanManager {
      * @param cp
      */
     public void importClanPlayer(ClanPlayer cp) {
+        boolean keep = !lazyPlayers || isResident(cp);
+        ClanPlayer old;
+
         if (SimpleClans.getInstance().hasUUID()) {
-            if (cp.getUniqueId() != null) {
-                this.clanPlayers.put(cp.getUniqueId().toString(), cp);
+            if (cp.getUniqueId() == null) {
+                return;
             }
+            old = clanPlayers.put(cp.getUniqueId(), cp, keep);
+            missingClanPlayers.remove(cp.getUniqueId());
         } else {
-            this.clanPlayers.put(cp.getCleanName(), cp);
+            old = legacyClanPlayers.put(cp.getCleanName(), cp, keep);
+            missingClanPlayers.remove(cp.getCleanName());
+        }
+
+        // the copy replaced may have been stored under a name the player has since changed
+        unindexName(old);
+        indexName(cp);
+    }
+
+    private void indexName(ClanPlayer cp) {
+        if (cp.getName() != null) {
+            clanPlayersByName.put(cp.getName().toLowerCase(), cp);
+        }
+    }
+
+    private void unindexName(ClanPlayer cp) {
+        if (cp == null || cp.getName() == null) {
+            return;
+        }
+
+        String key = cp.getName().toLowerCase();
+
+        // clan players are equal by name, another player may have taken this one's old name
+        if (clanPlayersByName.get(key) == cp) {
+            clanPlayersByName.remove(key);
+        }
+    }
+
+    /**
+     * Looks a clan player up by name, ignoring case, in memory only. Safe to call off the main thread.
+     *
+     * @param playerName
+     * @return the clan player last known by that name, null if none is in memory
+     */
+    public ClanPlayer findClanPlayerByName(String playerName) {
+        return clanPlayersByName.get(playerName.toLowerCase());
+    }
+
+    /**
+     * Renames a clan player, keeping the name lookup up to date
+     *
+     * @param cp
+     * @param playerName
+     */
+    public void updateClanPlayerName(ClanPlayer cp, String playerName) {
+        if (playerName.equals(cp.getName())) {
+            return;
+        }
+
+        unindexName(cp);
+        cp.setName(playerName);
+
+        if (findClanPlayer(cp) == cp) {
+            indexName(cp);
+        }
+    }
+
+    /**
+     * Whether a clan player has to stay in memory, always true unless lazy player loading is enabled
+     *
+     * @param cp
+     * @return true for clan members and online players
+     */
+    private boolean isResident(ClanPlayer cp) {
+        return !lazyPlayers || cp.getClan() != null || cp.toPlayer() != null;
+    }
+
+    /**
+     * Looks a clan player up in memory only
+     *
+     * @param playerUniqueId
+     * @return
+     */
+    private ClanPlayer findClanPlayer(UUID playerUniqueId) {
+        return clanPlayers.get(playerUniqueId);
+    }
+
+    /**
+     * Looks a clan player up in memory only, on servers that have not migrated to uuids
+     *
+     * @param playerName
+     * @return
+     */
+    private ClanPlayer findClanPlayer(String playerName) {
+        return legacyClanPlayers.get(playerName.toLowerCase());
+    }
+
+    /**
+     * Looks a clan player up in memory only, under the key it is stored with
+     *
+     * @param cp
+     * @return the clan player held in memory, null if there is none or it has no key yet
+     */
+    private ClanPlayer findClanPlayer(ClanPlayer cp) {
+        if (SimpleClans.getInstance().hasUUID()) {
+            return cp.getUniqueId() == null ? null : findClanPlayer(cp.getUniqueId());
+        }
+        return findClanPlayer(cp.getCleanName());
+    }
+
+    /**
+     * Looks a clan player up in memory, then in the database if lazy player loading is enabled
+     *
+     * @param playerUniqueId
+     * @return
+     */
+    private ClanPlayer loadClanPlayer(UUID playerUniqueId) {
+        ClanPlayer cp = findClanPlayer(playerUniqueId);
+
+        if (cp == null && lazyPlayers && !missingClanPlayers.contains(playerUniqueId)) {
+            cp = plugin.getStorageManager().retrieveDetachedClanPlayer(playerUniqueId);
+
+            if (cp != null) {
+                loadedClanPlayers++;
+                importClanPlayer(cp);
+            } else {
+                missingClanPlayers.add(playerUniqueId);
+            }
+        }
+
+        return cp;
+    }
+
+    /**
+     * Looks a clan player up in memory, then in the database if lazy player loading is enabled
+     *
+     * @param playerName
+     * @return
+     */
+    @Deprecated
+    private ClanPlayer loadClanPlayer(String playerName) {
+        ClanPlayer cp = findClanPlayer(playerName);
+
+        if (cp == null && lazyPlayers && !missingClanPlayers.contains(playerName.toLowerCase())) {
+            cp = plugin.getStorageManager().retrieveDetachedClanPlayer(playerName);
+
+            if (cp != null) {
+                loadedClanPlayers++;
+                importClanPlayer(cp);
+            } else {
+                missingClanPlayers.add(playerName.toLowerCase());
+            }
+        }
+
+        return cp;
+    }
+
+    /**
+     * Loads a player's data while they are logging in, so their join does not wait for the database.
+     * Called off the main thread, the result is handed back to it.
+     *
+     * @param playerUniqueId
+     * @param playerName
+     */
+    public void prefetchClanPlayer(UUID playerUniqueId, String playerName) {
+        if (!lazyPlayers) {
+            return;
+        }
+
+        final ClanPlayer cp;
+        final Object key;
+
+        if (SimpleClans.getInstance().hasUUID()) {
+            cp = plugin.getStorageManager().retrieveDetachedClanPlayer(playerUniqueId);
+            key = playerUniqueId;
+        } else {
+            cp = plugin.getStorageManager().retrieveDetachedClanPlayer(playerName);
+            key = playerName.toLowerCase();
+        }
+
+        if (cp == null) {
+            plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    // remembered so the lookups made when the player joins stay off the database,
+                    // unless the player was created while the read was running
+                    ClanPlayer created = key instanceof UUID ? findClanPlayer((UUID) key) : findClanPlayer((String) key);
+
+                    if (created == null) {
+                        missingClanPlayers.add(key);
+                    }
+                }
+            });
+            return;
+        }
+
+        plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+            @Override
+            public void run() {
+                // the copy in memory, if there is one, is newer than what was read
+                if ((cp.getUniqueId() != null || !SimpleClans.getInstance().hasUUID()) && findClanPlayer(cp) == null) {
+                    prefetchedClanPlayers++;
+                    importClanPlayer(cp);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads a BungeeCord player's data while they are logging in, so their join only has to link it.
+     * Called off the main thread.
+     *
+     * @param playerUniqueId
+     */
+    public void prefetchJoinRecord(UUID playerUniqueId) {
+        long timeout = plugin.getSettingsManager().getJoinPrefetchTimeout();
+
+        // players whose login was cancelled later never pick their record up
+        for (Iterator<StorageManager.ClanPlayerRecord> iter = joinRecords.values().iterator(); iter.hasNext(); ) {
+            if (iter.next().getAge() > timeout) {
+                iter.remove();
+            }
+        }
+
+        StorageManager storage = plugin.getStorageManager();
+
+        // the changes are only written on the main thread, the join reads the player again instead
+        if (storage.hasPendingWrites(playerUniqueId)) {
+            joinRecords.remove(playerUniqueId);
+            return;
+        }
+
+        joinRecords.put(playerUniqueId, storage.readClanPlayerRecord(playerUniqueId));
+    }
+
+    /**
+     * Keeps a joining player's data in memory until they quit
+     *
+     * @param player
+     */
+    public void loadOnlineClanPlayer(Player player) {
+        if (!lazyPlayers) {
+            return;
+        }
+
+        ClanPlayer cp;
+
+        if (SimpleClans.getInstance().hasUUID()) {
+            cp = loadClanPlayer(player.getUniqueId());
+        } else {
+            cp = loadClanPlayer(player.getName());
+        }
+
+        if (cp != null) {
+            importClanPlayer(cp);
+        }
+    }
+
+    /**
+     * Moves a quitting player's data to the cache if they are not in a clan
+     *
+     * @param player
+     */
+    public void unloadOnlineClanPlayer(Player player) {
+        if (!lazyPlayers) {
+            return;
+        }
+
+        if (SimpleClans.getInstance().hasUUID()) {
+            ClanPlayer cp = findClanPlayer(player.getUniqueId());
+
+            if (cp != null && cp.getClan() == null) {
+                clanPlayers.release(player.getUniqueId());
+            }
+        } else {
+            ClanPlayer cp = findClanPlayer(player.getName());
+
+            if (cp != null && cp.getClan() == null) {
+                legacyClanPlayers.release(player.getName().toLowerCase());
+            }
+        }
+    }
+
+    /**
+     * Tells the player's clan that they logged in or out
+     *
+     * @param player
+     * @param online
+     */
+    public void updateOnlineMember(Player player, boolean online) {
+        ClanPlayer cp = getClanPlayer(player);
+
+        if (cp != null) {
+            cp.getClan().setMemberOnline(cp, online);
         }
     }
 
@@ -103,17 +450,106 @@ public final class ClanManager {
      * @param cp
      */
     public void deleteClanPlayer(ClanPlayer cp) {
-        clanPlayers.remove(cp.getCleanName());
+        if (cp.getUniqueId() != null) {
+            unindexName(clanPlayers.remove(cp.getUniqueId()));
+        }
+        unindexName(legacyClanPlayers.remove(cp.getCleanName()));
+        unindexName(cp);
         plugin.getStorageManager().deleteClanPlayer(cp);
     }
 
+    /**
+     * Disbands the clans that have been inactive for longer than the purge settings allow
+     */
+    public void purgeInactiveClans() {
+        for (Clan clan : new ArrayList<>(clans.values())) {
+            int days = clan.isVerified() ? plugin.getSettingsManager().getPurgeClan() : plugin.getSettingsManager().getPurgeUnverified();
+
+            if (clan.getInactiveDays() > days) {
+                SimpleClans.log("[SimpleClans] " + MessageFormat.format(plugin.getLang("purging.clan"), clan.getName()));
+                clan.disband();
+            }
+        }
+    }
+
+    /**
+     * Drops players whose rows were purged from memory. A player who came back before the
+     * purge reached them has their row written again.
+     *
+     * @param keys the uuids of the purged players, or their lowercase names before the uuid migration
+     */
+    public void forgetPurgedClanPlayers(List<String> keys) {
+        int days = plugin.getSettingsManager().getPurgePlayers();
+        boolean uuid = SimpleClans.getInstance().hasUUID();
+
+        for (String key : keys) {
+            ClanPlayer cp = uuid ? findClanPlayer(UUID.fromString(key)) : findClanPlayer(key);
+
+            if (cp == null) {
+                continue;
+            }
+
+            if (cp.isLeader() || cp.toPlayer() != null || cp.getInactiveDays() <= days) {
+                plugin.getStorageManager().insertClanPlayer(cp);
+                continue;
+            }
+
+            Clan clan = cp.getClan();
+
+            if (clan != null) {
+                if (SimpleClans.getInstance().hasUUID()) {
+                    clan.removeMember(cp.getUniqueId());
+                } else {
+                    clan.removeMember(cp.getName());
+                }
+            }
+
+            if (uuid) {
+                clanPlayers.remove(cp.getUniqueId());
+            } else {
+                legacyClanPlayers.remove(key);
+            }
+            unindexName(cp);
+        }
+    }
+
+    /**
+     * Keys of the players a purge must keep even if their row says they are inactive: online
+     * players, and players whose last seen date in memory is newer than the cutoff
+     *
+     * @param cutoff last seen date at or before which a player is inactive
+     * @return uuids, or lowercase names before the uuid migration
+     */
+    public Set<String> getPurgeExclusions(long cutoff) {
+        boolean uuid = SimpleClans.getInstance().hasUUID();
+        Set<String> out = new HashSet<>();
+
+        for (Player player : Helper.getOnlinePlayers()) {
+            out.add(uuid ? player.getUniqueId().toString() : player.getName().toLowerCase());
+        }
+
+        for (ClanPlayer cp : getAllClanPlayers()) {
+            if (cp.getLastSeen() <= cutoff) {
+                continue;
+            }
+
+            if (!uuid) {
+                out.add(cp.getCleanName());
+            } else if (cp.getUniqueId() != null) {
+                out.add(cp.getUniqueId().toString());
+            }
+        }
+
+        return out;
+    }
+
     /**
      * Delete a player data from memory
      *
      * @param playerUniqueId
      */
     public void deleteClanPlayerFromMemory(UUID playerUniqueId) {
-        clanPlayers.remove(playerUniqueId.toString());
+        unindexName(clanPlayers.remove(playerUniqueId));
     }
 
     /**
@@ -192,7 +628,45 @@ public final class ClanManager {
      * @return
      */
     public List<ClanPlayer> getAllClanPlayers() {
-        return new ArrayList<>(clanPlayers.values());
+        List<ClanPlayer> out = new ArrayList<>(getResidentClanPlayerCount() + getCachedClanPlayerCount());
+        clanPlayers.addAllTo(out);
+        legacyClanPlayers.addAllTo(out);
+        return out;
+    }
+
+    /**
+     * @return number of clan players kept in memory for good
+     */
+    public int getResidentClanPlayerCount() {
+        return clanPlayers.getResidentCount() + legacyClanPlayers.getResidentCount();
+    }
+
+    /**
+     * @return number of clan players held in the cache
+     */
+    public int getCachedClanPlayerCount() {
+        return clanPlayers.getCachedCount() + legacyClanPlayers.getCachedCount();
+    }
+
+    /**
+     * @return clan players read from the database on a cache miss
+     */
+    public long getLoadedClanPlayerCount() {
+        return loadedClanPlayers;
+    }
+
+    /**
+     * @return clan players read from the database while logging in
+     */
+    public long getPrefetchedClanPlayerCount() {
+        return prefetchedClanPlayers;
+    }
+
+    /**
+     * @return clan players dropped from the cache
+     */
+    public long getEvictedClanPlayerCount() {
+        return clanPlayers.getEvictedCount() + legacyClanPlayers.getEvictedCount();
     }
 
     /**
@@ -204,7 +678,18 @@ public final class ClanManager {
      * @return
      */
     public ClanPlayer getClanPlayerJoinEvent(Player player) {
-        SimpleClans.getInstance().getStorageManager().importFromDatabaseOnePlayer(player);
+        StorageManager storage = SimpleClans.getInstance().getStorageManager();
+        StorageManager.ClanPlayerRecord record = joinRecords.remove(player.getUniqueId());
+
+        // a pending change made since the record was read would be lost by importing it
+        if (record != null && record.getAge() <= plugin.getSettingsManager().getJoinPrefetchTimeout()
+                && !storage.hasPendingWrites(player.getUniqueId())) {
+            storage.importClanPlayerRecord(player, record);
+        } else {
+            SimpleClans.debug("No fresh record for " + player.getName() + ", reloading on join");
+            storage.importFromDatabaseOnePlayer(player);
+        }
+
         if (SimpleClans.getInstance().hasUUID()) {
             return getClanPlayer(player.getUniqueId());
         } else {
@@ -240,7 +725,7 @@ public final class ClanManager {
         if (SimpleClans.getInstance().hasUUID()) {
             cp = getClanPlayerName(playerName);
         } else {
-            cp = clanPlayers.get(playerName.toLowerCase());
+            cp = findClanPlayer(playerName);
         }
 
         if (cp == null) {
@@ -262,7 +747,7 @@ public final class ClanManager {
      * @return
      */
     public ClanPlayer getClanPlayer(UUID playerUniqueId) {
-        ClanPlayer cp = clanPlayers.get(playerUniqueId.toString());
+        ClanPlayer cp = findClanPlayer(playerUniqueId);
 
         if (cp == null) {
             return null;
@@ -289,7 +774,7 @@ public final class ClanManager {
             return null;
         }
 
-        ClanPlayer cp = clanPlayers.get(uuid.toString());
+        ClanPlayer cp = findClanPlayer(uuid);
 
         if (cp == null) {
             return null;
@@ -316,7 +801,7 @@ public final class ClanManager {
         if (SimpleClans.getInstance().hasUUID()) {
             return getClanPlayerName(playerName);
         } else {
-            return clanPlayers.get(playerName.toLowerCase());
+            return loadClanPlayer(playerName);
         }
     }
 
@@ -330,7 +815,7 @@ public final class ClanManager {
      * @return
      */
     public ClanPlayer getAnyClanPlayer(UUID playerUniqueId) {
-        return clanPlayers.get(playerUniqueId.toString());
+        return loadClanPlayer(playerUniqueId);
     }
 
     /**
@@ -341,11 +826,13 @@ public final class ClanManager {
      */
     @Deprecated
     public ClanPlayer getCreateClanPlayer(String playerName) {
-        if (clanPlayers.containsKey(playerName.toLowerCase())) {
-            return clanPlayers.get(playerName.toLowerCase());
+        ClanPlayer cp = loadClanPlayer(playerName);
+
+        if (cp != null) {
+            return cp;
         }
 
-        ClanPlayer cp = new ClanPlayer(playerName);
+        cp = new ClanPlayer(playerName);
 
         plugin.getStorageManager().insertClanPlayer(cp);
         importClanPlayer(cp);
@@ -379,11 +866,13 @@ public final class ClanManager {
      * @return
      */
     public ClanPlayer getCreateClanPlayer(UUID playerUniqueId) {
-        if (clanPlayers.containsKey(playerUniqueId.toString())) {
-            return clanPlayers.get(playerUniqueId.toString());
+        ClanPlayer cp = loadClanPlayer(playerUniqueId);
+
+        if (cp != null) {
+            return cp;
         }
 
-        ClanPlayer cp = new ClanPlayer(playerUniqueId);
+        cp = new ClanPlayer(playerUniqueId);
 
         plugin.getStorageManager().insertClanPlayer(cp);
         importClanPlayer(cp);
@@ -1122,7 +1611,7 @@ public final class ClanManager {
 
             plugin.getServer().getConsoleSender().sendMessage(eyeMessage);
 
-            List<ClanPlayer> cps = cp.getClan().getMembers();
+            List<ClanPlayer> cps = cp.getClan().getOnlineMembers();
 
             for (ClanPlayer cpp : cps) {
                 Player member = cpp.toPlayer();
@@ -1215,8 +1704,8 @@ public final class ClanManager {
             Player self = cp.toPlayer();
             ChatBlock.sendMessage(self, message);
 
-            Set<ClanPlayer> allies = cp.getClan().getAllAllyMembers();
-            allies.addAll(cp.getClan().getMembers());
+            Set<ClanPlayer> allies = cp.getClan().getAllAllyOnlineMembers();
+            allies.addAll(cp.getClan().getOnlineMembers());
 
             for (ClanPlayer ally : allies) {
                 if (ally.isMutedAlly()) {
@@ -0,0 +1,156 @@
+package net.sacredlabyrinth.phaed.simpleclans.managers;
+
+import net.sacredlabyrinth.phaed.simpleclans.ClanPlayer;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The clan players held in memory under one kind of key.
+ * <p>
+ * Resident players stay until they are released, the others are kept in a cache that drops the
+ * player that went unused the longest once it is full.
+ *
+ * @param <K> the key, a uuid, or a lowercase name on servers not migrated to uuids
+ * @author phaed
+ */
+abstract class ClanPlayerRegistry<K> {
+
+    private final HashMap<K, ClanPlayer> resident = new HashMap<>();
+    private final LinkedHashMap<K, ClanPlayer> cached;
+    private long evicted;
+
+    /**
+     * @param cacheSize most players held in the cache
+     */
+    ClanPlayerRegistry(final int cacheSize) {
+        // access ordered, so the player that went unused the longest is dropped first
+        cached = new LinkedHashMap<K, ClanPlayer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, ClanPlayer> eldest) {
+                if (size() <= cacheSize) {
+                    return false;
+                }
+
+                ClanPlayer cp = eldest.getValue();
+
+                if (isResident(cp)) {
+                    resident.put(eldest.getKey(), cp);
+                } else {
+                    evicted(cp);
+                    evicted++;
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @param cp
+     * @return whether the clan player has to stay in memory
+     */
+    protected abstract boolean isResident(ClanPlayer cp);
+
+    /**
+     * Called when a clan player is dropped from the cache
+     *
+     * @param cp
+     */
+    protected abstract void evicted(ClanPlayer cp);
+
+    /**
+     * @param key
+     * @return the clan player, null if it is not in memory
+     */
+    ClanPlayer get(K key) {
+        ClanPlayer cp = resident.get(key);
+
+        if (cp == null) {
+            cp = cached.get(key);
+        }
+
+        return cp;
+    }
+
+    /**
+     * Store a clan player, replacing the one held under the same key
+     *
+     * @param key
+     * @param cp
+     * @param keep whether it stays until released rather than going to the cache
+     * @return the clan player that was held, null if none was
+     */
+    ClanPlayer put(K key, ClanPlayer cp, boolean keep) {
+        ClanPlayer old = remove(key);
+
+        if (keep) {
+            resident.put(key, cp);
+        } else {
+            cached.put(key, cp);
+        }
+
+        return old;
+    }
+
+    /**
+     * Moves a resident clan player to the cache
+     *
+     * @param key
+     */
+    void release(K key) {
+        ClanPlayer cp = resident.remove(key);
+
+        if (cp != null) {
+            cached.put(key, cp);
+        }
+    }
+
+    /**
+     * @param key
+     * @return the clan player that was held, null if none was
+     */
+    ClanPlayer remove(K key) {
+        ClanPlayer cp = resident.remove(key);
+        ClanPlayer old = cached.remove(key);
+        return cp != null ? cp : old;
+    }
+
+    /**
+     * Drops every clan player
+     */
+    void clear() {
+        resident.clear();
+        cached.clear();
+    }
+
+    /**
+     * @param out receives every clan player held
+     */
+    void addAllTo(Collection<ClanPlayer> out) {
+        out.addAll(resident.values());
+        out.addAll(cached.values());
+    }
+
+    /**
+     * @return number of resident clan players
+     */
+    int getResidentCount() {
+        return resident.size();
+    }
+
+    /**
+     * @return number of clan players in the cache
+     */
+    int getCachedCount() {
+        return cached.size();
+    }
+
+    /**
+     * @return clan players dropped from the cache
+     */
+    long getEvictedCount() {
+        return evicted;
+    }
+}
@@ -2,6 +2,7 @@ package net.sacredlabyrinth.phaed.simpleclans.managers;
 
 import net.sacredlabyrinth.phaed.simpleclans.Helper;
 import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+import net.sacredlabyrinth.phaed.simpleclans.uuid.UUIDFetcher;
 import net.sacredlabyrinth.phaed.simpleclans.uuid.UUIDMigration;
 import org.bukkit.configuration.file.FileConfiguration;
 
@@ -59,6 +60,8 @@ public final class SettingsManager {
     private int purgeClan;
     private int purgeUnverified;
     private int purgePlayers;
+    private int purgeChunkSize;
+    private long purgeInterval;
     private int requestFreqencySecs;
     private String requestMessageColor;
     private int pageSize;
@@ -137,6 +140,43 @@ public final class SettingsManager {
     private boolean allowReGroupCommand;
     private boolean useThreads;
     private boolean useBungeeCord;
+    private int poolMaxSize;
+    private int poolMinIdle;
+    private long poolBorrowTimeout;
+    private long poolMaxLifetime;
+    private long poolIdleTimeout;
+    private long poolLeakDetection;
+    private int poolValidationTimeout;
+    private int poolStatementCacheSize;
+    private int importFetchSize;
+    private int importParserThreads;
+    private int executorThreads;
+    private int executorQueueCapacity;
+    private boolean writeBehind;
+    private long writeBehindWindow;
+    private int writeBehindBatchSize;
+    private int killBufferCapacity;
+    private int killBufferBatchSize;
+    private long killBufferLinger;
+    private boolean killBufferBlock;
+    private int killReportLimit;
+    private boolean killRetention;
+    private int killRetentionDays;
+    private int killRetentionChunkSize;
+    private long killRetentionInterval;
+    private boolean binaryUuids;
+    private boolean lazyPlayers;
+    private int lazyPlayersCacheSize;
+    private long joinPrefetchTimeout;
+    private boolean snapshot;
+    private long snapshotInterval;
+    private long snapshotMargin;
+    private int uuidMigrationThreads;
+    private long uuidCacheTtl;
+    private long uuidCacheNegativeTtl;
+    private String uuidProfileUrl;
+    private long uuidResolverWindow;
+    private int uuidResolverRequestsPerMinute;
     private boolean forceCommandPriority;
     private int maxAsksPerRequest;
     private int maxMembers;
@@ -209,6 +249,8 @@ public final class SettingsManager {
         purgeClan = getConfig().getInt("purge.inactive-clan-days");
         purgeUnverified = getConfig().getInt("purge.unverified-clan-days");
         purgePlayers = getConfig().getInt("purge.inactive-player-data-days");
+        purgeChunkSize = getConfig().getInt("purge.chunk-size");
+        purgeInterval = getConfig().getLong("purge.interval-minutes");
         requestFreqencySecs = getConfig().getInt("request.ask-frequency-secs");
         requestMessageColor = getConfig().getString("request.message-color");
         setMaxAsksPerRequest(getConfig().getInt("request.max-asks-per-request"));
@@ -290,6 +332,43 @@ public final class SettingsManager {
         allowReGroupCommand = getConfig().getBoolean("settings.allow-regroup-command");
         useThreads = getConfig().getBoolean("performance.use-threads");
         useBungeeCord = getConfig().getBoolean("performance.use-bungeecord");
+        poolMaxSize = getConfig().getInt("performance.pool.max-size");
+        poolMinIdle = getConfig().getInt("performance.pool.min-idle");
+        poolBorrowTimeout = getConfig().getLong("performance.pool.borrow-timeout-millis");
+        poolMaxLifetime = getConfig().getLong("performance.pool.max-lifetime-secs");
+        poolIdleTimeout = getConfig().getLong("performance.pool.idle-timeout-secs");
+        poolLeakDetection = getConfig().getLong("performance.pool.leak-detection-secs");
+        poolValidationTimeout = getConfig().getInt("performance.pool.validation-timeout-secs");
+        poolStatementCacheSize = getConfig().getInt("performance.pool.statement-cache-size");
+        importFetchSize = getConfig().getInt("performance.import.fetch-size");
+        importParserThreads = getConfig().getInt("performance.import.parser-threads");
+        executorThreads = getConfig().getInt("performance.executor.threads");
+        executorQueueCapacity = getConfig().getInt("performance.executor.queue-capacity");
+        writeBehind = getConfig().getBoolean("performance.write-behind.enabled");
+        writeBehindWindow = getConfig().getLong("performance.write-behind.window-millis");
+        writeBehindBatchSize = getConfig().getInt("performance.write-behind.batch-size");
+        killBufferCapacity = getConfig().getInt("performance.kill-buffer.capacity");
+        killBufferBatchSize = getConfig().getInt("performance.kill-buffer.batch-size");
+        killBufferLinger = getConfig().getLong("performance.kill-buffer.linger-millis");
+        killBufferBlock = getConfig().getString("performance.kill-buffer.full-policy").equalsIgnoreCase("block");
+        killReportLimit = getConfig().getInt("performance.kill-totals.report-limit");
+        killRetention = getConfig().getBoolean("performance.kill-retention.enabled");
+        killRetentionDays = getConfig().getInt("performance.kill-retention.raw-days");
+        killRetentionChunkSize = getConfig().getInt("performance.kill-retention.chunk-size");
+        killRetentionInterval = getConfig().getLong("performance.kill-retention.interval-minutes");
+        binaryUuids = getConfig().getString("performance.uuid-format").equalsIgnoreCase("binary");
+        lazyPlayers = getConfig().getBoolean("performance.lazy-players.enabled");
+        lazyPlayersCacheSize = getConfig().getInt("performance.lazy-players.cache-size");
+        joinPrefetchTimeout = getConfig().getLong("performance.join-prefetch.timeout-millis");
+        snapshot = getConfig().getBoolean("performance.snapshot.enabled");
+        snapshotInterval = getConfig().getLong("performance.snapshot.interval-minutes");
+        snapshotMargin = getConfig().getLong("performance.snapshot.margin-secs");
+        uuidMigrationThreads = getConfig().getInt("performance.uuid-migration.threads");
+        uuidCacheTtl = getConfig().getLong("performance.uuid-cache.ttl-hours");
+        uuidCacheNegativeTtl = getConfig().getLong("performance.uuid-cache.negative-ttl-minutes");
+        uuidProfileUrl = getConfig().getString("performance.uuid-resolver.profile-url");
+        uuidResolverWindow = getConfig().getLong("performance.uuid-resolver.window-millis");
+        uuidResolverRequestsPerMinute = getConfig().getInt("performance.uuid-resolver.requests-per-minute");
         maxMembers = getConfig().getInt("clan.max-members");
 
         // migrate from old way of adding ports
@@ -408,7 +487,13 @@ public final class SettingsManager {
     @Deprecated
     public boolean isBanned(String playerName) {
         if (SimpleClans.getInstance().hasUUID()) {
-            playerName = UUIDMigration.getForcedPlayerUUID(playerName).toString();
+            UUID playerUniqueId = UUIDMigration.getForcedPlayerUUID(playerName);
+
+            if (playerUniqueId == null) {
+                return false;
+            }
+
+            playerName = playerUniqueId.toString();
         }
         for (String pl : getBannedPlayers()) {
             if (pl.equalsIgnoreCase(playerName)) {
@@ -427,7 +512,13 @@ public final class SettingsManager {
     @Deprecated
     public void addBanned(String playerName) {
         if (SimpleClans.getInstance().hasUUID()) {
-            playerName = UUIDMigration.getForcedPlayerUUID(playerName).toString();
+            UUID playerUniqueId = UUIDMigration.getForcedPlayerUUID(playerName);
+
+            if (playerUniqueId == null) {
+                return;
+            }
+
+            playerName = playerUniqueId.toString();
         }
         if (!bannedPlayers.contains(playerName)) {
             getBannedPlayers().add(playerName);
@@ -444,7 +535,13 @@ public final class SettingsManager {
     @Deprecated
     public void removeBanned(String playerName) {
         if (SimpleClans.getInstance().hasUUID()) {
-            playerName = UUIDMigration.getForcedPlayerUUID(playerName).toString();
+            UUID playerUniqueId = UUIDMigration.getForcedPlayerUUID(playerName);
+
+            if (playerUniqueId == null) {
+                return;
+            }
+
+            playerName = playerUniqueId.toString();
         }
         if (getBannedPlayers().contains(playerName)) {
             getBannedPlayers().remove(playerName);
@@ -600,6 +697,20 @@ public final class SettingsManager {
         return purgePlayers;
     }
 
+    /**
+     * @return the maximum number of players purged per transaction
+     */
+    public int getPurgeChunkSize() {
+        return purgeChunkSize;
+    }
+
+    /**
+     * @return how often inactive clans and players are purged while running, in minutes, 0 to only purge on startup
+     */
+    public long getPurgeInterval() {
+        return purgeInterval;
+    }
+
     /**
      * @return the requestFreqencySecs
      */
@@ -1241,6 +1352,265 @@ public final class SettingsManager {
         return useBungeeCord;
     }
 
+    /**
+     * @return the maximum number of pooled database connections
+     */
+    public int getPoolMaxSize() {
+        return poolMaxSize;
+    }
+
+    /**
+     * @return the number of idle database connections kept open
+     */
+    public int getPoolMinIdle() {
+        return poolMinIdle;
+    }
+
+    /**
+     * @return how long to wait for a free database connection, in milliseconds
+     */
+    public long getPoolBorrowTimeout() {
+        return poolBorrowTimeout;
+    }
+
+    /**
+     * @return the maximum age of a database connection, in seconds
+     */
+    public long getPoolMaxLifetime() {
+        return poolMaxLifetime;
+    }
+
+    /**
+     * @return how long an unused database connection stays open, in seconds
+     */
+    public long getPoolIdleTimeout() {
+        return poolIdleTimeout;
+    }
+
+    /**
+     * @return how long a connection may be held before it is reported as leaked, in seconds
+     */
+    public long getPoolLeakDetection() {
+        return poolLeakDetection;
+    }
+
+    /**
+     * @return the timeout of the validation-on-borrow check, in seconds
+     */
+    public int getPoolValidationTimeout() {
+        return poolValidationTimeout;
+    }
+
+    /**
+     * @return the number of prepared statements cached per pooled connection
+     */
+    public int getPoolStatementCacheSize() {
+        return poolStatementCacheSize;
+    }
+
+    /**
+     * @return rows fetched per round trip when importing at startup
+     */
+    public int getImportFetchSize() {
+        return importFetchSize;
+    }
+
+    /**
+     * @return threads parsing flags during the startup import, 0 for one per processor
+     */
+    public int getImportParserThreads() {
+        return importParserThreads;
+    }
+
+    /**
+     * @return number of storage writer threads
+     */
+    public int getExecutorThreads() {
+        return executorThreads;
+    }
+
+    /**
+     * @return maximum number of writes queued per storage writer thread
+     */
+    public int getExecutorQueueCapacity() {
+        return executorQueueCapacity;
+    }
+
+    /**
+     * @return whether clan and player updates are coalesced and written in batches
+     */
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * @return how long updates are collected before being written, in milliseconds
+     */
+    public long getWriteBehindWindow() {
+        return writeBehindWindow;
+    }
+
+    /**
+     * @return the maximum number of rows sent in one batch
+     */
+    public int getWriteBehindBatchSize() {
+        return writeBehindBatchSize;
+    }
+
+    /**
+     * @return the maximum number of kills waiting to be written
+     */
+    public int getKillBufferCapacity() {
+        return killBufferCapacity;
+    }
+
+    /**
+     * @return the maximum number of kills written in one batch
+     */
+    public int getKillBufferBatchSize() {
+        return killBufferBatchSize;
+    }
+
+    /**
+     * @return how long a kill may wait for others to share its batch, in milliseconds
+     */
+    public long getKillBufferLinger() {
+        return killBufferLinger;
+    }
+
+    /**
+     * @return whether a full kill buffer blocks instead of dropping kills
+     */
+    public boolean isKillBufferBlock() {
+        return killBufferBlock;
+    }
+
+    /**
+     * @return maximum number of rows shown by the kill reports
+     */
+    public int getKillReportLimit() {
+        return killReportLimit;
+    }
+
+    /**
+     * @return whether old kills are rolled up into daily counts
+     */
+    public boolean isKillRetention() {
+        return killRetention;
+    }
+
+    /**
+     * @return number of days kills are kept as they were recorded
+     */
+    public int getKillRetentionDays() {
+        return killRetentionDays;
+    }
+
+    /**
+     * @return maximum number of kills rolled up per transaction
+     */
+    public int getKillRetentionChunkSize() {
+        return killRetentionChunkSize;
+    }
+
+    /**
+     * @return how often old kills are rolled up, in minutes
+     */
+    public long getKillRetentionInterval() {
+        return killRetentionInterval;
+    }
+
+    /**
+     * @return whether UUIDs should be stored as BINARY(16) instead of text
+     */
+    public boolean isBinaryUuids() {
+        return binaryUuids;
+    }
+
+    /**
+     * @return whether only clan members and online players are kept in memory
+     */
+    public boolean isLazyPlayers() {
+        return lazyPlayers;
+    }
+
+    /**
+     * @return how many other players are kept in memory after being loaded
+     */
+    public int getLazyPlayersCacheSize() {
+        return lazyPlayersCacheSize;
+    }
+
+    /**
+     * @return how old a BungeeCord player's record read at login may be when they join, in milliseconds
+     */
+    public long getJoinPrefetchTimeout() {
+        return joinPrefetchTimeout;
+    }
+
+    /**
+     * @return whether the clans and players are kept in a snapshot file to speed up startup
+     */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return how often the snapshot is written while running, in minutes, 0 to only write it on shutdown
+     */
+    public long getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    /**
+     * @return how far back rows are read again on startup despite the snapshot, in seconds, covers clock differences between servers
+     */
+    public long getSnapshotMargin() {
+        return snapshotMargin;
+    }
+
+    /**
+     * @return how many name lookups run at once while players are migrated to UUIDs
+     */
+    public int getUuidMigrationThreads() {
+        return uuidMigrationThreads;
+    }
+
+    /**
+     * @return how long a uuid looked up by name is trusted, in hours
+     */
+    public long getUuidCacheTtl() {
+        return uuidCacheTtl;
+    }
+
+    /**
+     * @return how long a name without an account is remembered, in minutes
+     */
+    public long getUuidCacheNegativeTtl() {
+        return uuidCacheNegativeTtl;
+    }
+
+    /**
+     * @return the endpoint uuids are looked up at, Mojang's unless testing against a stand-in
+     */
+    public String getUuidProfileUrl() {
+        return uuidProfileUrl == null || uuidProfileUrl.isEmpty() ? UUIDFetcher.PROFILE_URL : uuidProfileUrl;
+    }
+
+    /**
+     * @return how long a name lookup waits for others to share its request, in milliseconds
+     */
+    public long getUuidResolverWindow() {
+        return uuidResolverWindow;
+    }
+
+    /**
+     * @return most uuid lookup requests sent per minute
+     */
+    public int getUuidResolverRequestsPerMinute() {
+        return uuidResolverRequestsPerMinute;
+    }
+
     public String getTagSeparatorLeaderColor() {
         return Helper.toColor(tagSeparatorLeaderColor);
     }
@@ -3,9 +3,19 @@ package net.sacredlabyrinth.phaed.simpleclans.managers;
 import com.google.common.base.Charsets;
 
 import net.sacredlabyrinth.phaed.simpleclans.*;
+import net.sacredlabyrinth.phaed.simpleclans.storage.ClanSnapshot;
+import net.sacredlabyrinth.phaed.simpleclans.storage.ConnectionPool;
 import net.sacredlabyrinth.phaed.simpleclans.storage.DBCore;
+import net.sacredlabyrinth.phaed.simpleclans.storage.KillBuffer;
+import net.sacredlabyrinth.phaed.simpleclans.storage.KillRetention;
+import net.sacredlabyrinth.phaed.simpleclans.storage.KillTotals;
+import net.sacredlabyrinth.phaed.simpleclans.storage.Migration;
 import net.sacredlabyrinth.phaed.simpleclans.storage.MySQLCore;
+import net.sacredlabyrinth.phaed.simpleclans.storage.RowUpdate;
 import net.sacredlabyrinth.phaed.simpleclans.storage.SQLiteCore;
+import net.sacredlabyrinth.phaed.simpleclans.storage.SchemaMigrator;
+import net.sacredlabyrinth.phaed.simpleclans.storage.StorageExecutor;
+import net.sacredlabyrinth.phaed.simpleclans.storage.WriteBehindQueue;
 import net.sacredlabyrinth.phaed.simpleclans.uuid.UUIDFetcher;
 import net.sacredlabyrinth.phaed.simpleclans.uuid.UUIDMigration;
 
@@ -13,10 +23,22 @@ import org.bukkit.ChatColor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 /**
@@ -24,19 +46,81 @@ import java.util.logging.Level;
  */
 public final class StorageManager {
 
+    private static final int UUID_CHUNK = 5000;
+    private static final int UUID_LOOKUP_BATCH = 100;
+    private static final int UUID_LOOKUP_ATTEMPTS = 3;
+    private static final String RELATION_ALLY = "A";
+    private static final String RELATION_RIVAL = "R";
+    private static final String UPDATE_PLAYER_NAME = "UPDATE `sc_players` SET `name` = ? WHERE uuid = ?;";
+
     private SimpleClans plugin;
     private DBCore core;
+    private WriteBehindQueue writeBehind = new WriteBehindQueue();
+    // keys of the clans and players in flushes still being written, with the number of such flushes
+    private final Map<Object, Integer> flushing = new HashMap<>();
+    private KillBuffer killBuffer;
+    private KillTotals killTotals;
+    private KillRetention killRetention;
+    private boolean killDates;
+    private long schemaStamp;
+    private ClanSnapshot snapshot;
+    private StorageExecutor executor;
+    private String lastImportTimings = "";
+    private boolean killBufferUUID;
     private HashMap<String, ChatBlock> chatBlocks = new HashMap<>();
+    // keys of the players the running purge must leave alone, null while no purge runs
+    private volatile Set<String> purgeExclusions;
 
     /**
      *
      */
     public StorageManager() {
         plugin = SimpleClans.getInstance();
+        snapshot = new ClanSnapshot(new File(plugin.getDataFolder(), "snapshot.bin"));
+        executor = new StorageExecutor(plugin.getSettingsManager().getExecutorThreads(), plugin.getSettingsManager().getExecutorQueueCapacity());
         initiateDB();
-        if (SimpleClans.getInstance().getSettingsManager().isOnlineMode())
-            updateDatabase();
         importFromDatabase();
+        poolMaintenanceTask();
+        startKillBuffer();
+
+        if (plugin.getSettingsManager().isWriteBehind()) {
+            writeBehindTask();
+        }
+
+        if (killDates && plugin.getSettingsManager().isKillRetention()) {
+            killRetentionTask();
+        }
+
+        if (plugin.getSettingsManager().getPurgeInterval() > 0) {
+            purgeTask();
+        }
+
+        if (plugin.getSettingsManager().isSnapshot() && plugin.getSettingsManager().getSnapshotInterval() > 0) {
+            snapshotTask();
+        }
+    }
+
+    /**
+     * Starts the task that retires idle and expired connections and reports leaked ones
+     */
+    private void poolMaintenanceTask() {
+        plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, new Runnable() {
+            @Override
+            public void run() {
+                ConnectionPool pool = core.getPool();
+
+                if (pool != null) {
+                    pool.housekeep();
+                }
+            }
+        }, 20L * 30, 20L * 30);
+    }
+
+    /**
+     * @return the database connection pool
+     */
+    public ConnectionPool getPool() {
+        return core.getPool();
     }
 
     /**
@@ -82,27 +166,7 @@ public final class StorageManager {
 
             if (core.checkConnection()) {
                 SimpleClans.log("[SimpleClans] " + plugin.getLang("mysql.connection.successful"));
-
-                if (!core.existsTable("sc_clans")) {
-                    SimpleClans.log("Creating table: sc_clans");
-
-                    String query = "CREATE TABLE IF NOT EXISTS `sc_clans` ( `id` bigint(20) NOT NULL auto_increment, `verified` tinyint(1) default '0', `tag` varchar(25) NOT NULL, `color_tag` varchar(25) NOT NULL, `name` varchar(100) NOT NULL, `friendly_fire` tinyint(1) default '0', `founded` bigint NOT NULL, `last_used` bigint NOT NULL, `packed_allies` text NOT NULL, `packed_rivals` text NOT NULL, `packed_bb` mediumtext NOT NULL, `cape_url` varchar(255) NOT NULL, `flags` text NOT NULL, `balance` double(64,2), PRIMARY KEY  (`id`), UNIQUE KEY `uq_simpleclans_1` (`tag`));";
-                    core.execute(query);
-                }
-
-                if (!core.existsTable("sc_players")) {
-                    SimpleClans.log("Creating table: sc_players");
-
-                    String query = "CREATE TABLE IF NOT EXISTS `sc_players` ( `id` bigint(20) NOT NULL auto_increment, `name` varchar(16) NOT NULL, `leader` tinyint(1) default '0', `tag` varchar(25) NOT NULL, `friendly_fire` tinyint(1) default '0', `neutral_kills` int(11) default NULL, `rival_kills` int(11) default NULL, `civilian_kills` int(11) default NULL, `deaths` int(11) default NULL, `last_seen` bigint NOT NULL, `join_date` bigint NOT NULL, `trusted` tinyint(1) default '0', `flags` text NOT NULL, `packed_past_clans` text, PRIMARY KEY  (`id`), UNIQUE KEY `uq_sc_players_1` (`name`));";
-                    core.execute(query);
-                }
-
-                if (!core.existsTable("sc_kills")) {
-                    SimpleClans.log("Creating table: sc_kills");
-
-                    String query = "CREATE TABLE IF NOT EXISTS `sc_kills` ( `kill_id` bigint(20) NOT NULL auto_increment, `attacker` varchar(16) NOT NULL, `attacker_tag` varchar(16) NOT NULL, `victim` varchar(16) NOT NULL, `victim_tag` varchar(16) NOT NULL, `kill_type` varchar(1) NOT NULL, PRIMARY KEY  (`kill_id`));";
-                    core.execute(query);
-                }
+                migrateDatabase();
             } else {
                 SimpleClans.getInstance().getServer().getConsoleSender().sendMessage("[SimpleClans] " + ChatColor.RED + plugin.getLang("mysql.connection.failed"));
             }
@@ -111,27 +175,7 @@ public final class StorageManager {
 
             if (core.checkConnection()) {
                 SimpleClans.log("[SimpleClans] " + plugin.getLang("sqlite.connection.successful"));
-
-                if (!core.existsTable("sc_clans")) {
-                    SimpleClans.log("Creating table: sc_clans");
-
-                    String query = "CREATE TABLE IF NOT EXISTS `sc_clans` ( `id` bigint(20), `verified` tinyint(1) default '0', `tag` varchar(25) NOT NULL, `color_tag` varchar(25) NOT NULL, `name` varchar(100) NOT NULL, `friendly_fire` tinyint(1) default '0', `founded` bigint NOT NULL, `last_used` bigint NOT NULL, `packed_allies` text NOT NULL, `packed_rivals` text NOT NULL, `packed_bb` mediumtext NOT NULL, `cape_url` varchar(255) NOT NULL, `flags` text NOT NULL, `balance` double(64,2) default 0.0,  PRIMARY KEY  (`id`), UNIQUE (`tag`));";
-                    core.execute(query);
-                }
-
-                if (!core.existsTable("sc_players")) {
-                    SimpleClans.log("Creating table: sc_players");
-
-                    String query = "CREATE TABLE IF NOT EXISTS `sc_players` ( `id` bigint(20), `name` varchar(16) NOT NULL, `leader` tinyint(1) default '0', `tag` varchar(25) NOT NULL, `friendly_fire` tinyint(1) default '0', `neutral_kills` int(11) default NULL, `rival_kills` int(11) default NULL, `civilian_kills` int(11) default NULL, `deaths` int(11) default NULL, `last_seen` bigint NOT NULL, `join_date` bigint NOT NULL, `trusted` tinyint(1) default '0', `flags` text NOT NULL, `packed_past_clans` text, PRIMARY KEY  (`id`), UNIQUE (`name`));";
-                    core.execute(query);
-                }
-
-                if (!core.existsTable("sc_kills")) {
-                    SimpleClans.log("Creating table: sc_kills");
-
-                    String query = "CREATE TABLE IF NOT EXISTS `sc_kills` ( `kill_id` bigint(20), `attacker` varchar(16) NOT NULL, `attacker_tag` varchar(16) NOT NULL, `victim` varchar(16) NOT NULL, `victim_tag` varchar(16) NOT NULL, `kill_type` varchar(1) NOT NULL, PRIMARY KEY  (`kill_id`));";
-                    core.execute(query);
-                }
+                migrateDatabase();
             } else {
                 SimpleClans.getInstance().getServer().getConsoleSender().sendMessage("[SimpleClans] " + ChatColor.RED + plugin.getLang("sqlite.connection.failed"));
             }
@@ -139,48 +183,106 @@ public final class StorageManager {
     }
 
     /**
-     * Closes DB connection
+     * Writes the buffered kills and closes DB connection
      */
     public void closeConnection() {
+        if (killRetention != null) {
+            killRetention.shutdown();
+        }
+
+        if (killBuffer != null) {
+            killBuffer.shutdown();
+        }
+
+        if (killTotals != null) {
+            killTotals.shutdown();
+        }
+
         core.close();
     }
 
     /**
-     * Import all data from database to memory
+     * Import all data from database to memory.
+     * <p>
+     * Rows are streamed in with a forward-only cursor while their JSON flags are parsed on a
+     * worker pool, players are only linked to their clans once everything has been read.
+     * With a snapshot only the rows changed since it was taken are read.
      */
     public void importFromDatabase() {
+        // on a reload the objects about to be dropped may hold changes the rows read below do not have yet
+        flushPendingWrites();
+
+        // on a reload players are online and in memory, read them before the data is dropped
+        Set<String> keep = plugin.getClanManager().getPurgeExclusions(inactiveSince(plugin.getSettingsManager().getPurgePlayers()));
         plugin.getClanManager().cleanData();
 
-        List<Clan> clans = retrieveClans();
-        purgeClans(clans);
+        ImportTimer timer = new ImportTimer();
+        ExecutorService parser = Executors.newFixedThreadPool(parserThreads());
 
-        for (Clan clan : clans) {
-            plugin.getClanManager().importClan(clan);
-        }
+        try {
+            purgeClans();
+            timer.stage("clans purged");
 
-        for (Clan clan : clans) {
-            clan.validateWarring();
-        }
+            ClanSnapshot.Contents contents = readSnapshot();
 
-        if (!clans.isEmpty()) {
-            SimpleClans.log(MessageFormat.format("[SimpleClans] " + plugin.getLang("clans"), clans.size()));
-        }
+            if (contents != null) {
+                timer.stage("snapshot read");
+            }
 
-        List<ClanPlayer> cps = retrieveClanPlayers();
-        purgeClanPlayers(cps);
+            List<Clan> clans = contents == null ? readClans("SELECT * FROM  `sc_clans`;", new Object[0], parser) : refreshClans(contents, parser);
+            readClanChildren(clans, null);
+            timer.stage("clans read");
 
-        for (ClanPlayer cp : cps) {
-            Clan tm = cp.getClan();
+            for (Clan clan : clans) {
+                plugin.getClanManager().importClan(clan);
+            }
 
-            if (tm != null) {
-                tm.importMember(cp);
+            for (Clan clan : clans) {
+                clan.validateWarring();
             }
-            plugin.getClanManager().importClanPlayer(cp);
-        }
 
-        if (!cps.isEmpty()) {
-            SimpleClans.log(MessageFormat.format("[SimpleClans] " + plugin.getLang("clan.players"), cps.size()));
+            timer.stage("clans linked");
+
+            if (!clans.isEmpty()) {
+                SimpleClans.log(MessageFormat.format("[SimpleClans] " + plugin.getLang("clans"), clans.size()));
+            }
+
+            purgeClanPlayers(keep);
+            timer.stage("players purged");
+
+            List<String> tags = new ArrayList<>();
+            List<ClanPlayer> cps;
+
+            if (contents == null || contents.getClanPlayers() == null) {
+                cps = readClanPlayers("SELECT * FROM  `sc_players`;", new Object[0], parser, tags);
+            } else {
+                cps = refreshClanPlayers(contents, parser, tags);
+            }
+
+            timer.stage("players read");
+
+            linkClanPlayers(cps, tags);
+
+            for (ClanPlayer cp : cps) {
+                Clan tm = cp.getClan();
+
+                if (tm != null) {
+                    tm.importMember(cp);
+                }
+                plugin.getClanManager().importClanPlayer(cp);
+            }
+
+            timer.stage("players linked");
+
+            if (!cps.isEmpty()) {
+                SimpleClans.log(MessageFormat.format("[SimpleClans] " + plugin.getLang("clan.players"), cps.size()));
+            }
+        } finally {
+            parser.shutdown();
         }
+
+        lastImportTimings = timer.toString();
+        SimpleClans.log("[SimpleClans] Import took " + lastImportTimings);
     }
 
     /**
@@ -190,9 +292,28 @@ public final class StorageManager {
      * @param player
      */
     public void importFromDatabaseOnePlayer(Player player) {
+        // changes made here while the player was away must reach the database before it is read back
+        flushClanPlayer(player.getUniqueId());
+        importClanPlayerRecord(player, readClanPlayerRecord(player.getUniqueId()));
+    }
+
+    /**
+     * Replaces a player's data in memory with a record read from the database
+     * Used for BungeeCord Reload ClanPlayer and your Clan
+     *
+     * @param player
+     * @param record
+     */
+    public void importClanPlayerRecord(Player player, ClanPlayerRecord record) {
+        ClanPlayer old = plugin.getClanManager().getClanPlayer(player.getUniqueId());
+
+        // the player may have left or changed clans on another server
+        if (old != null && old.getClan() != null) {
+            old.getClan().removeMember(player.getUniqueId());
+        }
         plugin.getClanManager().deleteClanPlayerFromMemory(player.getUniqueId());
 
-        ClanPlayer cp = retrieveOneClanPlayer(player.getUniqueId());
+        ClanPlayer cp = linkClanPlayerRecord(record);
 
         if (cp != null) {
             Clan tm = cp.getClan();
@@ -206,347 +327,374 @@ public final class StorageManager {
         }
     }
 
-    private void purgeClans(List<Clan> clans) {
-        List<Clan> purge = new ArrayList<>();
+    /**
+     * Deletes the clans that have been inactive for longer than the purge settings allow, along with
+     * their relations and bulletin boards, in one transaction. Runs before the clans are read.
+     */
+    private void purgeClans() {
+        String inactive = "`last_used` > 0 AND ((`verified` = 1 AND `last_used` <= ?) OR (`verified` = 0 AND `last_used` <= ?))";
+        long verified = inactiveSince(plugin.getSettingsManager().getPurgeClan());
+        long unverified = inactiveSince(plugin.getSettingsManager().getPurgeUnverified());
+        List<String> names = new ArrayList<>();
+        Connection connection = core.getConnection();
+
+        if (connection == null) {
+            return;
+        }
+
+        PreparedStatement select = null;
+        ResultSet res = null;
 
-        for (Clan clan : clans) {
-            if (clan.isVerified()) {
-                if (clan.getInactiveDays() > plugin.getSettingsManager().getPurgeClan()) {
-                    purge.add(clan);
-                }
-            } else {
-                if (clan.getInactiveDays() > plugin.getSettingsManager().getPurgeUnverified()) {
-                    purge.add(clan);
-                }
+        try {
+            connection.setAutoCommit(false);
+
+            select = connection.prepareStatement("SELECT `name` FROM `sc_clans` WHERE " + inactive + ";");
+            getPool().bind(select, verified, unverified);
+            res = select.executeQuery();
+
+            while (res.next()) {
+                names.add(res.getString("name"));
             }
-        }
 
-        for (Clan clan : purge) {
-            SimpleClans.log("[SimpleClans] " + MessageFormat.format(plugin.getLang("purging.clan"), clan.getName()));
-            deleteClan(clan);
-            clans.remove(clan);
-        }
-    }
+            if (names.isEmpty()) {
+                return;
+            }
 
-    private void purgeClanPlayers(List<ClanPlayer> cps) {
-        List<ClanPlayer> purge = new ArrayList<>();
+            String tags = "SELECT `tag` FROM `sc_clans` WHERE " + inactive;
+            executeUpdate(connection, "DELETE FROM `sc_clan_relations` WHERE `clan_tag` IN (" + tags + ") OR `other_tag` IN (" + tags + ");", verified, unverified, verified, unverified);
+            executeUpdate(connection, "DELETE FROM `sc_clan_bb` WHERE `clan_tag` IN (" + tags + ");", verified, unverified);
+            executeUpdate(connection, "DELETE FROM `sc_clans` WHERE " + inactive + ";", verified, unverified);
+            connection.commit();
 
-        for (ClanPlayer cp : cps) {
-            if (cp.getInactiveDays() > plugin.getSettingsManager().getPurgePlayers() && !cp.isLeader()) {
-                purge.add(cp);
+            for (String name : names) {
+                SimpleClans.log("[SimpleClans] " + MessageFormat.format(plugin.getLang("purging.clan"), name));
             }
+        } catch (SQLException ex) {
+            SimpleClans.getLog().log(Level.SEVERE, "[SimpleClans] Could not purge inactive clans", ex);
+        } finally {
+            // the pool rolls back anything left uncommitted when the connection is handed back
+            ConnectionPool.closeQuietly(res, select, connection);
+        }
+    }
+
+    /**
+     * Deletes the players that have been inactive for longer than the purge settings allow, along with
+     * their kills. Leaders are kept. Players are deleted in chunks that each commit on their own.
+     *
+     * @param exclude keys of the players to keep whatever their row says, more can be added while the purge runs
+     * @return the keys the purged players are stored under in memory
+     */
+    public List<String> purgeClanPlayers(Set<String> exclude) {
+        long cutoff = inactiveSince(plugin.getSettingsManager().getPurgePlayers());
+        int chunkSize = Math.max(1, plugin.getSettingsManager().getPurgeChunkSize());
+        boolean totals = core.existsTable("sc_kill_totals");
+        List<String> purged = new ArrayList<>();
+
+        try {
+            long lastId = 0;
+
+            // each chunk starts after the rows of the one before, so excluded rows are not read again
+            do {
+                lastId = purgeClanPlayerChunk(cutoff, chunkSize, totals, lastId, exclude, purged);
+            } while (lastId > 0);
+        } catch (SQLException ex) {
+            SimpleClans.getLog().log(Level.SEVERE, "[SimpleClans] Could not purge inactive players", ex);
         }
 
-        for (ClanPlayer cp : purge) {
-            SimpleClans.log("[SimpleClans] " + MessageFormat.format(plugin.getLang("purging.player.data"), cp.getName()));
-            deleteClanPlayer(cp);
-            cps.remove(cp);
+        if (!purged.isEmpty()) {
+            SimpleClans.log("[SimpleClans] " + MessageFormat.format(plugin.getLang("purged.players"), purged.size()));
         }
+
+        return purged;
     }
 
     /**
-     * Retrieves all simple clans from the database
+     * Deletes one chunk of inactive players
      *
-     * @return
+     * @param cutoff    last seen date at or before which a player is inactive
+     * @param chunkSize
+     * @param totals    whether sc_kill_totals exists
+     * @param afterId   the last row of the chunk before, 0 for the first
+     * @param exclude   keys of the players to keep
+     * @param purged    receives the keys of the purged players
+     * @return the last row of this chunk, 0 if there were no rows left
+     * @throws SQLException
      */
-    public List<Clan> retrieveClans() {
-        List<Clan> out = new ArrayList<>();
+    private long purgeClanPlayerChunk(long cutoff, int chunkSize, boolean totals, long afterId, Set<String> exclude, List<String> purged) throws SQLException {
+        boolean mysql = plugin.getSettingsManager().isUseMysql();
+        boolean uuid = SimpleClans.getInstance().hasUUID();
+        // sqlite tables without an integer primary key are only ordered by their rowid
+        String key = mysql ? "`id`" : "rowid";
+        String inactive = "`last_seen` > 0 AND `last_seen` <= ? AND `leader` = 0 AND " + key + " > ? AND " + key + " <= ?";
+        List<String> out = new ArrayList<>();
+        List<Object> kept = new ArrayList<>();
+        Connection connection = core.getConnection();
+
+        if (connection == null) {
+            return 0;
+        }
 
-        String query = "SELECT * FROM  `sc_clans`;";
-        ResultSet res = core.select(query);
+        PreparedStatement select = null;
+        ResultSet res = null;
 
-        if (res != null) {
-            try {
-                while (res.next()) {
-                    try {
-                        boolean verified = res.getBoolean("verified");
-                        boolean friendly_fire = res.getBoolean("friendly_fire");
-                        String tag = res.getString("tag");
-                        String color_tag = Helper.parseColors(res.getString("color_tag"));
-                        String name = res.getString("name");
-                        String packed_allies = res.getString("packed_allies");
-                        String packed_rivals = res.getString("packed_rivals");
-                        String packed_bb = res.getString("packed_bb");
-                        String cape_url = res.getString("cape_url");
-                        String flags = res.getString("flags");
-                        long founded = res.getLong("founded");
-                        long last_used = res.getLong("last_used");
-                        double balance = res.getDouble("balance");
-
-                        if (founded == 0) {
-                            founded = (new Date()).getTime();
-                        }
+        try {
+            connection.setAutoCommit(false);
 
-                        if (last_used == 0) {
-                            last_used = (new Date()).getTime();
-                        }
+            // mysql locks the chunk, so a player coming back in the meantime is not deleted
+            select = connection.prepareStatement("SELECT " + key + " AS row_id, `name`" + (uuid ? ", `uuid`" : "") + " FROM `sc_players` WHERE `last_seen` > 0 AND `last_seen` <= ? AND `leader` = 0 AND " + key + " > ? ORDER BY " + key + " LIMIT ?" + (mysql ? " FOR UPDATE;" : ";"));
+            getPool().bind(select, cutoff, afterId, chunkSize);
+            res = select.executeQuery();
 
-                        Clan clan = new Clan();
-                        clan.setFlags(flags);
-                        clan.setVerified(verified);
-                        clan.setFriendlyFire(friendly_fire);
-                        clan.setTag(tag);
-                        clan.setColorTag(color_tag);
-                        clan.setName(name);
-                        clan.setPackedAllies(packed_allies);
-                        clan.setPackedRivals(packed_rivals);
-                        clan.setPackedBb(packed_bb);
-                        clan.setCapeUrl(cape_url);
-                        clan.setFounded(founded);
-                        clan.setLastUsed(last_used);
-                        clan.setBalance(balance);
+            long lastId = 0;
 
-                        out.add(clan);
-                    } catch (Exception ex) {
-                        for (StackTraceElement el : ex.getStackTrace()) {
-                            System.out.print(el.toString());
-                        }
-                    }
+            while (res.next()) {
+                lastId = res.getLong("row_id");
+                String playerKey;
+
+                if (uuid) {
+                    UUID playerUniqueId = getPool().getUuid(res, 3);
+                    playerKey = playerUniqueId == null ? null : playerUniqueId.toString();
+                } else {
+                    playerKey = res.getString("name").toLowerCase();
+                }
+
+                // online players and players seen since their row was written are newer in memory
+                if (playerKey != null && exclude.contains(playerKey)) {
+                    kept.add(lastId);
+                } else if (playerKey != null) {
+                    out.add(playerKey);
                 }
-            } catch (SQLException ex) {
-                SimpleClans.getLog().severe(String.format("An Error occurred: %s", ex.getErrorCode()));
-                SimpleClans.getLog().log(Level.SEVERE, null, ex);
             }
-        }
 
-        return out;
+            if (lastId == 0) {
+                return 0;
+            }
+
+            StringBuilder notKept = new StringBuilder();
+
+            for (int i = 0; i < kept.size(); i++) {
+                notKept.append(i == 0 ? " AND " + key + " NOT IN (?" : ", ?");
+            }
+
+            if (!kept.isEmpty()) {
+                notKept.append(')');
+            }
+
+            String rows = inactive + notKept;
+            String chunk = " IN (SELECT `%s` FROM `sc_players` WHERE " + rows + ")";
+            List<Object> params = new ArrayList<>();
+            params.add(cutoff);
+            params.add(afterId);
+            params.add(lastId);
+            params.addAll(kept);
+            Object[] values = params.toArray();
+
+            // the counts only know the names the kills were made under
+            if (totals) {
+                executeUpdate(connection, "DELETE FROM `sc_kill_totals` WHERE `attacker`" + String.format(chunk, "name") + ";", values);
+            }
+
+            if (killDates) {
+                executeUpdate(connection, "DELETE FROM `sc_kills_daily` WHERE `attacker`" + String.format(chunk, "name") + ";", values);
+            }
+
+            if (uuid) {
+                executeUpdate(connection, "DELETE FROM `sc_kills` WHERE `attacker_uuid`" + String.format(chunk, "uuid") + ";", values);
+            } else {
+                executeUpdate(connection, "DELETE FROM `sc_kills` WHERE `attacker`" + String.format(chunk, "name") + ";", values);
+            }
+
+            executeUpdate(connection, "DELETE FROM `sc_players` WHERE " + rows + ";", values);
+            connection.commit();
+            purged.addAll(out);
+            return lastId;
+        } finally {
+            // the pool rolls back anything left uncommitted when the connection is handed back
+            ConnectionPool.closeQuietly(res, select, connection);
+        }
     }
 
     /**
-     * Retrieves one Clan from the database
-     * Used for BungeeCord Reload ClanPlayer and your Clan
-     *
-     * @param tagClan
-     * @return
+     * @param days
+     * @return the time before which an entity counts as inactive for longer than the number of days
      */
-    public Clan retrieveOneClan(String tagClan) {
-        Clan out = null;
+    private static long inactiveSince(int days) {
+        return System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days + 1L);
+    }
 
-        String query = "SELECT * FROM  `sc_clans` WHERE `tag` = '" + tagClan + "';";
-        ResultSet res = core.select(query);
+    private void executeUpdate(Connection connection, String query, Object... params) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(query);
 
-        if (res != null) {
-            try {
-                while (res.next()) {
-                    try {
-                        boolean verified = res.getBoolean("verified");
-                        boolean friendly_fire = res.getBoolean("friendly_fire");
-                        String tag = res.getString("tag");
-                        String color_tag = Helper.parseColors(res.getString("color_tag"));
-                        String name = res.getString("name");
-                        String packed_allies = res.getString("packed_allies");
-                        String packed_rivals = res.getString("packed_rivals");
-                        String packed_bb = res.getString("packed_bb");
-                        String cape_url = res.getString("cape_url");
-                        String flags = res.getString("flags");
-                        long founded = res.getLong("founded");
-                        long last_used = res.getLong("last_used");
-                        double balance = res.getDouble("balance");
-
-                        if (founded == 0) {
-                            founded = (new Date()).getTime();
-                        }
+        try {
+            getPool().bind(statement, params);
+            statement.executeUpdate();
+        } finally {
+            ConnectionPool.closeQuietly(statement);
+        }
+    }
 
-                        if (last_used == 0) {
-                            last_used = (new Date()).getTime();
-                        }
+    /**
+     * Starts the task that purges inactive clans and players while the server runs
+     */
+    private void purgeTask() {
+        long period = plugin.getSettingsManager().getPurgeInterval() * 60 * 20;
 
-                        Clan clan = new Clan();
-                        clan.setFlags(flags);
-                        clan.setVerified(verified);
-                        clan.setFriendlyFire(friendly_fire);
-                        clan.setTag(tag);
-                        clan.setColorTag(color_tag);
-                        clan.setName(name);
-                        clan.setPackedAllies(packed_allies);
-                        clan.setPackedRivals(packed_rivals);
-                        clan.setPackedBb(packed_bb);
-                        clan.setCapeUrl(cape_url);
-                        clan.setFounded(founded);
-                        clan.setLastUsed(last_used);
-                        clan.setBalance(balance);
+        plugin.getServer().getScheduler().runTaskTimer(plugin, new Runnable() {
+            @Override
+            public void run() {
+                plugin.getClanManager().purgeInactiveClans();
+
+                final Set<String> exclude = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                exclude.addAll(plugin.getClanManager().getPurgeExclusions(inactiveSince(plugin.getSettingsManager().getPurgePlayers())));
+                // players logging in while the purge runs are added as they join
+                purgeExclusions = exclude;
+
+                plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        final List<String> purged;
+
+                        try {
+                            purged = purgeClanPlayers(exclude);
+                        } finally {
+                            purgeExclusions = null;
+                        }
 
-                        out = clan;
-                    } catch (Exception ex) {
-                        for (StackTraceElement el : ex.getStackTrace()) {
-                            System.out.print(el.toString());
+                        if (!purged.isEmpty()) {
+                            plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+                                @Override
+                                public void run() {
+                                    plugin.getClanManager().forgetPurgedClanPlayers(purged);
+                                }
+                            });
                         }
                     }
-                }
-            } catch (SQLException ex) {
-                SimpleClans.getLog().severe(String.format("An Error occurred: %s", ex.getErrorCode()));
-                SimpleClans.getLog().log(Level.SEVERE, null, ex);
+                });
             }
-        }
+        }, period, period);
+    }
 
-        return out;
+    /**
+     * Keeps a joining player out of the purge that is running, if one is
+     *
+     * @param player
+     */
+    public void excludeFromPurge(Player player) {
+        Set<String> exclude = purgeExclusions;
+
+        if (exclude != null) {
+            exclude.add(SimpleClans.getInstance().hasUUID() ? player.getUniqueId().toString() : player.getName().toLowerCase());
+        }
     }
 
     /**
-     * Retrieves all clan players from the database
+     * Reads the snapshot taken on the last shutdown or since, if snapshots are enabled
      *
-     * @return
+     * @return the contents, null to read everything from the database
      */
-    public List<ClanPlayer> retrieveClanPlayers() {
-        List<ClanPlayer> out = new ArrayList<>();
+    private ClanSnapshot.Contents readSnapshot() {
+        if (!plugin.getSettingsManager().isSnapshot()) {
+            return null;
+        }
 
-        String query = "SELECT * FROM  `sc_players`;";
-        ResultSet res = core.select(query);
+        try {
+            return snapshot.read(schemaStamp, SimpleClans.getInstance().hasUUID());
+        } catch (IOException | RuntimeException ex) {
+            SimpleClans.getLog().log(Level.WARNING, "[SimpleClans] Could not read the snapshot, importing everything", ex);
+            snapshot.delete();
+            return null;
+        }
+    }
 
-        if (res != null) {
-            try {
-                while (res.next()) {
-                    try {
-                        String uuid = res.getString("uuid");
-                        String name = res.getString("name");
-                        String tag = res.getString("tag");
-                        boolean leader = res.getBoolean("leader");
-                        boolean friendly_fire = res.getBoolean("friendly_fire");
-                        boolean trusted = res.getBoolean("trusted");
-                        int neutral_kills = res.getInt("neutral_kills");
-                        int rival_kills = res.getInt("rival_kills");
-                        int civilian_kills = res.getInt("civilian_kills");
-                        int deaths = res.getInt("deaths");
-                        long last_seen = res.getLong("last_seen");
-                        long join_date = res.getLong("join_date");
-                        String flags = res.getString("flags");
-                        String packed_past_clans = Helper.parseColors(res.getString("packed_past_clans"));
-
-                        if (last_seen == 0) {
-                            last_seen = (new Date()).getTime();
-                        }
+    /**
+     * Writes the clans and players in memory to the snapshot, if snapshots are enabled.
+     * Must be called on the main thread, after the pending writes have been flushed.
+     *
+     * @param async whether to write the file on another thread
+     */
+    public void saveSnapshot(boolean async) {
+        if (!plugin.getSettingsManager().isSnapshot()) {
+            return;
+        }
 
-                        if (join_date == 0) {
-                            join_date = (new Date()).getTime();
-                        }
+        long watermark = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(plugin.getSettingsManager().getSnapshotMargin());
+        // with lazy loading only part of the players is in memory, they are all read on startup
+        List<ClanPlayer> cps = plugin.getSettingsManager().isLazyPlayers() ? null : plugin.getClanManager().getAllClanPlayers();
+        final byte[] data;
 
-                        ClanPlayer cp = new ClanPlayer();
-                        if (uuid != null) {
-                            cp.setUniqueId(UUID.fromString(uuid));
-                        }
-                        cp.setFlags(flags);
-                        cp.setName(name);
-                        cp.setLeader(leader);
-                        cp.setFriendlyFire(friendly_fire);
-                        cp.setNeutralKills(neutral_kills);
-                        cp.setRivalKills(rival_kills);
-                        cp.setCivilianKills(civilian_kills);
-                        cp.setDeaths(deaths);
-                        cp.setLastSeen(last_seen);
-                        cp.setJoinDate(join_date);
-                        cp.setPackedPastClans(packed_past_clans);
-                        cp.setTrusted(leader || trusted);
-
-                        if (!tag.isEmpty()) {
-                            Clan clan = SimpleClans.getInstance().getClanManager().getClan(tag);
-
-                            if (clan != null) {
-                                cp.setClan(clan);
-                            }
-                        }
+        try {
+            data = ClanSnapshot.encode(plugin.getClanManager().getClans(), cps, watermark, schemaStamp, SimpleClans.getInstance().hasUUID());
+        } catch (IOException ex) {
+            SimpleClans.getLog().log(Level.WARNING, "[SimpleClans] Could not take a snapshot", ex);
+            return;
+        }
 
-                        out.add(cp);
-                    } catch (Exception ex) {
-                        for (StackTraceElement el : ex.getStackTrace()) {
-                            System.out.print(el.toString());
-                        }
-                    }
+        Runnable write = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot.write(data);
+                } catch (IOException ex) {
+                    SimpleClans.getLog().log(Level.WARNING, "[SimpleClans] Could not write the snapshot", ex);
                 }
-            } catch (SQLException ex) {
-                SimpleClans.getLog().severe(String.format("An Error occurred: %s", ex.getErrorCode()));
-                SimpleClans.getLog().log(Level.SEVERE, null, ex);
             }
+        };
+
+        if (async) {
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, write);
+        } else {
+            write.run();
         }
+    }
 
-        return out;
+    /**
+     * Starts the task that writes the snapshot while running, so a crash does not lose it
+     */
+    private void snapshotTask() {
+        long period = plugin.getSettingsManager().getSnapshotInterval() * 60 * 20;
+
+        plugin.getServer().getScheduler().runTaskTimer(plugin, new Runnable() {
+            @Override
+            public void run() {
+                saveSnapshot(true);
+            }
+        }, period, period);
     }
 
     /**
-     * Retrieves one clan player from the database
-     * Used for BungeeCord Reload ClanPlayer and your Clan
+     * Retrieves all simple clans from the database
      *
-     * @param playerUniqueId
      * @return
      */
-    public ClanPlayer retrieveOneClanPlayer(UUID playerUniqueId) {
-        ClanPlayer out = null;
+    public List<Clan> retrieveClans() {
+        List<Clan> out = readClans("SELECT * FROM  `sc_clans`;", new Object[0], null);
+        readClanChildren(out, null);
+        return out;
+    }
 
-        String query = "SELECT * FROM `sc_players` WHERE `uuid` = '" + playerUniqueId.toString() + "';";
-        ResultSet res = core.select(query);
+    /**
+     * Streams clans from the database without their relations and bulletin boards
+     *
+     * @param query
+     * @param params
+     * @param parser pool the flags are parsed on, null to parse them on the calling thread
+     * @return
+     */
+    private List<Clan> readClans(String query, Object[] params, ExecutorService parser) {
+        List<Clan> out = new ArrayList<>();
+        ResultSet res = core.selectStreaming(query, plugin.getSettingsManager().getImportFetchSize(), params);
 
         if (res != null) {
+            FlagParser<Clan> flags = new FlagParser<>(parser);
+
             try {
+                ClanColumns columns = new ClanColumns(res);
+
                 while (res.next()) {
                     try {
-                        String uuid = res.getString("uuid");
-                        String name = res.getString("name");
-                        String tag = res.getString("tag");
-                        boolean leader = res.getBoolean("leader");
-                        boolean friendly_fire = res.getBoolean("friendly_fire");
-                        boolean trusted = res.getBoolean("trusted");
-                        int neutral_kills = res.getInt("neutral_kills");
-                        int rival_kills = res.getInt("rival_kills");
-                        int civilian_kills = res.getInt("civilian_kills");
-                        int deaths = res.getInt("deaths");
-                        long last_seen = res.getLong("last_seen");
-                        long join_date = res.getLong("join_date");
-                        String flags = res.getString("flags");
-                        String packed_past_clans = Helper.parseColors(res.getString("packed_past_clans"));
-
-                        if (last_seen == 0) {
-                            last_seen = (new Date()).getTime();
-                        }
-
-                        if (join_date == 0) {
-                            join_date = (new Date()).getTime();
-                        }
-
-                        ClanPlayer cp = new ClanPlayer();
-                        if (uuid != null) {
-                            cp.setUniqueId(UUID.fromString(uuid));
-                        }
-                        cp.setFlags(flags);
-                        cp.setName(name);
-                        cp.setLeader(leader);
-                        cp.setFriendlyFire(friendly_fire);
-                        cp.setNeutralKills(neutral_kills);
-                        cp.setRivalKills(rival_kills);
-                        cp.setCivilianKills(civilian_kills);
-                        cp.setDeaths(deaths);
-                        cp.setLastSeen(last_seen);
-                        cp.setJoinDate(join_date);
-                        cp.setPackedPastClans(packed_past_clans);
-                        cp.setTrusted(leader || trusted);
-
-                        if (!tag.isEmpty()) {
-                            Clan clanDB = retrieveOneClan(tag);
-                            Clan clan = SimpleClans.getInstance().getClanManager().getClan(tag);
-
-                            if (clan != null) {
-                                Clan clanReSync = SimpleClans.getInstance().getClanManager().getClan(tag);
-                                clanReSync.setFlags(clanDB.getFlags());
-                                clanReSync.setVerified(clanDB.isVerified());
-                                clanReSync.setFriendlyFire(clanDB.isFriendlyFire());
-                                clanReSync.setTag(clanDB.getTag());
-                                clanReSync.setColorTag(clanDB.getColorTag());
-                                clanReSync.setName(clanDB.getName());
-                                clanReSync.setPackedAllies(clanDB.getPackedAllies());
-                                clanReSync.setPackedRivals(clanDB.getPackedRivals());
-                                clanReSync.setPackedBb(clanDB.getPackedBb());
-                                clanReSync.setCapeUrl(clanDB.getCapeUrl());
-                                clanReSync.setFounded(clanDB.getFounded());
-                                clanReSync.setLastUsed(clanDB.getLastUsed());
-                                clanReSync.setBalance(clanDB.getBalance());
-                                cp.setClan(clanReSync);
-                            } else {
-                                plugin.getClanManager().importClan(clanDB);
-                                clanDB.validateWarring();
-                                Clan newclan = SimpleClans.getInstance().getClanManager().getClan(clanDB.getTag());
-                                cp.setClan(newclan);
-                            }
-                        }
-
-                        out = cp;
+                        Clan clan = readClan(res, columns);
+                        flags.add(clan, res.getString(columns.flags));
+                        out.add(clan);
                     } catch (Exception ex) {
                         for (StackTraceElement el : ex.getStackTrace()) {
                             System.out.print(el.toString());
@@ -556,351 +704,2281 @@ public final class StorageManager {
             } catch (SQLException ex) {
                 SimpleClans.getLog().severe(String.format("An Error occurred: %s", ex.getErrorCode()));
                 SimpleClans.getLog().log(Level.SEVERE, null, ex);
+            } finally {
+                ConnectionPool.closeQuietly(res);
             }
+
+            flags.await();
         }
 
         return out;
     }
 
     /**
-     * Insert a clan into the database
+     * Brings the clans of a snapshot up to date: clans deleted since are dropped and clans used
+     * since the watermark are read again
      *
-     * @param clan
+     * @param contents
+     * @param parser   pool the flags are parsed on
+     * @return
      */
-    public void insertClan(Clan clan) {
-        String query = "INSERT INTO `sc_clans` (  `verified`, `tag`, `color_tag`, `name`, `friendly_fire`, `founded`, `last_used`, `packed_allies`, `packed_rivals`, `packed_bb`, `cape_url`, `flags`, `balance`) ";
-        String values = "VALUES ( " + (clan.isVerified() ? 1 : 0) + ",'" + Helper.escapeQuotes(clan.getTag()) + "','" + Helper.escapeQuotes(clan.getColorTag()) + "','" + Helper.escapeQuotes(clan.getName()) + "'," + (clan.isFriendlyFire() ? 1 : 0) + ",'" + clan.getFounded() + "','" + clan.getLastUsed() + "','" + Helper.escapeQuotes(clan.getPackedAllies()) + "','" + Helper.escapeQuotes(clan.getPackedRivals()) + "','" + Helper.escapeQuotes(clan.getPackedBb()) + "','" + Helper.escapeQuotes(clan.getCapeUrl()) + "','" + Helper.escapeQuotes(clan.getFlags()) + "','" + Helper.escapeQuotes(String.valueOf(clan.getBalance())) + "');";
-        core.insert(query + values);
-    }
+    private List<Clan> refreshClans(ClanSnapshot.Contents contents, ExecutorService parser) {
+        Map<String, Clan> byTag = new LinkedHashMap<>();
 
-    /**
-     * Update a clan to the database asynchronously
-     *
-     * @param clan
-     */
-    @SuppressWarnings("deprecation")
-    public void updateClanAsync(final Clan clan) {
-        plugin.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, new Runnable() {
-            @Override
-            public void run() {
-                updateClan(clan);
+        for (Clan clan : contents.getClans()) {
+            byTag.put(clan.getTag(), clan);
+        }
+
+        Set<String> live = readKeys("SELECT `tag` FROM `sc_clans`;", false);
+        byTag.keySet().retainAll(live);
+
+        for (Clan clan : readClans("SELECT * FROM `sc_clans` WHERE `last_used` >= ?;", new Object[]{contents.getWatermark()}, parser)) {
+            byTag.put(clan.getTag(), clan);
+        }
+
+        // created elsewhere by a server whose clock is further behind than the margin
+        for (String tag : live) {
+            if (!byTag.containsKey(tag)) {
+                for (Clan clan : readClans("SELECT * FROM `sc_clans` WHERE `tag` = ?;", new Object[]{tag}, null)) {
+                    byTag.put(clan.getTag(), clan);
+                }
             }
-        });
+        }
+
+        return new ArrayList<>(byTag.values());
     }
 
     /**
-     * Change the name of a player in the database asynchronously
+     * Brings the players of a snapshot up to date: players deleted since are dropped and players
+     * seen since the watermark are read again
      *
-     * @param p to update
+     * @param contents
+     * @param parser   pool the flags are parsed on
+     * @param tags     receives the clan tag of each returned player, in the same order
+     * @return
      */
-    @SuppressWarnings("deprecation")
-    public void updatePlayerNameAsync(final Player p) {
-        plugin.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, new Runnable() {
-            @Override
-            public void run() {
-                updatePlayerName(p);
+    private List<ClanPlayer> refreshClanPlayers(ClanSnapshot.Contents contents, ExecutorService parser, List<String> tags) {
+        boolean uuid = SimpleClans.getInstance().hasUUID();
+        Map<String, ClanPlayer> byKey = new LinkedHashMap<>();
+        Map<String, String> tagByKey = new HashMap<>();
+
+        putClanPlayers(byKey, tagByKey, contents.getClanPlayers(), contents.getTags(), uuid);
+
+        Set<String> live = readKeys(uuid ? "SELECT `uuid` FROM `sc_players`;" : "SELECT LOWER(`name`) FROM `sc_players`;", uuid);
+        byKey.keySet().retainAll(live);
+
+        List<String> changedTags = new ArrayList<>();
+        List<ClanPlayer> changed = readClanPlayers("SELECT * FROM `sc_players` WHERE `last_seen` >= ?;", new Object[]{contents.getWatermark()}, parser, changedTags);
+        putClanPlayers(byKey, tagByKey, changed, changedTags, uuid);
+
+        for (String key : live) {
+            if (!byKey.containsKey(key)) {
+                // created elsewhere by a server whose clock is further behind than the margin
+                changedTags.clear();
+                changed = readClanPlayers(uuid ? "SELECT * FROM `sc_players` WHERE `uuid` = ?;" : "SELECT * FROM `sc_players` WHERE LOWER(`name`) = ?;", new Object[]{uuid ? UUID.fromString(key) : key}, null, changedTags);
+                putClanPlayers(byKey, tagByKey, changed, changedTags, uuid);
             }
-        });
-    }
+        }
 
-    /**
-     * Change the name of a player in the database asynchronously
-     *
-     * @param p to update
-     */
-    public void updatePlayerName(final Player p) {
-        String query = "UPDATE `sc_players` SET `name` = '" + p.getName() + "' WHERE uuid = '" + p.getUniqueId().toString() + "';";
-        core.update(query);
-    }
+        List<ClanPlayer> out = new ArrayList<>(byKey.size());
 
-    /**
-     * Update a clan to the database
-     *
-     * @param clan
-     */
-    public void updateClan(Clan clan) {
-        clan.updateLastUsed();
-        String query = "UPDATE `sc_clans` SET verified = " + (clan.isVerified() ? 1 : 0) + ", tag = '" + Helper.escapeQuotes(clan.getTag()) + "', color_tag = '" + Helper.escapeQuotes(clan.getColorTag()) + "', name = '" + Helper.escapeQuotes(clan.getName()) + "', friendly_fire = " + (clan.isFriendlyFire() ? 1 : 0) + ", founded = '" + clan.getFounded() + "', last_used = '" + clan.getLastUsed() + "', packed_allies = '" + Helper.escapeQuotes(clan.getPackedAllies()) + "', packed_rivals = '" + Helper.escapeQuotes(clan.getPackedRivals()) + "', packed_bb = '" + Helper.escapeQuotes(clan.getPackedBb()) + "', cape_url = '" + Helper.escapeQuotes(clan.getCapeUrl()) + "', cape_url = '" + Helper.escapeQuotes(String.valueOf(clan.getCapeUrl())) + "', balance = '" + clan.getBalance() + "', flags = '" + Helper.escapeQuotes(clan.getFlags()) + "' WHERE tag = '" + Helper.escapeQuotes(clan.getTag()) + "';";
-        core.update(query);
-    }
+        for (Map.Entry<String, ClanPlayer> entry : byKey.entrySet()) {
+            out.add(entry.getValue());
+            tags.add(tagByKey.get(entry.getKey()));
+        }
 
-    /**
-     * Delete a clan from the database
-     *
-     * @param clan
-     */
-    public void deleteClan(Clan clan) {
-        String query = "DELETE FROM `sc_clans` WHERE tag = '" + clan.getTag() + "';";
-        core.delete(query);
+        return out;
     }
 
-    /**
-     * Insert a clan player into the database
-     *
-     * @param cp
-     */
-    public void insertClanPlayer(ClanPlayer cp) {
-        if (SimpleClans.getInstance().hasUUID()) {
-            String query = "INSERT INTO `sc_players` ( `uuid`, `name`, `leader`, `tag`, `friendly_fire`, `neutral_kills`, `rival_kills`, `civilian_kills`, `deaths`, `last_seen`, `join_date`, `packed_past_clans`, `flags`) ";
-            String values = "VALUES ( '" + cp.getUniqueId().toString() + "', '" + cp.getName() + "'," + (cp.isLeader() ? 1 : 0) + ",'" + Helper.escapeQuotes(cp.getTag()) + "'," + (cp.isFriendlyFire() ? 1 : 0) + "," + cp.getNeutralKills() + "," + cp.getRivalKills() + "," + cp.getCivilianKills() + "," + cp.getDeaths() + ",'" + cp.getLastSeen() + "',' " + cp.getJoinDate() + "','" + Helper.escapeQuotes(cp.getPackedPastClans()) + "','" + Helper.escapeQuotes(cp.getFlags()) + "');";
-            core.insert(query + values);
-        } else {
-            String query = "INSERT INTO `sc_players` (  `name`, `leader`, `tag`, `friendly_fire`, `neutral_kills`, `rival_kills`, `civilian_kills`, `deaths`, `last_seen`, `join_date`, `packed_past_clans`, `flags`) ";
-            String values = "VALUES ( '" + cp.getName() + "'," + (cp.isLeader() ? 1 : 0) + ",'" + Helper.escapeQuotes(cp.getTag()) + "'," + (cp.isFriendlyFire() ? 1 : 0) + "," + cp.getNeutralKills() + "," + cp.getRivalKills() + "," + cp.getCivilianKills() + "," + cp.getDeaths() + ",'" + cp.getLastSeen() + "',' " + cp.getJoinDate() + "','" + Helper.escapeQuotes(cp.getPackedPastClans()) + "','" + Helper.escapeQuotes(cp.getFlags()) + "');";
-            core.insert(query + values);
+    private static String snapshotKey(ClanPlayer cp, boolean uuid) {
+        if (uuid) {
+            return cp.getUniqueId() == null ? null : cp.getUniqueId().toString();
         }
+
+        return cp.getName() == null ? null : cp.getName().toLowerCase();
     }
 
-    /**
-     * Update a clan player to the database asynchronously
-     *
-     * @param cp
-     */
-    @SuppressWarnings("deprecation")
-    public void updateClanPlayerAsync(final ClanPlayer cp) {
-        plugin.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, new Runnable() {
-            @Override
-            public void run() {
-                updateClanPlayer(cp);
+    private static void putClanPlayers(Map<String, ClanPlayer> byKey, Map<String, String> tagByKey, List<ClanPlayer> cps, List<String> tags, boolean uuid) {
+        for (int i = 0; i < cps.size(); i++) {
+            String key = snapshotKey(cps.get(i), uuid);
+
+            if (key != null) {
+                byKey.put(key, cps.get(i));
+                tagByKey.put(key, tags.get(i));
             }
-        });
+        }
     }
 
     /**
-     * Update a clan player to the database
+     * Reads the key column of every row of a table
      *
-     * @param cp
+     * @param query selecting only the key column
+     * @param uuid  whether the key is a uuid
+     * @return
      */
-    public void updateClanPlayer(ClanPlayer cp) {
-        cp.updateLastSeen();
-        if (SimpleClans.getInstance().hasUUID()) {
-            String query = "UPDATE `sc_players` SET leader = " + (cp.isLeader() ? 1 : 0) + ", tag = '" + Helper.escapeQuotes(cp.getTag()) + "' , friendly_fire = " + (cp.isFriendlyFire() ? 1 : 0) + ", neutral_kills = " + cp.getNeutralKills() + ", rival_kills = " + cp.getRivalKills() + ", civilian_kills = " + cp.getCivilianKills() + ", deaths = " + cp.getDeaths() + ", last_seen = '" + cp.getLastSeen() + "', packed_past_clans = '" + Helper.escapeQuotes(cp.getPackedPastClans()) + "', trusted = " + (cp.isTrusted() ? 1 : 0) + ", flags = '" + Helper.escapeQuotes(cp.getFlags()) + "', name = '" + cp.getName() + "' WHERE `uuid` = '" + cp.getUniqueId().toString() + "';";
-            core.update(query);
-        } else {
-            String query = "UPDATE `sc_players` SET leader = " + (cp.isLeader() ? 1 : 0) + ", tag = '" + Helper.escapeQuotes(cp.getTag()) + "' , friendly_fire = " + (cp.isFriendlyFire() ? 1 : 0) + ", neutral_kills = " + cp.getNeutralKills() + ", rival_kills = " + cp.getRivalKills() + ", civilian_kills = " + cp.getCivilianKills() + ", deaths = " + cp.getDeaths() + ", last_seen = '" + cp.getLastSeen() + "', packed_past_clans = '" + Helper.escapeQuotes(cp.getPackedPastClans()) + "', trusted = " + (cp.isTrusted() ? 1 : 0) + ", flags = '" + Helper.escapeQuotes(cp.getFlags()) + "' WHERE name = '" + cp.getName() + "';";
-            core.update(query);
+    private Set<String> readKeys(String query, boolean uuid) {
+        Set<String> out = new HashSet<>();
+        ResultSet res = core.selectStreaming(query, plugin.getSettingsManager().getImportFetchSize());
+
+        if (res != null) {
+            try {
+                while (res.next()) {
+                    if (uuid) {
+                        UUID key = getPool().getUuid(res, 1);
+
+                        if (key != null) {
+                            out.add(key.toString());
+                        }
+                    } else {
+                        String key = res.getString(1);
+
+                        if (key != null) {
+                            out.add(key);
+                        }
+                    }
+                }
+            } catch (SQLException ex) {
+                SimpleClans.getLog().severe(String.format("An Error occurred: %s", ex.getErrorCode()));
+                SimpleClans.getLog().log(Level.SEVERE, null, ex);
+            } finally {
+                ConnectionPool.closeQuietly(res);
+            }
         }
+
+        return out;
     }
 
     /**
-     * Delete a clan player from the database
+     * Loads allies, rivals and bulletin board messages into the clans they belong to
      *
-     * @param cp
+     * @param clans
+     * @param tag   only read the rows of this clan, null to read all of them
      */
-    public void deleteClanPlayer(ClanPlayer cp) {
-        if (SimpleClans.getInstance().hasUUID()) {
-            String query = "DELETE FROM `sc_players` WHERE uuid = '" + cp.getUniqueId() + "';";
-            core.delete(query);
-            deleteKills(cp.getUniqueId());
-        } else {
-            String query = "DELETE FROM `sc_players` WHERE name = '" + cp.getName() + "';";
-            core.delete(query);
-            deleteKills(cp.getName());
+    private void readClanChildren(List<Clan> clans, String tag) {
+        Map<String, Clan> byTag = new HashMap<>();
+
+        for (Clan clan : clans) {
+            byTag.put(clan.getTag(), clan);
         }
-    }
 
-    /**
-     * Insert a kill into the database
-     *
-     * @param attacker
-     * @param attackerTag
-     * @param victim
-     * @param victimTag
-     * @param type
-     */
-    public void insertKill(Player attacker, String attackerTag, Player victim, String victimTag, String type) {
-        if (SimpleClans.getInstance().hasUUID()) {
-            String query = "INSERT INTO `sc_kills` (  `attacker_uuid`, `attacker`, `attacker_tag`, `victim_uuid`, `victim`, `victim_tag`, `kill_type`) ";
-            String values = "VALUES ( '" + attacker.getUniqueId() + "','" + attacker.getName() + "','" + attackerTag + "','" + victim.getUniqueId() + "','" + victim.getName() + "','" + victimTag + "','" + type + "');";
-            core.insert(query + values);
-        } else {
-            String query = "INSERT INTO `sc_kills` (  `attacker`, `attacker_tag`, `victim`, `victim_tag`, `kill_type`) ";
-            String values = "VALUES ( '" + attacker.getName() + "','" + attackerTag + "','" + victim.getName() + "','" + victimTag + "','" + type + "');";
-            core.insert(query + values);
+        String where = tag == null ? "" : " WHERE `clan_tag` = ?";
+        Object[] params = tag == null ? new Object[0] : new Object[]{tag};
+        int fetchSize = plugin.getSettingsManager().getImportFetchSize();
+
+        ResultSet res = core.selectStreaming("SELECT `clan_tag`, `other_tag`, `relation` FROM `sc_clan_relations`" + where + ";", fetchSize, params);
+
+        if (res != null) {
+            try {
+                while (res.next()) {
+                    Clan clan = byTag.get(res.getString("clan_tag"));
+
+                    if (clan == null) {
+                        continue;
+                    }
+
+                    if (RELATION_ALLY.equals(res.getString("relation"))) {
+                        clan.importAlly(res.getString("other_tag"));
+                    } else {
+                        clan.importRival(res.getString("other_tag"));
+                    }
+                }
+            } catch (SQLException ex) {
+                SimpleClans.getLog().severe(String.format("An Error occurred: %s", ex.getErrorCode()));
+                SimpleClans.getLog().log(Level.SEVERE, null, ex);
+            } finally {
+                ConnectionPool.closeQuietly(res);
+            }
         }
-    }
 
-    /**
-     * Delete a player's kill record form the database
-     *
-     * @param playerName
-     */
-    @Deprecated
-    public void deleteKills(String playerName) {
-        String query = "DELETE FROM `sc_kills` WHERE `attacker` = '" + playerName + "'";
-        core.delete(query);
-    }
+        res = core.selectStreaming("SELECT `clan_tag`, `message` FROM `sc_clan_bb`" + where + " ORDER BY `id`;", fetchSize, params);
 
-    /**
-     * Delete a player's kill record form the database
-     *
-     * @param playerUniqueId
-     */
-    public void deleteKills(UUID playerUniqueId) {
-        String query = "DELETE FROM `sc_kills` WHERE `attacker_uuid` = '" + playerUniqueId + "'";
-        core.delete(query);
+        if (res != null) {
+            try {
+                while (res.next()) {
+                    Clan clan = byTag.get(res.getString("clan_tag"));
+
+                    if (clan != null) {
+                        clan.importBb(res.getString("message"));
+                    }
+                }
+            } catch (SQLException ex) {
+                SimpleClans.getLog().severe(String.format("An Error occurred: %s", ex.getErrorCode()));
+                SimpleClans.getLog().log(Level.SEVERE, null, ex);
+            } finally {
+                ConnectionPool.closeQuietly(res);
+            }
+        }
     }
 
     /**
-     * Returns a map of victim->count of all kills that specific player did
+     * Retrieves one Clan from the database
+     * Used for BungeeCord Reload ClanPlayer and your Clan
      *
-     * @param playerName
+     * @param tagClan
      * @return
      */
-    public Map<String, Integer> getKillsPerPlayer(String playerName) {
-        HashMap<String, Integer> out = new HashMap<>();
+    public Clan retrieveOneClan(String tagClan) {
+        Clan out = null;
 
-        String query = "SELECT victim, count(victim) AS kills FROM `sc_kills` WHERE attacker = '" + playerName + "' GROUP BY victim ORDER BY count(victim) DESC;";
-        ResultSet res = core.select(query);
+        String query = "SELECT * FROM  `sc_clans` WHERE `tag` = ?;";
+        ResultSet res = core.select(query, tagClan);
 
         if (res != null) {
             try {
+                ClanColumns columns = new ClanColumns(res);
+
                 while (res.next()) {
                     try {
-                        String victim = res.getString("victim");
-                        int kills = res.getInt("kills");
-                        out.put(victim, kills);
+                        Clan clan = readClan(res, columns);
+                        clan.setFlags(res.getString(columns.flags));
+                        out = clan;
                     } catch (Exception ex) {
-                        SimpleClans.getLog().info(ex.getMessage());
-
-
+                        for (StackTraceElement el : ex.getStackTrace()) {
+                            System.out.print(el.toString());
+                        }
                     }
                 }
             } catch (SQLException ex) {
                 SimpleClans.getLog().severe(String.format("An Error occurred: %s", ex.getErrorCode()));
                 SimpleClans.getLog().log(Level.SEVERE, null, ex);
+            } finally {
+                ConnectionPool.closeQuietly(res);
             }
         }
 
+        if (out != null) {
+            readClanChildren(Collections.singletonList(out), tagClan);
+        }
+
         return out;
     }
 
+    private Clan readClan(ResultSet res, ClanColumns col) throws SQLException {
+        long founded = res.getLong(col.founded);
+        long last_used = res.getLong(col.lastUsed);
+
+        if (founded == 0) {
+            founded = (new Date()).getTime();
+        }
+
+        if (last_used == 0) {
+            last_used = (new Date()).getTime();
+        }
+
+        Clan clan = new Clan();
+        clan.setVerified(res.getBoolean(col.verified));
+        clan.setFriendlyFire(res.getBoolean(col.friendlyFire));
+        clan.setTag(res.getString(col.tag));
+        clan.setColorTag(Helper.parseColors(res.getString(col.colorTag)));
+        clan.setName(res.getString(col.name));
+        clan.setCapeUrl(res.getString(col.capeUrl));
+        clan.setFounded(founded);
+        clan.setLastUsed(last_used);
+        clan.setBalance(res.getDouble(col.balance));
+        clan.clearChanges();
+        return clan;
+    }
+
     /**
-     * Returns a map of tag->count of all kills
+     * Retrieves all clan players from the database
      *
      * @return
      */
-    public Map<String, Integer> getMostKilled() {
-        HashMap<String, Integer> out = new HashMap<>();
+    public List<ClanPlayer> retrieveClanPlayers() {
+        List<String> tags = new ArrayList<>();
+        List<ClanPlayer> out = readClanPlayers("SELECT * FROM  `sc_players`;", new Object[0], null, tags);
+        linkClanPlayers(out, tags);
+        return out;
+    }
 
-        String query = "SELECT attacker, victim, count(victim) AS kills FROM `sc_kills` GROUP BY attacker, victim ORDER BY 3 DESC;";
-        ResultSet res = core.select(query);
+    /**
+     * Streams clan players from the database without linking them to their clans
+     *
+     * @param query
+     * @param params
+     * @param parser pool the flags are parsed on, null to parse them on the calling thread
+     * @param tags   receives the clan tag of each returned player, in the same order
+     * @return
+     */
+    private List<ClanPlayer> readClanPlayers(String query, Object[] params, ExecutorService parser, List<String> tags) {
+        List<ClanPlayer> out = new ArrayList<>();
+        ResultSet res = core.selectStreaming(query, plugin.getSettingsManager().getImportFetchSize(), params);
 
         if (res != null) {
+            FlagParser<ClanPlayer> flags = new FlagParser<>(parser);
+
             try {
+                ClanPlayerColumns columns = new ClanPlayerColumns(res);
+
                 while (res.next()) {
                     try {
-                        String attacker = res.getString("attacker");
-                        String victim = res.getString("victim");
-                        int kills = res.getInt("kills");
-                        out.put(attacker + " " + victim, kills);
+                        ClanPlayer cp = readClanPlayer(res, columns);
+                        flags.add(cp, res.getString(columns.flags));
+                        tags.add(res.getString(columns.tag));
+                        out.add(cp);
                     } catch (Exception ex) {
-                        SimpleClans.getLog().info(ex.getMessage());
-
-
+                        for (StackTraceElement el : ex.getStackTrace()) {
+                            System.out.print(el.toString());
+                        }
                     }
                 }
             } catch (SQLException ex) {
                 SimpleClans.getLog().severe(String.format("An Error occurred: %s", ex.getErrorCode()));
                 SimpleClans.getLog().log(Level.SEVERE, null, ex);
+            } finally {
+                ConnectionPool.closeQuietly(res);
             }
+
+            flags.await();
         }
 
         return out;
     }
 
-    /**
-     * Updates the database to the latest version
-     *
-     * @param
-     */
-    private void updateDatabase() {
-        String query = null;
+    private ClanPlayer readClanPlayer(ResultSet res, ClanPlayerColumns col) throws SQLException {
+        UUID uuid = col.uuid > 0 ? getPool().getUuid(res, col.uuid) : null;
+        boolean leader = res.getBoolean(col.leader);
+        long last_seen = res.getLong(col.lastSeen);
+        long join_date = res.getLong(col.joinDate);
 
-        /**
-         * From 2.2.6.3 to 2.3
-         */
-        if (!core.existsColumn("sc_clans", "balance")) {
-            query = "ALTER TABLE sc_clans ADD COLUMN `balance` double(64,2);";
-            core.execute(query);
+        if (last_seen == 0) {
+            last_seen = (new Date()).getTime();
         }
 
-        /**
-         * Bukkit 1.7.5+ UUID Migration
-         */
-        if (!core.existsColumn("sc_kills", "attacker_uuid")) {
-            query = "ALTER TABLE sc_kills ADD attacker_uuid VARCHAR( 255 ) DEFAULT NULL;";
-            core.execute(query);
+        if (join_date == 0) {
+            join_date = (new Date()).getTime();
         }
-        if (!core.existsColumn("sc_kills", "victim_uuid")) {
-            query = "ALTER TABLE sc_kills ADD victim_uuid VARCHAR( 255 ) DEFAULT NULL;";
-            core.execute(query);
+
+        ClanPlayer cp = new ClanPlayer();
+        if (uuid != null) {
+            cp.setUniqueId(uuid);
         }
-        if (!core.existsColumn("sc_players", "uuid")) {
-            query = "ALTER TABLE sc_players ADD uuid VARCHAR( 255 ) DEFAULT NULL;";
-            core.execute(query);
+        cp.setName(res.getString(col.name));
+        cp.setLeader(leader);
+        cp.setFriendlyFire(res.getBoolean(col.friendlyFire));
+        cp.setNeutralKills(res.getInt(col.neutralKills));
+        cp.setRivalKills(res.getInt(col.rivalKills));
+        cp.setCivilianKills(res.getInt(col.civilianKills));
+        cp.setDeaths(res.getInt(col.deaths));
+        cp.setLastSeen(last_seen);
+        cp.setJoinDate(join_date);
+        cp.setPackedPastClans(Helper.parseColors(res.getString(col.packedPastClans)));
+        cp.setTrusted(leader || res.getBoolean(col.trusted));
+        cp.clearChanges();
+        return cp;
+    }
 
-            if (plugin.getSettingsManager().isUseMysql()) {
-                query = "ALTER TABLE `sc_players` ADD UNIQUE `uq_player_uuid` (`uuid`);";
-                core.execute(query);
-            }
+    /**
+     * Attaches players to their clans, the clans must already be imported
+     *
+     * @param cps
+     * @param tags clan tag of each player, in the same order
+     */
+    private void linkClanPlayers(List<ClanPlayer> cps, List<String> tags) {
+        for (int i = 0; i < cps.size(); i++) {
+            String tag = tags.get(i);
 
-            updatePlayersToUUID();
+            if (tag != null && !tag.isEmpty()) {
+                Clan clan = plugin.getClanManager().getClan(tag);
 
-            query = "ALTER TABLE sc_players DROP INDEX uq_sc_players_1;";
-            core.execute(query);
+                if (clan != null) {
+                    cps.get(i).setClan(clan);
+                    cps.get(i).clearChanges();
+                }
+            }
         }
+    }
 
-        if (core.existsColumn("sc_players", "uuid") && !plugin.getSettingsManager().isUseMysql()) {
-            query = "CREATE UNIQUE INDEX IF NOT EXISTS `uq_player_uuid` ON `sc_players` (`uuid`);";
-            core.execute(query);
-        }
+    /**
+     * Retrieves one clan player from the database
+     * Used for BungeeCord Reload ClanPlayer and your Clan
+     *
+     * @param playerUniqueId
+     * @return
+     */
+    public ClanPlayer retrieveOneClanPlayer(UUID playerUniqueId) {
+        return linkClanPlayerRecord(readClanPlayerRecord(playerUniqueId));
     }
 
     /**
-     * Updates the database to the latest version
+     * Reads one clan player and their clan from the database without touching anything in memory,
+     * so it is safe to call off the main thread
+     * Used for BungeeCord Reload ClanPlayer and your Clan
      *
-     * @param
+     * @param playerUniqueId
+     * @return the record, holding no player if the player has no row
      */
-    private void updatePlayersToUUID() {
-        SimpleClans.log("[SimpleClans] Starting Migration to UUID Players !");
-        SimpleClans.log("[SimpleClans] ==================== ATTENTION DONT STOP BUKKIT ! ==================== ");
-        SimpleClans.log("[SimpleClans] ==================== ATTENTION DONT STOP BUKKIT ! ==================== ");
-        SimpleClans.log("[SimpleClans] ==================== ATTENTION DONT STOP BUKKIT ! ==================== ");
-        SimpleClans.getInstance().setUUID(false);
-        List<ClanPlayer> cps = retrieveClanPlayers();
+    public ClanPlayerRecord readClanPlayerRecord(UUID playerUniqueId) {
+        List<String> tags = new ArrayList<>();
+        List<ClanPlayer> cps = readClanPlayers("SELECT * FROM `sc_players` WHERE `uuid` = ?;", new Object[]{playerUniqueId}, null, tags);
 
-        int i = 1;
-        for (ClanPlayer cp : cps) {
-            try {
-                UUID uuidPlayer;
-                if (SimpleClans.getInstance().getServer().getOnlineMode()) {
-                    uuidPlayer = UUIDFetcher.getUUIDOfThrottled(cp.getName());
-                } else {
-                    uuidPlayer = UUID.nameUUIDFromBytes(("OfflinePlayer:" + cp.getName()).getBytes(Charsets.UTF_8));
-                }
-                String query = "UPDATE `sc_players` SET uuid = '" + uuidPlayer.toString() + "' WHERE name = '" + cp.getName() + "';";
-                core.update(query);
+        if (cps.isEmpty()) {
+            return new ClanPlayerRecord(null, null);
+        }
 
-                String query2 = "UPDATE `sc_kills` SET attacker_uuid = '" + uuidPlayer.toString() + "' WHERE attacker = '" + cp.getName() + "';";
-                core.update(query2);
+        ClanPlayer cp = cps.get(cps.size() - 1);
+        String clanTag = tags.get(tags.size() - 1);
+        Clan clan = null;
 
-                String query3 = "UPDATE `sc_kills` SET victim_uuid = '" + uuidPlayer.toString() + "' WHERE victim = '" + cp.getName() + "';";
-                core.update(query3);
-                SimpleClans.log("[" + i + " / " + cps.size() + "] Success: " + cp.getName() + "; UUID: " + uuidPlayer.toString());
-            } catch (Exception ex) {
-                SimpleClans.log("[" + i + " / " + cps.size() + "] Failed [ERRO]: " + cp.getName() + "; UUID: ???");
-            }
-            i++;
+        if (cp != null && clanTag != null && !clanTag.isEmpty()) {
+            clan = retrieveOneClan(clanTag);
         }
-        SimpleClans.log("[SimpleClans] ==================== END OF MIGRATION ====================");
-        SimpleClans.log("[SimpleClans] ==================== END OF MIGRATION ====================");
-        SimpleClans.log("[SimpleClans] ==================== END OF MIGRATION ====================");
 
+        return new ClanPlayerRecord(cp, clan);
+    }
+
+    /**
+     * Links a record read from the database to the clans in memory, refreshing the player's clan with
+     * the values that were read. Must run on the main thread.
+     *
+     * @param record
+     * @return the linked player, null if the record holds none
+     */
+    private ClanPlayer linkClanPlayerRecord(ClanPlayerRecord record) {
+        ClanPlayer out = record.getClanPlayer();
+        Clan clanDB = record.getClan();
+
+        if (out != null && clanDB != null) {
+            String clanTag = clanDB.getTag();
+            Clan clan = SimpleClans.getInstance().getClanManager().getClan(clanTag);
+
+            if (clan != null) {
+                Clan clanReSync = SimpleClans.getInstance().getClanManager().getClan(clanTag);
+                clanReSync.setFlags(clanDB.getFlags());
+                clanReSync.setVerified(clanDB.isVerified());
+                clanReSync.setFriendlyFire(clanDB.isFriendlyFire());
+                clanReSync.setTag(clanDB.getTag());
+                clanReSync.setColorTag(clanDB.getColorTag());
+                clanReSync.setName(clanDB.getName());
+                clanReSync.setPackedAllies(clanDB.getPackedAllies());
+                clanReSync.setPackedRivals(clanDB.getPackedRivals());
+                clanReSync.setPackedBb(clanDB.getPackedBb());
+                clanReSync.setCapeUrl(clanDB.getCapeUrl());
+                clanReSync.setFounded(clanDB.getFounded());
+                clanReSync.setLastUsed(clanDB.getLastUsed());
+                clanReSync.setBalance(clanDB.getBalance());
+                clanReSync.clearChanges();
+                out.setClan(clanReSync);
+            } else {
+                plugin.getClanManager().importClan(clanDB);
+                clanDB.validateWarring();
+                Clan newclan = SimpleClans.getInstance().getClanManager().getClan(clanDB.getTag());
+                out.setClan(newclan);
+            }
+
+            out.clearChanges();
+        }
+
+        return out;
+    }
+
+    /**
+     * Reads one clan player from the database without linking a clan or touching anything in
+     * memory, so it is safe to call off the main thread. Used to load players who are not resident
+     *
+     * @param playerUniqueId
+     * @return null if the player has no row
+     */
+    public ClanPlayer retrieveDetachedClanPlayer(UUID playerUniqueId) {
+        List<ClanPlayer> cps = readClanPlayers("SELECT * FROM `sc_players` WHERE `uuid` = ?;", new Object[]{playerUniqueId}, null, new ArrayList<String>());
+        return cps.isEmpty() ? null : cps.get(cps.size() - 1);
+    }
+
+    /**
+     * Reads one clan player from the database without linking a clan or touching anything in
+     * memory, so it is safe to call off the main thread. Used to load players who are not resident
+     *
+     * @param playerName
+     * @return null if the player has no row
+     */
+    @Deprecated
+    public ClanPlayer retrieveDetachedClanPlayer(String playerName) {
+        List<ClanPlayer> cps = readClanPlayers("SELECT * FROM `sc_players` WHERE LOWER(`name`) = ?;", new Object[]{playerName.toLowerCase()}, null, new ArrayList<String>());
+        return cps.isEmpty() ? null : cps.get(cps.size() - 1);
+    }
+
+    /**
+     * Insert a clan into the database
+     *
+     * @param clan
+     */
+    public void insertClan(Clan clan) {
+        String query = "INSERT INTO `sc_clans` (  `verified`, `tag`, `color_tag`, `name`, `friendly_fire`, `founded`, `last_used`, `packed_allies`, `packed_rivals`, `packed_bb`, `cape_url`, `flags`, `balance`) ";
+        String values = "VALUES ( ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);";
+        clan.clearChanges();
+        write(clan.getTag(), query + values, clan.isVerified(), clan.getTag(), clan.getColorTag(), clan.getName(), clan.isFriendlyFire(), clan.getFounded(), clan.getLastUsed(), "", "", "", nullToEmpty(clan.getCapeUrl()), clan.getFlags(), clan.getBalance());
+    }
+
+    /**
+     * Update a clan to the database asynchronously
+     *
+     * @param clan
+     */
+    public void updateClanAsync(final Clan clan) {
+        if (plugin.getSettingsManager().isWriteBehind()) {
+            updateClan(clan);
+            return;
+        }
+
+        clan.updateLastUsed();
+
+        // the values are read here, only the statement runs on the storage thread
+        Set<Clan.Column> columns = clan.takeChanges();
+        final RowUpdate update = clanUpdate(clan, columns);
+        final Runnable failed = retryLater(clan, columns);
+
+        if (update.isEmpty()) {
+            return;
+        }
+
+        executor.execute(clan.getTag(), new Runnable() {
+            @Override
+            public void run() {
+                if (!core.update(update.getQuery(), update.getParams())) {
+                    failed.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Change the name of a player in the database asynchronously
+     *
+     * @param p to update
+     */
+    public void updatePlayerNameAsync(final Player p) {
+        executor.execute(p.getUniqueId(), new Runnable() {
+            @Override
+            public void run() {
+                core.update(UPDATE_PLAYER_NAME, p.getName(), p.getUniqueId());
+            }
+        });
+    }
+
+    /**
+     * Change the name of a player in the database
+     *
+     * @param p to update
+     */
+    public void updatePlayerName(final Player p) {
+        write(p.getUniqueId(), UPDATE_PLAYER_NAME, p.getName(), p.getUniqueId());
+    }
+
+    /**
+     * Update a clan to the database, with write-behind on the row is only queued
+     * and written by the next flush
+     *
+     * @param clan
+     */
+    public void updateClan(Clan clan) {
+        clan.updateLastUsed();
+
+        if (plugin.getSettingsManager().isWriteBehind()) {
+            writeBehind.markDirty(clan);
+        } else {
+            Set<Clan.Column> columns = clan.takeChanges();
+            RowUpdate update = clanUpdate(clan, columns);
+
+            if (!update.isEmpty()) {
+                write(clan.getTag(), update, retryLater(clan, columns));
+            }
+        }
+    }
+
+    /**
+     * Builds the update of the columns the clan changed since it was last written,
+     * the flags are only serialized when one of them changed
+     *
+     * @param clan
+     * @param columns the changes taken from the clan
+     * @return the update, empty if nothing changed
+     */
+    private RowUpdate clanUpdate(Clan clan, Set<Clan.Column> columns) {
+        RowUpdate update = new RowUpdate("sc_clans");
+
+        for (Clan.Column column : columns) {
+            update.set(column.getName(), clanValue(clan, column));
+        }
+
+        return update.where("tag", clan.getTag());
+    }
+
+    /**
+     * @param clan
+     * @param columns the changes taken from the clan
+     * @return marks the changes again when writing them failed, so the next write of the clan retries them
+     */
+    private Runnable retryLater(final Clan clan, final Set<Clan.Column> columns) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                clan.restoreChanges(columns);
+
+                if (plugin.getSettingsManager().isWriteBehind()) {
+                    writeBehind.markDirty(clan);
+                }
+            }
+        };
+    }
+
+    private Object clanValue(Clan clan, Clan.Column column) {
+        switch (column) {
+            case VERIFIED:
+                return clan.isVerified();
+            case COLOR_TAG:
+                return clan.getColorTag();
+            case NAME:
+                return clan.getName();
+            case FRIENDLY_FIRE:
+                return clan.isFriendlyFire();
+            case FOUNDED:
+                return clan.getFounded();
+            case LAST_USED:
+                return clan.getLastUsed();
+            case CAPE_URL:
+                return nullToEmpty(clan.getCapeUrl());
+            case BALANCE:
+                return clan.getBalance();
+            case FLAGS:
+                return clan.getFlags();
+            default:
+                throw new IllegalArgumentException("Unknown clan column " + column);
+        }
+    }
+
+    /**
+     * Delete a clan from the database
+     *
+     * @param clan
+     */
+    public void deleteClan(Clan clan) {
+        writeBehind.discard(clan);
+        String query = "DELETE FROM `sc_clans` WHERE tag = ?;";
+        write(clan.getTag(), query, clan.getTag());
+        write(clan.getTag(), "DELETE FROM `sc_clan_relations` WHERE clan_tag = ? OR other_tag = ?;", clan.getTag(), clan.getTag());
+        write(clan.getTag(), "DELETE FROM `sc_clan_bb` WHERE clan_tag = ?;", clan.getTag());
+    }
+
+    /**
+     * Make a clan an ally or rival of another, replacing any earlier relation between them
+     *
+     * @param clan
+     * @param otherTag
+     * @param ally     true for an ally, false for a rival
+     */
+    public void setRelation(Clan clan, String otherTag, boolean ally) {
+        write(clan.getTag(), "DELETE FROM `sc_clan_relations` WHERE clan_tag = ? AND other_tag = ?;", clan.getTag(), otherTag);
+        write(clan.getTag(), "INSERT INTO `sc_clan_relations` ( `clan_tag`, `other_tag`, `relation`) VALUES ( ?, ?, ?);", clan.getTag(), otherTag, ally ? RELATION_ALLY : RELATION_RIVAL);
+    }
+
+    /**
+     * Remove whatever relation a clan has with another
+     *
+     * @param clan
+     * @param otherTag
+     */
+    public void deleteRelation(Clan clan, String otherTag) {
+        write(clan.getTag(), "DELETE FROM `sc_clan_relations` WHERE clan_tag = ? AND other_tag = ?;", clan.getTag(), otherTag);
+    }
+
+    /**
+     * Insert a bulletin board message, dropping the oldest ones past the board size
+     *
+     * @param clan
+     * @param msg
+     */
+    public void insertBb(Clan clan, String msg) {
+        write(clan.getTag(), "INSERT INTO `sc_clan_bb` ( `clan_tag`, `posted`, `message`) VALUES ( ?, ?, ?);", clan.getTag(), System.currentTimeMillis(), msg);
+
+        int bbSize = plugin.getSettingsManager().getBbSize();
+
+        if (clan.getBb().size() > bbSize) {
+            write(clan.getTag(), "DELETE FROM `sc_clan_bb` WHERE clan_tag = ? AND id <= (SELECT id FROM (SELECT id FROM `sc_clan_bb` WHERE clan_tag = ? ORDER BY id DESC LIMIT 1 OFFSET ?) oldest);", clan.getTag(), clan.getTag(), bbSize);
+        }
+    }
+
+    /**
+     * Delete every bulletin board message of a clan
+     *
+     * @param clan
+     */
+    public void clearBb(Clan clan) {
+        write(clan.getTag(), "DELETE FROM `sc_clan_bb` WHERE clan_tag = ?;", clan.getTag());
+    }
+
+    /**
+     * Insert a clan player into the database
+     *
+     * @param cp
+     */
+    public void insertClanPlayer(ClanPlayer cp) {
+        cp.clearChanges();
+
+        if (SimpleClans.getInstance().hasUUID()) {
+            String query = "INSERT INTO `sc_players` ( `uuid`, `name`, `leader`, `tag`, `friendly_fire`, `neutral_kills`, `rival_kills`, `civilian_kills`, `deaths`, `last_seen`, `join_date`, `packed_past_clans`, `flags`) ";
+            String values = "VALUES ( ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);";
+            write(cp.getUniqueId(), query + values, cp.getUniqueId(), cp.getName(), cp.isLeader(), cp.getTag(), cp.isFriendlyFire(), cp.getNeutralKills(), cp.getRivalKills(), cp.getCivilianKills(), cp.getDeaths(), cp.getLastSeen(), cp.getJoinDate(), cp.getPackedPastClans(), cp.getFlags());
+        } else {
+            String query = "INSERT INTO `sc_players` (  `name`, `leader`, `tag`, `friendly_fire`, `neutral_kills`, `rival_kills`, `civilian_kills`, `deaths`, `last_seen`, `join_date`, `packed_past_clans`, `flags`) ";
+            String values = "VALUES ( ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);";
+            write(cp.getName().toLowerCase(), query + values, cp.getName(), cp.isLeader(), cp.getTag(), cp.isFriendlyFire(), cp.getNeutralKills(), cp.getRivalKills(), cp.getCivilianKills(), cp.getDeaths(), cp.getLastSeen(), cp.getJoinDate(), cp.getPackedPastClans(), cp.getFlags());
+        }
+    }
+
+    /**
+     * Update a clan player to the database asynchronously
+     *
+     * @param cp
+     */
+    public void updateClanPlayerAsync(final ClanPlayer cp) {
+        if (plugin.getSettingsManager().isWriteBehind()) {
+            updateClanPlayer(cp);
+            return;
+        }
+
+        cp.updateLastSeen();
+
+        // the values are read here, only the statement runs on the storage thread
+        Set<ClanPlayer.Column> columns = cp.takeChanges();
+        final RowUpdate update = clanPlayerUpdate(cp, columns, SimpleClans.getInstance().hasUUID());
+        final Runnable failed = retryLater(cp, columns);
+
+        if (update.isEmpty()) {
+            return;
+        }
+
+        executor.execute(writeKey(cp), new Runnable() {
+            @Override
+            public void run() {
+                if (!core.update(update.getQuery(), update.getParams())) {
+                    failed.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Update a clan player to the database, with write-behind on the row is only queued
+     * and written by the next flush
+     *
+     * @param cp
+     */
+    public void updateClanPlayer(ClanPlayer cp) {
+        cp.updateLastSeen();
+
+        if (plugin.getSettingsManager().isWriteBehind()) {
+            writeBehind.markDirty(cp);
+        } else {
+            Set<ClanPlayer.Column> columns = cp.takeChanges();
+            RowUpdate update = clanPlayerUpdate(cp, columns, SimpleClans.getInstance().hasUUID());
+
+            if (!update.isEmpty()) {
+                write(writeKey(cp), update, retryLater(cp, columns));
+            }
+        }
+    }
+
+    /**
+     * Builds the update of the columns the player changed since it was last written,
+     * the flags are only serialized when one of them changed
+     *
+     * @param cp
+     * @param columns the changes taken from the player
+     * @param uuid whether rows are keyed by uuid rather than name
+     * @return the update, empty if nothing changed
+     */
+    private RowUpdate clanPlayerUpdate(ClanPlayer cp, Set<ClanPlayer.Column> columns, boolean uuid) {
+        RowUpdate update = new RowUpdate("sc_players");
+
+        for (ClanPlayer.Column column : columns) {
+            // without uuids the name is the key
+            if (uuid || column != ClanPlayer.Column.NAME) {
+                update.set(column.getName(), clanPlayerValue(cp, column));
+            }
+        }
+
+        return uuid ? update.where("uuid", cp.getUniqueId()) : update.where("name", cp.getName());
+    }
+
+    /**
+     * @param cp
+     * @param columns the changes taken from the player
+     * @return marks the changes again when writing them failed, so the next write of the player retries them
+     */
+    private Runnable retryLater(final ClanPlayer cp, final Set<ClanPlayer.Column> columns) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                cp.restoreChanges(columns);
+
+                if (plugin.getSettingsManager().isWriteBehind()) {
+                    writeBehind.markDirty(cp);
+                }
+            }
+        };
+    }
+
+    private Object clanPlayerValue(ClanPlayer cp, ClanPlayer.Column column) {
+        switch (column) {
+            case NAME:
+                return cp.getName();
+            case LEADER:
+                return cp.isLeader();
+            case TAG:
+                return cp.getTag();
+            case FRIENDLY_FIRE:
+                return cp.isFriendlyFire();
+            case NEUTRAL_KILLS:
+                return cp.getNeutralKills();
+            case RIVAL_KILLS:
+                return cp.getRivalKills();
+            case CIVILIAN_KILLS:
+                return cp.getCivilianKills();
+            case DEATHS:
+                return cp.getDeaths();
+            case LAST_SEEN:
+                return cp.getLastSeen();
+            case JOIN_DATE:
+                return cp.getJoinDate();
+            case PACKED_PAST_CLANS:
+                return cp.getPackedPastClans();
+            case TRUSTED:
+                return cp.isTrusted();
+            case FLAGS:
+                return cp.getFlags();
+            default:
+                throw new IllegalArgumentException("Unknown player column " + column);
+        }
+    }
+
+    /**
+     * Writes every queued clan and clan player update in batches on the calling thread,
+     * used on shutdown. Must be called on the main thread.
+     */
+    public void flushPendingWrites() {
+        // rows collected earlier must not land after the newer ones written here
+        awaitFlush(null);
+        writePending(collectPendingWrites());
+    }
+
+    /**
+     * Takes the queued clans and players and reads the values of their changed columns.
+     * Must be called on the main thread, which is the one changing them.
+     *
+     * @return the updates to write
+     */
+    private PendingWrites collectPendingWrites() {
+        PendingWrites pending = new PendingWrites();
+
+        for (Clan clan : writeBehind.drainClans()) {
+            Set<Clan.Column> columns = clan.takeChanges();
+            pending.add(clan.getTag(), clanUpdate(clan, columns), retryLater(clan, columns));
+        }
+
+        boolean uuid = SimpleClans.getInstance().hasUUID();
+
+        for (ClanPlayer cp : writeBehind.drainClanPlayers()) {
+            Set<ClanPlayer.Column> columns = cp.takeChanges();
+            pending.add(writeKey(cp), clanPlayerUpdate(cp, columns, uuid), retryLater(cp, columns));
+        }
+
+        return pending;
+    }
+
+    /**
+     * Writes collected updates in batches, safe to call off the main thread
+     *
+     * @param pending
+     */
+    private synchronized void writePending(PendingWrites pending) {
+        int batchSize = Math.max(1, plugin.getSettingsManager().getWriteBehindBatchSize());
+
+        for (Map.Entry<String, List<Object[]>> entry : pending.rows.entrySet()) {
+            List<Object[]> rows = entry.getValue();
+            List<Runnable> failed = pending.failed.get(entry.getKey());
+
+            for (int i = 0; i < rows.size(); i += batchSize) {
+                int end = Math.min(i + batchSize, rows.size());
+
+                if (!core.batch(entry.getKey(), rows.subList(i, end))) {
+                    for (Runnable retry : failed.subList(i, end)) {
+                        retry.run();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Queued updates grouped by query, rows that changed the same columns share a query and go out in one batch
+     */
+    private static final class PendingWrites {
+
+        private final Map<String, List<Object[]>> rows = new LinkedHashMap<>();
+        // run for a row when its batch could not be written, in the same order as the rows
+        private final Map<String, List<Runnable>> failed = new HashMap<>();
+        // the clan tags, player uuids or lower case player names written
+        private final Set<Object> keys = new LinkedHashSet<>();
+
+        private void add(Object key, RowUpdate update, Runnable retry) {
+            if (update.isEmpty()) {
+                return;
+            }
+
+            keys.add(key);
+
+            String query = update.getQuery();
+            List<Object[]> queryRows = rows.get(query);
+
+            if (queryRows == null) {
+                queryRows = new ArrayList<>();
+                rows.put(query, queryRows);
+                failed.put(query, new ArrayList<Runnable>());
+            }
+
+            queryRows.add(update.getParams());
+            failed.get(query).add(retry);
+        }
+    }
+
+    /**
+     * Starts the task that writes queued updates once per coalescing window.
+     * The values are read on the main thread, only the batches are written on a storage thread.
+     */
+    private void writeBehindTask() {
+        long period = Math.max(1, plugin.getSettingsManager().getWriteBehindWindow() / 50);
+
+        plugin.getServer().getScheduler().runTaskTimer(plugin, new Runnable() {
+            @Override
+            public void run() {
+                final PendingWrites pending = collectPendingWrites();
+
+                if (pending.rows.isEmpty()) {
+                    return;
+                }
+
+                startFlush(pending.keys);
+
+                // behind the earlier writes of every clan and player in it, and ahead of their later ones
+                executor.execute(pending.keys, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            writePending(pending);
+                        } finally {
+                            endFlush(pending.keys);
+                        }
+                    }
+                });
+            }
+        }, period, period);
+    }
+
+    private void startFlush(Collection<Object> keys) {
+        synchronized (flushing) {
+            for (Object key : keys) {
+                Integer count = flushing.get(key);
+                flushing.put(key, count == null ? 1 : count + 1);
+            }
+        }
+    }
+
+    private void endFlush(Collection<Object> keys) {
+        synchronized (flushing) {
+            for (Object key : keys) {
+                Integer count = flushing.get(key);
+
+                if (count == null || count <= 1) {
+                    flushing.remove(key);
+                } else {
+                    flushing.put(key, count - 1);
+                }
+            }
+
+            flushing.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the flushes holding any of these clans and players have been written, so that a write
+     * made on the calling thread is not overwritten by the older values of a flush still running
+     *
+     * @param keys clan tags, player uuids or lower case player names, null to wait for every flush
+     */
+    private void awaitFlush(Collection<?> keys) {
+        boolean interrupted = false;
+
+        synchronized (flushing) {
+            while (keys == null ? !flushing.isEmpty() : !Collections.disjoint(flushing.keySet(), keys)) {
+                try {
+                    flushing.wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the queue of clans and players waiting to be written
+     */
+    public WriteBehindQueue getWriteBehindQueue() {
+        return writeBehind;
+    }
+
+    /**
+     * Writes a clan player's pending changes right away, used before the player is dropped from
+     * memory so that a later load reads its latest state
+     *
+     * @param cp
+     */
+    public void flushClanPlayer(ClanPlayer cp) {
+        awaitFlush(Collections.singleton(writeKey(cp)));
+
+        if (writeBehind.discard(cp)) {
+            Set<ClanPlayer.Column> columns = cp.takeChanges();
+            RowUpdate update = clanPlayerUpdate(cp, columns, SimpleClans.getInstance().hasUUID());
+
+            if (!update.isEmpty() && !core.update(update.getQuery(), update.getParams())) {
+                retryLater(cp, columns).run();
+            }
+        }
+    }
+
+    /**
+     * Whether a player has changes that are queued or still being written, safe to call off the main thread
+     *
+     * @param playerUniqueId
+     * @return true if a record read from the database now may be older than the player in memory
+     */
+    public boolean hasPendingWrites(UUID playerUniqueId) {
+        if (writeBehind.getPendingClanPlayer(playerUniqueId) != null) {
+            return true;
+        }
+
+        synchronized (flushing) {
+            return flushing.containsKey(playerUniqueId);
+        }
+    }
+
+    /**
+     * Writes the pending changes of the player with this uuid right away
+     *
+     * @param playerUniqueId
+     */
+    public void flushClanPlayer(UUID playerUniqueId) {
+        awaitFlush(Collections.singleton(playerUniqueId));
+        ClanPlayer pending = writeBehind.getPendingClanPlayer(playerUniqueId);
+
+        if (pending != null) {
+            flushClanPlayer(pending);
+        }
+    }
+
+    /**
+     * Delete a clan player from the database
+     *
+     * @param cp
+     */
+    public void deleteClanPlayer(ClanPlayer cp) {
+        writeBehind.discard(cp);
+
+        if (SimpleClans.getInstance().hasUUID()) {
+            // before the row goes, the kills are found by the name it holds
+            deleteKills(cp.getUniqueId());
+            String query = "DELETE FROM `sc_players` WHERE uuid = ?;";
+            write(cp.getUniqueId(), query, cp.getUniqueId());
+
+            // counts only know the name the kills were made under, the raw rows may be gone already
+            write(cp.getUniqueId(), "DELETE FROM `sc_kill_totals` WHERE `attacker` = ?", cp.getName());
+
+            if (killDates) {
+                write(cp.getUniqueId(), "DELETE FROM `sc_kills_daily` WHERE `attacker` = ?", cp.getName());
+            }
+        } else {
+            String query = "DELETE FROM `sc_players` WHERE name = ?;";
+            write(cp.getName().toLowerCase(), query, cp.getName());
+            deleteKills(cp.getName());
+        }
+    }
+
+    /**
+     * Insert a kill into the database
+     *
+     * @param attacker
+     * @param attackerTag
+     * @param victim
+     * @param victimTag
+     * @param type
+     */
+    public void insertKill(Player attacker, String attackerTag, Player victim, String victimTag, String type) {
+        if (killBufferUUID) {
+            killBuffer.add(killRow(attacker.getUniqueId(), attacker.getName(), attackerTag, victim.getUniqueId(), victim.getName(), victimTag, type));
+        } else {
+            killBuffer.add(killRow(attacker.getName(), attackerTag, victim.getName(), victimTag, type));
+        }
+    }
+
+    private Object[] killRow(Object... values) {
+        if (!killDates) {
+            return values;
+        }
+
+        Object[] row = Arrays.copyOf(values, values.length + 1);
+        row[values.length] = System.currentTimeMillis();
+        return row;
+    }
+
+    /**
+     * Starts the background writer for kills, the row layout follows the uuid mode in effect after startup
+     */
+    private void startKillBuffer() {
+        SettingsManager settings = plugin.getSettingsManager();
+        killBufferUUID = SimpleClans.getInstance().hasUUID();
+
+        String query;
+
+        if (killBufferUUID) {
+            query = "INSERT INTO `sc_kills` (  `attacker_uuid`, `attacker`, `attacker_tag`, `victim_uuid`, `victim`, `victim_tag`, `kill_type`" + (killDates ? ", `killed_at`) VALUES ( ?, ?, ?, ?, ?, ?, ?, ?);" : ") VALUES ( ?, ?, ?, ?, ?, ?, ?);");
+            killTotals = new KillTotals(core, settings.isUseMysql(), 1, 4);
+        } else {
+            query = "INSERT INTO `sc_kills` (  `attacker`, `attacker_tag`, `victim`, `victim_tag`, `kill_type`" + (killDates ? ", `killed_at`) VALUES ( ?, ?, ?, ?, ?, ?);" : ") VALUES ( ?, ?, ?, ?, ?);");
+            killTotals = new KillTotals(core, settings.isUseMysql(), 0, 2);
+        }
+
+        killBuffer = new KillBuffer(core, query, killTotals, settings.getKillBufferCapacity(), settings.getKillBufferBatchSize(), settings.getKillBufferLinger(), settings.isKillBufferBlock());
+    }
+
+    /**
+     * @return the buffer of kills waiting to be written
+     */
+    public KillBuffer getKillBuffer() {
+        return killBuffer;
+    }
+
+    /**
+     * Starts the task that rolls kills past the retention period up into daily counts
+     */
+    private void killRetentionTask() {
+        SettingsManager settings = plugin.getSettingsManager();
+        long period = Math.max(1, settings.getKillRetentionInterval()) * 60 * 20;
+
+        killRetention = new KillRetention(core, settings.isUseMysql(), settings.getKillRetentionDays(), settings.getKillRetentionChunkSize());
+        plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, killRetention, 20L * 60, period);
+    }
+
+    /**
+     * @return the job rolling up old kills, null when retention is off
+     */
+    public KillRetention getKillRetention() {
+        return killRetention;
+    }
+
+    /**
+     * Delete a player's kill record form the database
+     *
+     * @param playerName
+     */
+    @Deprecated
+    public void deleteKills(String playerName) {
+        write(playerName.toLowerCase(), "DELETE FROM `sc_kill_totals` WHERE `attacker` = ?", playerName);
+
+        if (killDates) {
+            write(playerName.toLowerCase(), "DELETE FROM `sc_kills_daily` WHERE `attacker` = ?", playerName);
+        }
+
+        String query = "DELETE FROM `sc_kills` WHERE `attacker` = ?";
+        write(playerName.toLowerCase(), query, playerName);
+    }
+
+    /**
+     * Delete a player's kill record form the database
+     *
+     * @param playerUniqueId
+     */
+    public void deleteKills(UUID playerUniqueId) {
+        // the totals and daily counts only know the names the player killed under, the raw kills
+        // may all have been rolled up already so the name the player is stored with is used as well
+        String names = "SELECT `attacker` FROM `sc_kills` WHERE `attacker_uuid` = ? UNION SELECT `name` FROM `sc_players` WHERE `uuid` = ?";
+        write(playerUniqueId, "DELETE FROM `sc_kill_totals` WHERE `attacker` IN (" + names + ")", playerUniqueId, playerUniqueId);
+
+        if (killDates) {
+            write(playerUniqueId, "DELETE FROM `sc_kills_daily` WHERE `attacker` IN (" + names + ")", playerUniqueId, playerUniqueId);
+        }
+
+        String query = "DELETE FROM `sc_kills` WHERE `attacker_uuid` = ?";
+        write(playerUniqueId, query, playerUniqueId);
+    }
+
+    /**
+     * Returns a map of victim->count of all kills that specific player did
+     * Read from the kill totals once they are built, limited to the top victims
+     * Until then the raw kills are added to the daily counts of rolled up kills
+     *
+     * @param playerName
+     * @return
+     */
+    public Map<String, Integer> getKillsPerPlayer(String playerName) {
+        HashMap<String, Integer> out = new HashMap<>();
+
+        ResultSet res;
+
+        if (killTotals != null && killTotals.isReady()) {
+            String query = "SELECT victim, kills FROM `sc_kill_totals` WHERE attacker = ? ORDER BY kills DESC LIMIT ?;";
+            res = core.select(query, playerName, plugin.getSettingsManager().getKillReportLimit());
+        } else if (killDates) {
+            String query = "SELECT victim, SUM(kills) AS kills FROM (SELECT victim, count(victim) AS kills FROM `sc_kills` WHERE attacker = ? GROUP BY victim UNION ALL SELECT victim, SUM(kills) AS kills FROM `sc_kills_daily` WHERE attacker = ? GROUP BY victim) k GROUP BY victim ORDER BY 2 DESC;";
+            res = core.select(query, playerName, playerName);
+        } else {
+            String query = "SELECT victim, count(victim) AS kills FROM `sc_kills` WHERE attacker = ? GROUP BY victim ORDER BY count(victim) DESC;";
+            res = core.select(query, playerName);
+        }
+
+        if (res != null) {
+            try {
+                while (res.next()) {
+                    try {
+                        String victim = res.getString("victim");
+                        int kills = res.getInt("kills");
+                        out.put(victim, kills);
+                    } catch (Exception ex) {
+                        SimpleClans.getLog().info(ex.getMessage());
+
+
+                    }
+                }
+            } catch (SQLException ex) {
+                SimpleClans.getLog().severe(String.format("An Error occurred: %s", ex.getErrorCode()));
+                SimpleClans.getLog().log(Level.SEVERE, null, ex);
+            } finally {
+                ConnectionPool.closeQuietly(res);
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * Returns a map of tag->count of all kills
+     * Read from the kill totals once they are built, limited to the top pairs
+     * Until then the raw kills are added to the daily counts of rolled up kills
+     *
+     * @return
+     */
+    public Map<String, Integer> getMostKilled() {
+        HashMap<String, Integer> out = new HashMap<>();
+
+        ResultSet res;
+
+        if (killTotals != null && killTotals.isReady()) {
+            String query = "SELECT attacker, victim, kills FROM `sc_kill_totals` ORDER BY kills DESC LIMIT ?;";
+            res = core.select(query, plugin.getSettingsManager().getKillReportLimit());
+        } else if (killDates) {
+            String query = "SELECT attacker, victim, SUM(kills) AS kills FROM (SELECT attacker, victim, count(victim) AS kills FROM `sc_kills` GROUP BY attacker, victim UNION ALL SELECT attacker, victim, SUM(kills) AS kills FROM `sc_kills_daily` GROUP BY attacker, victim) k GROUP BY attacker, victim ORDER BY 3 DESC;";
+            res = core.select(query);
+        } else {
+            String query = "SELECT attacker, victim, count(victim) AS kills FROM `sc_kills` GROUP BY attacker, victim ORDER BY 3 DESC;";
+            res = core.select(query);
+        }
+
+        if (res != null) {
+            try {
+                while (res.next()) {
+                    try {
+                        String attacker = res.getString("attacker");
+                        String victim = res.getString("victim");
+                        int kills = res.getInt("kills");
+                        out.put(attacker + " " + victim, kills);
+                    } catch (Exception ex) {
+                        SimpleClans.getLog().info(ex.getMessage());
+
+
+                    }
+                }
+            } catch (SQLException ex) {
+                SimpleClans.getLog().severe(String.format("An Error occurred: %s", ex.getErrorCode()));
+                SimpleClans.getLog().log(Level.SEVERE, null, ex);
+            } finally {
+                ConnectionPool.closeQuietly(res);
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * Runs a write on the storage executor when multithreading is on, otherwise on the calling thread.
+     * Writes with the same key are never reordered.
+     *
+     * @param key the clan tag, player uuid or lower case player name the write belongs to
+     */
+    private void write(Object key, final String query, final Object... params) {
+        if (plugin.getSettingsManager().getUseThreads() && plugin.getSettingsManager().isUseMysql()) {
+            executor.execute(key, new Runnable() {
+                @Override
+                public void run() {
+                    core.update(query, params);
+                }
+            });
+        } else {
+            awaitFlush(Collections.singleton(key));
+            core.update(query, params);
+        }
+    }
+
+    /**
+     * Runs a row update like {@link #write(Object, String, Object...)}
+     *
+     * @param key    the clan tag, player uuid or lower case player name the write belongs to
+     * @param update
+     * @param failed run when the update could not be written
+     */
+    private void write(Object key, final RowUpdate update, final Runnable failed) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                if (!core.update(update.getQuery(), update.getParams())) {
+                    failed.run();
+                }
+            }
+        };
+
+        if (plugin.getSettingsManager().getUseThreads() && plugin.getSettingsManager().isUseMysql()) {
+            executor.execute(key, task);
+        } else {
+            awaitFlush(Collections.singleton(key));
+            task.run();
+        }
+    }
+
+    private Object writeKey(ClanPlayer cp) {
+        return SimpleClans.getInstance().hasUUID() ? cp.getUniqueId() : cp.getName().toLowerCase();
+    }
+
+    /**
+     * Start a group of writes that is committed in one transaction
+     *
+     * @return the empty unit of work
+     */
+    public UnitOfWork beginWork() {
+        return new UnitOfWork();
+    }
+
+    /**
+     * Writes to several clans and players that are committed together, so either all of them
+     * or none of them reach the database. Consecutive rows with the same query go out in one batch.
+     * Rows written through a unit of work skip the write-behind queue.
+     */
+    public final class UnitOfWork {
+
+        private final Set<Object> keys = new LinkedHashSet<>();
+        private final List<String> queries = new ArrayList<>();
+        private final List<Object[]> params = new ArrayList<>();
+        // marks the taken changes of the clans and players again if the transaction fails
+        private final List<Runnable> failed = new ArrayList<>();
+        private boolean committed;
+
+        private UnitOfWork() {
+        }
+
+        /**
+         * Add the update of a clan player
+         *
+         * @param cp
+         * @return this unit of work
+         */
+        public UnitOfWork updateClanPlayer(ClanPlayer cp) {
+            cp.updateLastSeen();
+            // its queued changes are still marked on the player and go out with this update
+            writeBehind.discard(cp);
+            Set<ClanPlayer.Column> columns = cp.takeChanges();
+            failed.add(retryLater(cp, columns));
+            return add(writeKey(cp), clanPlayerUpdate(cp, columns, SimpleClans.getInstance().hasUUID()));
+        }
+
+        /**
+         * Add the update of a clan
+         *
+         * @param clan
+         * @return this unit of work
+         */
+        public UnitOfWork updateClan(Clan clan) {
+            clan.updateLastUsed();
+            writeBehind.discard(clan);
+            Set<Clan.Column> columns = clan.takeChanges();
+            failed.add(retryLater(clan, columns));
+            return add(clan.getTag(), clanUpdate(clan, columns));
+        }
+
+        /**
+         * Add the deletion of a clan with its relations and bulletin board
+         *
+         * @param clan
+         * @return this unit of work
+         */
+        public UnitOfWork deleteClan(Clan clan) {
+            writeBehind.discard(clan);
+            add(clan.getTag(), "DELETE FROM `sc_clan_relations` WHERE clan_tag = ? OR other_tag = ?;", clan.getTag(), clan.getTag());
+            add(clan.getTag(), "DELETE FROM `sc_clan_bb` WHERE clan_tag = ?;", clan.getTag());
+            return add(clan.getTag(), "DELETE FROM `sc_clans` WHERE tag = ?;", clan.getTag());
+        }
+
+        /**
+         * Add a statement
+         *
+         * @param key    the clan tag, player uuid or lower case player name the statement writes
+         * @param query  with ? placeholders
+         * @param values bound to the placeholders in order
+         * @return this unit of work
+         */
+        public UnitOfWork add(Object key, String query, Object... values) {
+            if (committed) {
+                throw new IllegalStateException("Unit of work already committed");
+            }
+
+            keys.add(key);
+            queries.add(query);
+            params.add(values);
+            return this;
+        }
+
+        private UnitOfWork add(Object key, RowUpdate update) {
+            return update.isEmpty() ? this : add(key, update.getQuery(), update.getParams());
+        }
+
+        /**
+         * Write every added statement in one transaction, on the storage executor behind the earlier
+         * writes of all the clans and players involved when multithreading is on
+         */
+        public void commit() {
+            if (committed) {
+                throw new IllegalStateException("Unit of work already committed");
+            }
+
+            committed = true;
+
+            if (queries.isEmpty()) {
+                return;
+            }
+
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    if (!execute()) {
+                        for (Runnable retry : failed) {
+                            retry.run();
+                        }
+                    }
+                }
+            };
+
+            if (plugin.getSettingsManager().getUseThreads() && plugin.getSettingsManager().isUseMysql()) {
+                executor.execute(keys, task);
+            } else {
+                awaitFlush(keys);
+                task.run();
+            }
+        }
+
+        private boolean execute() {
+            Connection connection = core.getConnection();
+
+            if (connection == null) {
+                return false;
+            }
+
+            PreparedStatement statement = null;
+            String current = null;
+
+            try {
+                connection.setAutoCommit(false);
+
+                for (int i = 0; i < queries.size(); i++) {
+                    String query = queries.get(i);
+
+                    if (!query.equals(current)) {
+                        if (statement != null) {
+                            statement.executeBatch();
+                            statement.close();
+                        }
+
+                        statement = connection.prepareStatement(query);
+                        current = query;
+                    }
+
+                    getPool().bind(statement, params.get(i));
+                    statement.addBatch();
+                }
+
+                statement.executeBatch();
+                connection.commit();
+                return true;
+            } catch (SQLException ex) {
+                SimpleClans.getLog().severe("Error at SQL TRANSACTION: " + ex);
+                SimpleClans.getLog().severe("Query: " + current + " (" + queries.size() + " statements)");
+                return false;
+            } finally {
+                // the pool rolls back anything left uncommitted when the connection is handed back
+                ConnectionPool.closeQuietly(statement, connection);
+            }
+        }
+    }
+
+    /**
+     * Waits for every queued storage write to finish, called on shutdown before the final flush
+     */
+    public void shutdownExecutor() {
+        executor.shutdown(30);
+    }
+
+    /**
+     * @return the executor running asynchronous storage writes
+     */
+    public StorageExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * The text columns are NOT NULL, the old string building stored missing values as ''
+     */
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    /**
+     * Updates the database to the latest version
+     */
+    private void migrateDatabase() {
+        SchemaMigrator migrator = new SchemaMigrator(core, plugin.getSettingsManager().isUseMysql());
+
+        migrator.add(new Migration(1, "Create tables") {
+            @Override
+            public void apply(Connection connection, boolean mysql) throws SQLException {
+                if (mysql) {
+                    execute(connection, "CREATE TABLE IF NOT EXISTS `sc_clans` ( `id` bigint(20) NOT NULL auto_increment, `verified` tinyint(1) default '0', `tag` varchar(25) NOT NULL, `color_tag` varchar(25) NOT NULL, `name` varchar(100) NOT NULL, `friendly_fire` tinyint(1) default '0', `founded` bigint NOT NULL, `last_used` bigint NOT NULL, `packed_allies` text NOT NULL, `packed_rivals` text NOT NULL, `packed_bb` mediumtext NOT NULL, `cape_url` varchar(255) NOT NULL, `flags` text NOT NULL, `balance` double(64,2), PRIMARY KEY  (`id`), UNIQUE KEY `uq_simpleclans_1` (`tag`));");
+                    execute(connection, "CREATE TABLE IF NOT EXISTS `sc_players` ( `id` bigint(20) NOT NULL auto_increment, `name` varchar(16) NOT NULL, `leader` tinyint(1) default '0', `tag` varchar(25) NOT NULL, `friendly_fire` tinyint(1) default '0', `neutral_kills` int(11) default NULL, `rival_kills` int(11) default NULL, `civilian_kills` int(11) default NULL, `deaths` int(11) default NULL, `last_seen` bigint NOT NULL, `join_date` bigint NOT NULL, `trusted` tinyint(1) default '0', `flags` text NOT NULL, `packed_past_clans` text, PRIMARY KEY  (`id`), UNIQUE KEY `uq_sc_players_1` (`name`));");
+                    execute(connection, "CREATE TABLE IF NOT EXISTS `sc_kills` ( `kill_id` bigint(20) NOT NULL auto_increment, `attacker` varchar(16) NOT NULL, `attacker_tag` varchar(16) NOT NULL, `victim` varchar(16) NOT NULL, `victim_tag` varchar(16) NOT NULL, `kill_type` varchar(1) NOT NULL, PRIMARY KEY  (`kill_id`));");
+                } else {
+                    execute(connection, "CREATE TABLE IF NOT EXISTS `sc_clans` ( `id` bigint(20), `verified` tinyint(1) default '0', `tag` varchar(25) NOT NULL, `color_tag` varchar(25) NOT NULL, `name` varchar(100) NOT NULL, `friendly_fire` tinyint(1) default '0', `founded` bigint NOT NULL, `last_used` bigint NOT NULL, `packed_allies` text NOT NULL, `packed_rivals` text NOT NULL, `packed_bb` mediumtext NOT NULL, `cape_url` varchar(255) NOT NULL, `flags` text NOT NULL, `balance` double(64,2) default 0.0,  PRIMARY KEY  (`id`), UNIQUE (`tag`));");
+                    execute(connection, "CREATE TABLE IF NOT EXISTS `sc_players` ( `id` bigint(20), `name` varchar(16) NOT NULL, `leader` tinyint(1) default '0', `tag` varchar(25) NOT NULL, `friendly_fire` tinyint(1) default '0', `neutral_kills` int(11) default NULL, `rival_kills` int(11) default NULL, `civilian_kills` int(11) default NULL, `deaths` int(11) default NULL, `last_seen` bigint NOT NULL, `join_date` bigint NOT NULL, `trusted` tinyint(1) default '0', `flags` text NOT NULL, `packed_past_clans` text, PRIMARY KEY  (`id`), UNIQUE (`name`));");
+                    execute(connection, "CREATE TABLE IF NOT EXISTS `sc_kills` ( `kill_id` bigint(20), `attacker` varchar(16) NOT NULL, `attacker_tag` varchar(16) NOT NULL, `victim` varchar(16) NOT NULL, `victim_tag` varchar(16) NOT NULL, `kill_type` varchar(1) NOT NULL, PRIMARY KEY  (`kill_id`));");
+                }
+            }
+        });
+
+        /**
+         * From 2.2.6.3 to 2.3
+         */
+        migrator.add(new Migration(2, "Add clan balance") {
+            @Override
+            public void apply(Connection connection, boolean mysql) throws SQLException {
+                if (!existsColumn(connection, "sc_clans", "balance")) {
+                    execute(connection, "ALTER TABLE sc_clans ADD COLUMN `balance` double(64,2);");
+                }
+            }
+        });
+
+        migrator.add(new Migration(3, "Index kills by attacker and victim") {
+            @Override
+            public void apply(Connection connection, boolean mysql) throws SQLException {
+                createIndex(connection, "sc_kills", "idx_sc_kills_attacker", "`attacker`");
+                createIndex(connection, "sc_kills", "idx_sc_kills_victim", "`victim`");
+            }
+        });
+
+        /**
+         * Bukkit 1.7.5+ UUID Migration
+         */
+        migrator.add(new Migration(4, "Migrate players to UUIDs") {
+            @Override
+            public boolean isApplicable() {
+                return plugin.getSettingsManager().isOnlineMode();
+            }
+
+            @Override
+            public void apply(Connection connection, boolean mysql) throws SQLException {
+                if (!existsColumn(connection, "sc_kills", "attacker_uuid")) {
+                    execute(connection, "ALTER TABLE sc_kills ADD attacker_uuid VARCHAR( 255 ) DEFAULT NULL;");
+                }
+                if (!existsColumn(connection, "sc_kills", "victim_uuid")) {
+                    execute(connection, "ALTER TABLE sc_kills ADD victim_uuid VARCHAR( 255 ) DEFAULT NULL;");
+                }
+                if (!existsColumn(connection, "sc_players", "uuid")) {
+                    execute(connection, "ALTER TABLE sc_players ADD uuid VARCHAR( 255 ) DEFAULT NULL;");
+                }
+
+                if (!existsIndex(connection, "sc_players", "uq_player_uuid")) {
+                    execute(connection, "CREATE UNIQUE INDEX `uq_player_uuid` ON `sc_players` (`uuid`);");
+                }
+
+                updatePlayersToUUID(connection);
+
+                // sqlite keeps the unique name constraint, it cannot be dropped there
+                if (mysql && existsIndex(connection, "sc_players", "uq_sc_players_1")) {
+                    execute(connection, "ALTER TABLE sc_players DROP INDEX uq_sc_players_1;");
+                }
+
+                createIndex(connection, "sc_kills", "idx_sc_kills_attacker_uuid", "`attacker_uuid`");
+                createIndex(connection, "sc_kills", "idx_sc_kills_victim_uuid", "`victim_uuid`");
+            }
+        });
+
+        migrator.add(new Migration(5, "Move allies, rivals and bulletin boards to their own tables") {
+            @Override
+            public void apply(Connection connection, boolean mysql) throws SQLException {
+                if (mysql) {
+                    execute(connection, "CREATE TABLE IF NOT EXISTS `sc_clan_relations` ( `clan_tag` varchar(25) NOT NULL, `other_tag` varchar(25) NOT NULL, `relation` varchar(1) NOT NULL, PRIMARY KEY  (`clan_tag`, `other_tag`), KEY `idx_sc_clan_relations_other` (`other_tag`));");
+                    execute(connection, "CREATE TABLE IF NOT EXISTS `sc_clan_bb` ( `id` bigint(20) NOT NULL auto_increment, `clan_tag` varchar(25) NOT NULL, `posted` bigint NOT NULL, `message` text NOT NULL, PRIMARY KEY  (`id`), KEY `idx_sc_clan_bb_clan` (`clan_tag`, `id`));");
+                } else {
+                    execute(connection, "CREATE TABLE IF NOT EXISTS `sc_clan_relations` ( `clan_tag` varchar(25) NOT NULL, `other_tag` varchar(25) NOT NULL, `relation` varchar(1) NOT NULL, PRIMARY KEY  (`clan_tag`, `other_tag`));");
+                    execute(connection, "CREATE TABLE IF NOT EXISTS `sc_clan_bb` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `clan_tag` varchar(25) NOT NULL, `posted` bigint NOT NULL, `message` text NOT NULL);");
+                    createIndex(connection, "sc_clan_relations", "idx_sc_clan_relations_other", "`other_tag`");
+                    createIndex(connection, "sc_clan_bb", "idx_sc_clan_bb_clan", "`clan_tag`, `id`");
+                }
+
+                unpackClans(connection, mysql);
+            }
+        });
+
+        migrator.add(new Migration(6, "Store UUIDs as BINARY(16)") {
+            @Override
+            public boolean isApplicable() {
+                return plugin.getSettingsManager().isOnlineMode() && plugin.getSettingsManager().isBinaryUuids();
+            }
+
+            @Override
+            public void apply(Connection connection, boolean mysql) throws SQLException {
+                if (mysql) {
+                    binaryUuidColumns(connection, "sc_players", "id", "uuid");
+                    binaryUuidColumns(connection, "sc_kills", "kill_id", "attacker_uuid", "victim_uuid");
+
+                    if (!existsIndex(connection, "sc_players", "uq_player_uuid")) {
+                        execute(connection, "CREATE UNIQUE INDEX `uq_player_uuid` ON `sc_players` (`uuid`);");
+                    }
+                    createIndex(connection, "sc_kills", "idx_sc_kills_attacker_uuid", "`attacker_uuid`");
+                    createIndex(connection, "sc_kills", "idx_sc_kills_victim_uuid", "`victim_uuid`");
+                } else {
+                    // sqlite keeps blobs as they are in any column, so the values are converted in place
+                    binaryUuidValues(connection, "sc_players", "uuid");
+                    binaryUuidValues(connection, "sc_kills", "attacker_uuid");
+                    binaryUuidValues(connection, "sc_kills", "victim_uuid");
+                }
+            }
+        });
+
+        migrator.add(new Migration(7, "Date kills and add daily kill counts") {
+            @Override
+            public void apply(Connection connection, boolean mysql) throws SQLException {
+                if (!existsColumn(connection, "sc_kills", "killed_at")) {
+                    execute(connection, "ALTER TABLE `sc_kills` ADD `killed_at` bigint NOT NULL default 0;");
+                }
+                createIndex(connection, "sc_kills", "idx_sc_kills_killed_at", "`killed_at`");
+
+                execute(connection, "CREATE TABLE IF NOT EXISTS `sc_kills_daily` ( `day` int(11) NOT NULL, `attacker` varchar(16) NOT NULL, `victim` varchar(16) NOT NULL, `kill_type` varchar(1) NOT NULL, `kills` int(11) NOT NULL default '0', PRIMARY KEY  (`day`, `attacker`, `victim`, `kill_type`));");
+                createIndex(connection, "sc_kills_daily", "idx_sc_kills_daily_attacker", "`attacker`");
+                createIndex(connection, "sc_kills_daily", "idx_sc_kills_daily_victim", "`victim`");
+            }
+        });
+
+        migrator.migrate();
+
+        getPool().setBinaryUuids(migrator.isApplied(6));
+        killDates = migrator.isApplied(7);
+        schemaStamp = 0;
+
+        // a snapshot taken before a migration ran is not used
+        for (int version = 1; version < Long.SIZE; version++) {
+            if (migrator.isApplied(version)) {
+                schemaStamp |= 1L << version;
+            }
+        }
+
+        if (plugin.getSettingsManager().isBinaryUuids() != getPool().isBinaryUuids()) {
+            SimpleClans.getLog().warning("[SimpleClans] UUIDs are stored as " + (getPool().isBinaryUuids() ? "binary" : "text") + ", performance.uuid-format is ignored");
+        }
+    }
+
+    /**
+     * Converts MySQL uuid text columns to BINARY(16). The values are copied into new columns in
+     * chunks of the primary key, each committed on its own so the table is never locked for long,
+     * then the new columns replace the old ones.
+     *
+     * @param connection
+     * @param table
+     * @param key     auto increment primary key of the table
+     * @param columns
+     * @throws SQLException
+     */
+    private void binaryUuidColumns(Connection connection, String table, String key, String... columns) throws SQLException {
+        ResultSet type = connection.getMetaData().getColumns(null, null, table, columns[0]);
+
+        try {
+            if (type.next() && type.getString("TYPE_NAME").toUpperCase().contains("BINARY")) {
+                return;
+            }
+        } finally {
+            ConnectionPool.closeQuietly(type);
+        }
+
+        StringBuilder copy = new StringBuilder();
+        StringBuilder swap = new StringBuilder();
+
+        for (String column : columns) {
+            if (!Migration.existsColumn(connection, table, column + "_bin")) {
+                Migration.execute(connection, "ALTER TABLE `" + table + "` ADD `" + column + "_bin` BINARY(16) DEFAULT NULL;");
+            }
+
+            copy.append(copy.length() == 0 ? "" : ", ").append("`").append(column).append("_bin` = UNHEX(REPLACE(`").append(column).append("`, '-', ''))");
+            swap.append(swap.length() == 0 ? "" : ", ").append("DROP `").append(column).append("`, CHANGE `").append(column).append("_bin` `").append(column).append("` BINARY(16) DEFAULT NULL");
+        }
+
+        long min = 0;
+        long max = -1;
+        Statement bounds = connection.createStatement();
+
+        try {
+            ResultSet res = bounds.executeQuery("SELECT MIN(`" + key + "`), MAX(`" + key + "`) FROM `" + table + "`;");
+
+            if (res.next()) {
+                min = res.getLong(1);
+                max = res.getLong(2);
+            }
+        } finally {
+            ConnectionPool.closeQuietly(bounds);
+        }
+
+        PreparedStatement update = connection.prepareStatement("UPDATE `" + table + "` SET " + copy + " WHERE `" + key + "` BETWEEN ? AND ?;");
+
+        try {
+            for (long from = min; from <= max; from += UUID_CHUNK) {
+                getPool().bind(update, from, from + UUID_CHUNK - 1);
+                update.executeUpdate();
+                connection.commit();
+            }
+        } finally {
+            ConnectionPool.closeQuietly(update);
+        }
+
+        SimpleClans.log("[SimpleClans] Converted the uuids of " + table + " to binary");
+        Migration.execute(connection, "ALTER TABLE `" + table + "` " + swap + ";");
+    }
+
+    /**
+     * Rewrites the uuid strings of a SQLite column as 16 raw bytes, in chunks
+     *
+     * @param connection
+     * @param table
+     * @param column
+     * @throws SQLException
+     */
+    private void binaryUuidValues(Connection connection, String table, String column) throws SQLException {
+        PreparedStatement select = connection.prepareStatement("SELECT rowid, `" + column + "` FROM `" + table + "` WHERE typeof(`" + column + "`) = 'text' LIMIT " + UUID_CHUNK + ";");
+        PreparedStatement update = connection.prepareStatement("UPDATE `" + table + "` SET `" + column + "` = ? WHERE rowid = ?;");
+
+        try {
+            while (true) {
+                List<Object[]> rows = new ArrayList<>();
+                ResultSet res = select.executeQuery();
+
+                try {
+                    while (res.next()) {
+                        rows.add(new Object[]{res.getLong(1), res.getString(2)});
+                    }
+                } finally {
+                    ConnectionPool.closeQuietly(res);
+                }
+
+                if (rows.isEmpty()) {
+                    return;
+                }
+
+                for (Object[] row : rows) {
+                    byte[] bytes = null;
+
+                    try {
+                        bytes = UUIDFetcher.toBytes(UUID.fromString((String) row[1]));
+                    } catch (IllegalArgumentException ex) {
+                        SimpleClans.getLog().warning("[SimpleClans] Dropping invalid uuid " + row[1] + " from " + table + "." + column);
+                    }
+
+                    update.setBytes(1, bytes);
+                    update.setLong(2, (Long) row[0]);
+                    update.addBatch();
+                }
+
+                update.executeBatch();
+            }
+        } finally {
+            ConnectionPool.closeQuietly(select, update);
+        }
+    }
+
+    /**
+     * Copies the packed allies, rivals and bulletin boards of every clan into their tables and empties the packed columns
+     *
+     * @param connection
+     * @param mysql
+     * @throws SQLException
+     */
+    private void unpackClans(Connection connection, boolean mysql) throws SQLException {
+        Statement select = connection.createStatement();
+        PreparedStatement relations = connection.prepareStatement((mysql ? "INSERT IGNORE" : "INSERT OR IGNORE") + " INTO `sc_clan_relations` ( `clan_tag`, `other_tag`, `relation`) VALUES ( ?, ?, ?);");
+        PreparedStatement bb = connection.prepareStatement("INSERT INTO `sc_clan_bb` ( `clan_tag`, `posted`, `message`) VALUES ( ?, ?, ?);");
+
+        try {
+            ResultSet res = select.executeQuery("SELECT `tag`, `packed_allies`, `packed_rivals`, `packed_bb` FROM `sc_clans`;");
+            long now = System.currentTimeMillis();
+
+            while (res.next()) {
+                String tag = res.getString("tag");
+
+                for (String ally : Helper.fromArray(nullToEmpty(res.getString("packed_allies")).split("[|]"))) {
+                    getPool().bind(relations, tag, ally, RELATION_ALLY);
+                    relations.addBatch();
+                }
+
+                for (String rival : Helper.fromArray(nullToEmpty(res.getString("packed_rivals")).split("[|]"))) {
+                    getPool().bind(relations, tag, rival, RELATION_RIVAL);
+                    relations.addBatch();
+                }
+
+                for (String msg : Helper.fromArray(nullToEmpty(res.getString("packed_bb")).split("[|]"))) {
+                    getPool().bind(bb, tag, now, msg);
+                    bb.addBatch();
+                }
+            }
+
+            relations.executeBatch();
+            bb.executeBatch();
+            select.executeUpdate("UPDATE `sc_clans` SET `packed_allies` = '', `packed_rivals` = '', `packed_bb` = '';");
+        } finally {
+            ConnectionPool.closeQuietly(select, relations, bb);
+        }
+    }
+
+    /**
+     * Fills in the uuid of every player that has none, along with their kills.
+     * <p>
+     * Names are looked up 100 per request on a few threads at once. The rows of each lookup are
+     * written as batches and committed together, so an interrupted migration keeps what it wrote
+     * and the next start only looks up the players still without a uuid.
+     *
+     * @param connection
+     * @throws SQLException
+     */
+    private void updatePlayersToUUID(Connection connection) throws SQLException {
+        List<String> names = new ArrayList<>();
+        Set<UUID> taken = new HashSet<>();
+        Statement select = connection.createStatement();
+
+        try {
+            ResultSet res = select.executeQuery("SELECT `name`, `uuid` FROM `sc_players`;");
+
+            while (res.next()) {
+                UUID uuid = getPool().getUuid(res, 2);
+
+                if (uuid == null) {
+                    names.add(res.getString(1));
+                } else {
+                    taken.add(uuid);
+                }
+            }
+        } finally {
+            ConnectionPool.closeQuietly(select);
+        }
+
+        if (names.isEmpty()) {
+            return;
+        }
+
+        SimpleClans.log("[SimpleClans] Starting Migration to UUID Players !");
+        SimpleClans.log("[SimpleClans] ==================== ATTENTION DONT STOP BUKKIT ! ==================== ");
+        SimpleClans.log("[SimpleClans] ==================== ATTENTION DONT STOP BUKKIT ! ==================== ");
+        SimpleClans.log("[SimpleClans] ==================== ATTENTION DONT STOP BUKKIT ! ==================== ");
+
+        if (taken.size() > 0) {
+            SimpleClans.log("[SimpleClans] Resuming, " + taken.size() + " players already have a UUID");
+        }
+
+        boolean online = SimpleClans.getInstance().getServer().getOnlineMode();
+        final String profileUrl = plugin.getSettingsManager().getUuidProfileUrl();
+        int threads = Math.max(1, plugin.getSettingsManager().getUuidMigrationThreads());
+        ExecutorService lookups = Executors.newFixedThreadPool(online ? threads : 1);
+        LinkedList<Future<Map<String, UUID>>> pending = new LinkedList<>();
+        int done = 0;
+        int migrated = 0;
+        int failed = 0;
+
+        try {
+            for (int i = 0; i < names.size() || !pending.isEmpty(); ) {
+                // keep a few lookups ahead of the writes, but not the whole table
+                while (i < names.size() && pending.size() < threads * 2) {
+                    final List<String> batch = names.subList(i, Math.min(i + UUID_LOOKUP_BATCH, names.size()));
+                    final boolean mojang = online;
+
+                    pending.add(lookups.submit(new Callable<Map<String, UUID>>() {
+                        @Override
+                        public Map<String, UUID> call() throws Exception {
+                            return lookupUuids(batch, mojang, profileUrl);
+                        }
+                    }));
+                    i += batch.size();
+                }
+
+                Map<String, UUID> found = awaitLookup(pending.removeFirst());
+                int batchStart = done;
+                done += Math.min(UUID_LOOKUP_BATCH, names.size() - done);
+
+                // the players of a failed lookup keep no uuid, so the rerun looks them up again
+                if (found == null) {
+                    failed += done - batchStart;
+                } else {
+                    migrated += writeUuids(connection, names.subList(batchStart, done), found, taken);
+                }
+                SimpleClans.log("[SimpleClans] [" + done + " / " + names.size() + "] players looked up, " + migrated + " migrated");
+            }
+        } finally {
+            lookups.shutdownNow();
+        }
+
+        // the migration is not recorded as applied, what was committed lets the next start resume
+        if (failed > 0) {
+            throw new SQLException("Could not look up the UUID of " + failed + " players, the migration resumes on the next start");
+        }
+
+        SimpleClans.log("[SimpleClans] ==================== END OF MIGRATION ====================");
+        SimpleClans.log("[SimpleClans] ==================== END OF MIGRATION ====================");
+        SimpleClans.log("[SimpleClans] ==================== END OF MIGRATION ====================");
+
+        SimpleClans.log(MessageFormat.format("[SimpleClans] " + plugin.getLang("clan.players"), migrated));
+    }
+
+    /**
+     * Looks up the uuids of up to 100 names, retrying when the lookup fails
+     *
+     * @param names
+     * @param online     whether to ask Mojang rather than derive offline uuids
+     * @param profileUrl the endpoint to ask
+     * @return the uuids by name, ignoring case, names without an account are missing
+     */
+    private static Map<String, UUID> lookupUuids(List<String> names, boolean online, String profileUrl) throws Exception {
+        Map<String, UUID> out = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        if (!online) {
+            for (String name : names) {
+                out.put(name, UUID.nameUUIDFromBytes(("OfflinePlayer:" + name).getBytes(Charsets.UTF_8)));
+            }
+
+            return out;
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                out.putAll(new UUIDFetcher(names, true, profileUrl).call());
+                return out;
+            } catch (Exception ex) {
+                if (attempt >= UUID_LOOKUP_ATTEMPTS) {
+                    throw ex;
+                }
+
+                // most failures are the rate limit, back off before trying again
+                Thread.sleep(TimeUnit.SECONDS.toMillis(5L * attempt));
+            }
+        }
+    }
+
+    /**
+     * @param lookup
+     * @return the uuids found, null if the lookup failed
+     */
+    private static Map<String, UUID> awaitLookup(Future<Map<String, UUID>> lookup) {
+        try {
+            return lookup.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            SimpleClans.getLog().log(Level.WARNING, "[SimpleClans] UUID lookup failed, the players are tried again on the next start", ex.getCause());
+        }
+
+        return null;
+    }
+
+    /**
+     * Writes the uuids of one lookup and commits them
+     *
+     * @param connection
+     * @param names the names that were looked up
+     * @param found their uuids
+     * @param taken uuids already stored, a renamed player can resolve to one of them
+     * @return the number of players migrated
+     * @throws SQLException
+     */
+    private int writeUuids(Connection connection, List<String> names, Map<String, UUID> found, Set<UUID> taken) throws SQLException {
+        PreparedStatement players = connection.prepareStatement("UPDATE `sc_players` SET uuid = ? WHERE name = ? AND uuid IS NULL;");
+        PreparedStatement attackers = connection.prepareStatement("UPDATE `sc_kills` SET attacker_uuid = ? WHERE attacker = ?;");
+        PreparedStatement victims = connection.prepareStatement("UPDATE `sc_kills` SET victim_uuid = ? WHERE victim = ?;");
+        int migrated = 0;
+
+        try {
+            for (String name : names) {
+                UUID uuid = found.get(name);
+
+                if (uuid == null) {
+                    SimpleClans.log("[SimpleClans] Failed [ERRO]: " + name + "; UUID: ???");
+                    continue;
+                }
+
+                if (!taken.add(uuid)) {
+                    SimpleClans.log("[SimpleClans] Failed [ERRO]: " + name + "; UUID: " + uuid + " belongs to another player");
+                    continue;
+                }
+
+                for (PreparedStatement statement : new PreparedStatement[]{players, attackers, victims}) {
+                    getPool().bind(statement, uuid, name);
+                    statement.addBatch();
+                }
+
+                migrated++;
+            }
+
+            if (migrated > 0) {
+                players.executeBatch();
+                attackers.executeBatch();
+                victims.executeBatch();
+            }
+
+            connection.commit();
+        } finally {
+            ConnectionPool.closeQuietly(players, attackers, victims);
+        }
+
+        return migrated;
+    }
+
+    private int parserThreads() {
+        int threads = plugin.getSettingsManager().getImportParserThreads();
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return how long each stage of the last full import took
+     */
+    public String getLastImportTimings() {
+        return lastImportTimings;
+    }
+
+    /**
+     * Column positions of sc_clans, looked up once per result set
+     */
+    private static final class ClanColumns {
+
+        private final int verified;
+        private final int friendlyFire;
+        private final int tag;
+        private final int colorTag;
+        private final int name;
+        private final int capeUrl;
+        private final int flags;
+        private final int founded;
+        private final int lastUsed;
+        private final int balance;
+
+        private ClanColumns(ResultSet res) throws SQLException {
+            verified = res.findColumn("verified");
+            friendlyFire = res.findColumn("friendly_fire");
+            tag = res.findColumn("tag");
+            colorTag = res.findColumn("color_tag");
+            name = res.findColumn("name");
+            capeUrl = res.findColumn("cape_url");
+            flags = res.findColumn("flags");
+            founded = res.findColumn("founded");
+            lastUsed = res.findColumn("last_used");
+            balance = res.findColumn("balance");
+        }
+    }
+
+    /**
+     * Column positions of sc_players, looked up once per result set
+     */
+    private static final class ClanPlayerColumns {
+
+        private final int uuid;
+        private final int name;
+        private final int tag;
+        private final int leader;
+        private final int friendlyFire;
+        private final int trusted;
+        private final int neutralKills;
+        private final int rivalKills;
+        private final int civilianKills;
+        private final int deaths;
+        private final int lastSeen;
+        private final int joinDate;
+        private final int flags;
+        private final int packedPastClans;
+
+        private ClanPlayerColumns(ResultSet res) throws SQLException {
+            uuid = optionalColumn(res, "uuid");
+            name = res.findColumn("name");
+            tag = res.findColumn("tag");
+            leader = res.findColumn("leader");
+            friendlyFire = res.findColumn("friendly_fire");
+            trusted = res.findColumn("trusted");
+            neutralKills = res.findColumn("neutral_kills");
+            rivalKills = res.findColumn("rival_kills");
+            civilianKills = res.findColumn("civilian_kills");
+            deaths = res.findColumn("deaths");
+            lastSeen = res.findColumn("last_seen");
+            joinDate = res.findColumn("join_date");
+            flags = res.findColumn("flags");
+            packedPastClans = res.findColumn("packed_past_clans");
+        }
+
+        /**
+         * @return the column index, 0 if the table predates the column
+         */
+        private static int optionalColumn(ResultSet res, String column) {
+            try {
+                return res.findColumn(column);
+            } catch (SQLException ex) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Parses JSON flags in chunks on a worker pool while the rows are still being read
+     */
+    private static final class FlagParser<T> {
+
+        private static final int CHUNK = 500;
+
+        private final ExecutorService pool;
+        private final List<Future<?>> tasks = new ArrayList<>();
+        private List<T> entities = new ArrayList<>();
+        private List<String> flags = new ArrayList<>();
+
+        private FlagParser(ExecutorService pool) {
+            this.pool = pool;
+        }
+
+        private void add(T entity, String flag) {
+            if (pool == null) {
+                parse(entity, flag);
+                return;
+            }
+
+            entities.add(entity);
+            flags.add(flag);
+
+            if (entities.size() >= CHUNK) {
+                submit();
+            }
+        }
+
+        private void submit() {
+            final List<T> chunk = entities;
+            final List<String> chunkFlags = flags;
+            entities = new ArrayList<>();
+            flags = new ArrayList<>();
+
+            tasks.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        parse(chunk.get(i), chunkFlags.get(i));
+                    }
+                }
+            }));
+        }
+
+        /**
+         * Waits until every flag handed to this parser has been applied
+         */
+        private void await() {
+            if (!entities.isEmpty()) {
+                submit();
+            }
+
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException ex) {
+                    SimpleClans.getLog().log(Level.SEVERE, "[SimpleClans] Failed parsing flags", ex.getCause());
+                }
+            }
+        }
+
+        private static void parse(Object entity, String flag) {
+            if (entity instanceof Clan) {
+                ((Clan) entity).setFlags(flag);
+            } else {
+                ((ClanPlayer) entity).setFlags(flag);
+            }
+        }
+    }
+
+    /**
+     * A clan player and their clan as read from the database, not yet linked to anything in memory
+     */
+    public static final class ClanPlayerRecord {
+
+        private final ClanPlayer clanPlayer;
+        private final Clan clan;
+        private final long readAt = System.currentTimeMillis();
+
+        private ClanPlayerRecord(ClanPlayer clanPlayer, Clan clan) {
+            this.clanPlayer = clanPlayer;
+            this.clan = clan;
+        }
+
+        /**
+         * @return the player, null if they have no row
+         */
+        public ClanPlayer getClanPlayer() {
+            return clanPlayer;
+        }
+
+        /**
+         * @return the player's clan, null if they are not in one
+         */
+        public Clan getClan() {
+            return clan;
+        }
+
+        /**
+         * @return milliseconds since the record was read
+         */
+        public long getAge() {
+            return System.currentTimeMillis() - readAt;
+        }
+    }
+
+    /**
+     * Collects the duration of each import stage
+     */
+    private static final class ImportTimer {
+
+        private final long start = System.nanoTime();
+        private long last = start;
+        private final StringBuilder stages = new StringBuilder();
+
+        private void stage(String name) {
+            long now = System.nanoTime();
+            stages.append(name).append(' ').append((now - last) / 1000000).append("ms, ");
+            last = now;
+        }
 
-        if (!cps.isEmpty()) {
-            SimpleClans.log(MessageFormat.format("[SimpleClans] " + plugin.getLang("clan.players"), cps.size()));
+        @Override
+        public String toString() {
+            return stages + "total " + (last - start) / 1000000 + "ms";
         }
-        SimpleClans.getInstance().setUUID(true);
     }
 }
@@ -0,0 +1,332 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import net.sacredlabyrinth.phaed.simpleclans.Clan;
+import net.sacredlabyrinth.phaed.simpleclans.ClanPlayer;
+
+/**
+ * Binary copy of the clans and players held in memory, so a restart only has to read the rows
+ * that changed since the copy was taken.
+ * <p>
+ * The snapshot is stamped with a watermark: every clan whose last_used and every player whose
+ * last_seen is older than it is the same in the database as in the snapshot. Relations and
+ * bulletin boards are not part of it, they are cheap to read.
+ *
+ * @author phaed
+ */
+public class ClanSnapshot {
+
+    private static final int MAGIC = 0x5343534e;
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+
+    /**
+     * @param file where the snapshot is kept
+     */
+    public ClanSnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Serializes clans and players, must run on the main thread so they do not change meanwhile
+     *
+     * @param clans
+     * @param cps       null to leave the players out
+     * @param watermark time before which the database holds nothing newer than the snapshot
+     * @param schema    stamp of the applied schema migrations
+     * @param uuid      whether players are keyed by uuid rather than name
+     * @return the encoded snapshot
+     * @throws IOException
+     */
+    public static byte[] encode(Collection<Clan> clans, Collection<ClanPlayer> cps, long watermark, long schema, boolean uuid) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(schema);
+        out.writeBoolean(uuid);
+        out.writeLong(watermark);
+
+        out.writeInt(clans.size());
+
+        for (Clan clan : clans) {
+            writeString(out, clan.getTag());
+            writeString(out, clan.getColorTag());
+            writeString(out, clan.getName());
+            out.writeBoolean(clan.isVerified());
+            out.writeBoolean(clan.isFriendlyFire());
+            out.writeLong(clan.getFounded());
+            out.writeLong(clan.getLastUsed());
+            writeString(out, clan.getCapeUrl());
+            out.writeDouble(clan.getBalance());
+            clan.writeFlags(out);
+        }
+
+        out.writeBoolean(cps != null);
+
+        if (cps != null) {
+            out.writeInt(cps.size());
+
+            for (ClanPlayer cp : cps) {
+                UUID uniqueId = cp.getUniqueId();
+
+                out.writeBoolean(uniqueId != null);
+
+                if (uniqueId != null) {
+                    out.writeLong(uniqueId.getMostSignificantBits());
+                    out.writeLong(uniqueId.getLeastSignificantBits());
+                }
+
+                writeString(out, cp.getName());
+                writeString(out, cp.getTag());
+                out.writeBoolean(cp.isLeader());
+                out.writeBoolean(cp.isTrusted());
+                out.writeBoolean(cp.isFriendlyFire());
+                out.writeInt(cp.getNeutralKills());
+                out.writeInt(cp.getRivalKills());
+                out.writeInt(cp.getCivilianKills());
+                out.writeInt(cp.getDeaths());
+                out.writeLong(cp.getLastSeen());
+                out.writeLong(cp.getJoinDate());
+                writeString(out, cp.getPackedPastClans());
+                cp.writeFlags(out);
+            }
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replaces the snapshot on disk, a reader never sees a half written file
+     *
+     * @param data as returned by encode
+     * @throws IOException
+     */
+    public void write(byte[] data) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Maps the snapshot into memory and decodes it
+     *
+     * @param schema stamp of the applied schema migrations
+     * @param uuid   whether players are keyed by uuid rather than name
+     * @return the contents, null if there is no snapshot or it was taken with another schema or key
+     * @throws IOException if the snapshot is damaged
+     */
+    public Contents read(long schema, boolean uuid) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            DataInputStream in = new DataInputStream(new BufferInput(buffer));
+
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != schema || in.readBoolean() != uuid) {
+                return null;
+            }
+
+            Contents contents = new Contents(in.readLong());
+            int clans = in.readInt();
+
+            for (int i = 0; i < clans; i++) {
+                Clan clan = new Clan();
+                clan.setTag(readString(in));
+                clan.setColorTag(readString(in));
+                clan.setName(readString(in));
+                clan.setVerified(in.readBoolean());
+                clan.setFriendlyFire(in.readBoolean());
+                clan.setFounded(in.readLong());
+                clan.setLastUsed(in.readLong());
+                clan.setCapeUrl(readString(in));
+                clan.setBalance(in.readDouble());
+                clan.readFlags(in);
+                clan.clearChanges();
+                contents.clans.add(clan);
+            }
+
+            if (!in.readBoolean()) {
+                return contents;
+            }
+
+            contents.players = new ArrayList<>();
+            contents.tags = new ArrayList<>();
+
+            int cps = in.readInt();
+
+            for (int i = 0; i < cps; i++) {
+                ClanPlayer cp = new ClanPlayer();
+
+                if (in.readBoolean()) {
+                    cp.setUniqueId(new UUID(in.readLong(), in.readLong()));
+                }
+
+                cp.setName(readString(in));
+                contents.tags.add(readString(in));
+                cp.setLeader(in.readBoolean());
+                cp.setTrusted(in.readBoolean());
+                cp.setFriendlyFire(in.readBoolean());
+                cp.setNeutralKills(in.readInt());
+                cp.setRivalKills(in.readInt());
+                cp.setCivilianKills(in.readInt());
+                cp.setDeaths(in.readInt());
+                cp.setLastSeen(in.readLong());
+                cp.setJoinDate(in.readLong());
+                cp.setPackedPastClans(readString(in));
+                cp.readFlags(in);
+                cp.clearChanges();
+                contents.players.add(cp);
+            }
+
+            return contents;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Removes the snapshot, so the next start reads everything from the database
+     */
+    public void delete() {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * What a snapshot holds
+     */
+    public static final class Contents {
+
+        private final long watermark;
+        private final List<Clan> clans = new ArrayList<>();
+        private List<ClanPlayer> players;
+        private List<String> tags;
+
+        private Contents(long watermark) {
+            this.watermark = watermark;
+        }
+
+        /**
+         * @return time before which the database holds nothing newer than the snapshot
+         */
+        public long getWatermark() {
+            return watermark;
+        }
+
+        /**
+         * @return the clans, without their relations and bulletin boards
+         */
+        public List<Clan> getClans() {
+            return clans;
+        }
+
+        /**
+         * @return the players, not linked to their clans, null if the snapshot holds none
+         */
+        public List<ClanPlayer> getClanPlayers() {
+            return players;
+        }
+
+        /**
+         * @return the clan tag of each player, in the same order
+         */
+        public List<String> getTags() {
+            return tags;
+        }
+    }
+
+    /**
+     * Reads a mapped buffer as a stream
+     */
+    private static final class BufferInput extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private BufferInput(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            len = Math.min(len, buffer.remaining());
+            buffer.get(bytes, off, len);
+            return len;
+        }
+    }
+}
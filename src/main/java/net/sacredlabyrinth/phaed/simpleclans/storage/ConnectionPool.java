@@ -0,0 +1,649 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+import net.sacredlabyrinth.phaed.simpleclans.uuid.UUIDFetcher;
+
+/**
+ * Bounded pool of JDBC connections shared by every DBCore method.
+ * <p>
+ * Connections handed out by {@link #borrow()} are proxies: calling close() on them returns
+ * the underlying connection to the pool instead of closing it. Statements prepared through them
+ * are cached per physical connection, closing one only clears its parameters.
+ *
+ * @author phaed
+ */
+public class ConnectionPool {
+
+    private final Logger log = SimpleClans.getLog();
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int maxSize;
+    private final int minIdle;
+    private final long borrowTimeout;
+    private final long maxLifetime;
+    private final long idleTimeout;
+    private final long leakThreshold;
+    private final int validationTimeout;
+    private final int statementCacheSize;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Set<Lease> leased = Collections.newSetFromMap(new ConcurrentHashMap<Lease, Boolean>());
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+    private volatile boolean binaryUuids;
+    private volatile boolean closed;
+
+    /**
+     * @param url               jdbc url
+     * @param username          null when the driver needs no credentials
+     * @param password          null when the driver needs no credentials
+     * @param maxSize           maximum number of open connections
+     * @param minIdle           idle connections kept open by the eviction pass
+     * @param borrowTimeoutMs   how long a caller waits for a free connection
+     * @param maxLifetimeSecs   connections older than this are retired, 0 to disable
+     * @param idleTimeoutSecs   idle connections older than this are closed, 0 to disable
+     * @param leakDetectionSecs connections held longer than this are reported, 0 to disable
+     * @param validationSecs    timeout used by the validation-on-borrow check
+     * @param statementCache    prepared statements cached per connection, 0 to disable
+     */
+    public ConnectionPool(String url, String username, String password, int maxSize, int minIdle, long borrowTimeoutMs, long maxLifetimeSecs, long idleTimeoutSecs, long leakDetectionSecs, int validationSecs, int statementCache) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.maxSize = Math.max(1, maxSize);
+        this.minIdle = Math.max(0, Math.min(minIdle, this.maxSize));
+        this.borrowTimeout = Math.max(0, borrowTimeoutMs);
+        this.maxLifetime = TimeUnit.SECONDS.toMillis(Math.max(0, maxLifetimeSecs));
+        this.idleTimeout = TimeUnit.SECONDS.toMillis(Math.max(0, idleTimeoutSecs));
+        this.leakThreshold = TimeUnit.SECONDS.toMillis(Math.max(0, leakDetectionSecs));
+        this.validationTimeout = Math.max(1, validationSecs);
+        this.statementCacheSize = Math.max(0, statementCache);
+        this.permits = new Semaphore(this.maxSize, true);
+    }
+
+    /**
+     * Borrow a connection, blocking until one is free or the borrow timeout elapses.
+     * The caller must close() the returned connection to hand it back.
+     *
+     * @return connection
+     * @throws SQLException if the pool is closed, exhausted or the database is unreachable
+     */
+    public Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLException("Timed out after " + borrowTimeout + "ms waiting for a database connection (active: " + getActiveCount() + ", max: " + maxSize + ")");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection");
+        }
+
+        recordWait(System.nanoTime() - start);
+
+        try {
+            PooledConnection pooled = takeValid();
+            Lease lease = new Lease(pooled, leakThreshold > 0 ? new Throwable("Connection borrowed here") : null);
+            leased.add(lease);
+            return lease.proxy;
+        } catch (SQLException ex) {
+            permits.release();
+            throw ex;
+        } catch (RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    private PooledConnection takeValid() throws SQLException {
+        PooledConnection pooled;
+
+        while ((pooled = idle.pollFirst()) != null) {
+            if (!pooled.isExpired() && pooled.isValid()) {
+                return pooled;
+            }
+
+            pooled.closeQuietly();
+        }
+
+        return new PooledConnection(open());
+    }
+
+    private Connection open() throws SQLException {
+        if (username == null) {
+            return DriverManager.getConnection(url);
+        }
+
+        return DriverManager.getConnection(url, username, password);
+    }
+
+    private void release(Lease lease) {
+        if (!leased.remove(lease)) {
+            return;
+        }
+
+        PooledConnection pooled = lease.pooled;
+
+        try {
+            if (closed || pooled.isExpired() || pooled.raw.isClosed()) {
+                pooled.closeQuietly();
+            } else {
+                if (!pooled.raw.getAutoCommit()) {
+                    pooled.raw.rollback();
+                    pooled.raw.setAutoCommit(true);
+                }
+
+                pooled.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(pooled);
+            }
+        } catch (SQLException ex) {
+            pooled.closeQuietly();
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void recordWait(long nanos) {
+        borrows.incrementAndGet();
+        totalWaitNanos.addAndGet(nanos);
+
+        long max;
+
+        do {
+            max = maxWaitNanos.get();
+        } while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos));
+    }
+
+    /**
+     * Retires expired and long idle connections, tops the pool up to its minimum idle size
+     * and reports connections that have been held for longer than the leak threshold.
+     * Meant to be run periodically off the main thread.
+     */
+    public void housekeep() {
+        if (closed) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        List<PooledConnection> keep = new ArrayList<>();
+        PooledConnection pooled;
+
+        // most recently used first, so the freshest connections are the ones kept
+        while ((pooled = idle.pollFirst()) != null) {
+            boolean idleTooLong = idleTimeout > 0 && now - pooled.lastUsed > idleTimeout && keep.size() >= minIdle;
+
+            if (pooled.isExpired() || idleTooLong) {
+                pooled.closeQuietly();
+            } else {
+                keep.add(pooled);
+            }
+        }
+
+        for (PooledConnection kept : keep) {
+            idle.offerLast(kept);
+        }
+
+        while (idle.size() < minIdle && permits.tryAcquire()) {
+            try {
+                idle.offerLast(new PooledConnection(open()));
+            } catch (SQLException ex) {
+                log.warning("[SimpleClans] Could not open idle database connection: " + ex.getMessage());
+                break;
+            } finally {
+                permits.release();
+            }
+        }
+
+        if (leakThreshold > 0) {
+            for (Lease lease : leased) {
+                if (!lease.reported && now - lease.borrowedAt > leakThreshold) {
+                    lease.reported = true;
+                    leaks.incrementAndGet();
+                    log.log(Level.WARNING, "[SimpleClans] Possible database connection leak, held for " + (now - lease.borrowedAt) + "ms by " + lease.thread, lease.origin);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes every idle connection and refuses further borrows.
+     * Leased connections are closed as they are handed back.
+     */
+    public void close() {
+        closed = true;
+
+        PooledConnection pooled;
+
+        while ((pooled = idle.pollFirst()) != null) {
+            pooled.closeQuietly();
+        }
+    }
+
+    /**
+     * @return whether close() was called
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return connections currently lent out
+     */
+    public int getActiveCount() {
+        return leased.size();
+    }
+
+    /**
+     * @return open connections waiting in the pool
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return the maximum number of connections
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return callers currently blocked waiting for a connection
+     */
+    public int getWaitingCount() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * @return total number of successful borrows
+     */
+    public long getBorrowCount() {
+        return borrows.get();
+    }
+
+    /**
+     * @return average time a borrow waited for a free connection, in milliseconds
+     */
+    public double getAverageWaitMillis() {
+        long count = borrows.get();
+        return count == 0 ? 0 : (totalWaitNanos.get() / (double) count) / 1000000D;
+    }
+
+    /**
+     * @return longest time a borrow waited for a free connection, in milliseconds
+     */
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1000000D;
+    }
+
+    /**
+     * @return number of borrows that gave up waiting
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return number of connections reported as possibly leaked
+     */
+    public long getLeakCount() {
+        return leaks.get();
+    }
+
+    /**
+     * Wraps a result set so that it closes itself, its statement and its connection
+     * once it has been read to the end or is closed explicitly.
+     *
+     * @param res
+     * @param statement
+     * @param connection
+     * @return the wrapped result set
+     */
+    public static ResultSet releaseOnExhaustion(ResultSet res, Statement statement, Connection connection) {
+        ExhaustingResultSet handler = new ExhaustingResultSet(res, statement, connection);
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class}, handler);
+    }
+
+    /**
+     * Sets how UUIDs are stored, chosen once the schema is up to date
+     *
+     * @param binary true for 16 raw bytes, false for their string form
+     */
+    public void setBinaryUuids(boolean binary) {
+        binaryUuids = binary;
+    }
+
+    /**
+     * @return whether UUIDs are stored as 16 raw bytes
+     */
+    public boolean isBinaryUuids() {
+        return binaryUuids;
+    }
+
+    /**
+     * Reads a UUID column in the format the schema uses
+     *
+     * @param res
+     * @param column
+     * @return null if the column is null
+     * @throws SQLException
+     */
+    public UUID getUuid(ResultSet res, int column) throws SQLException {
+        if (binaryUuids) {
+            byte[] bytes = res.getBytes(column);
+            return bytes == null ? null : UUIDFetcher.fromBytes(bytes);
+        }
+
+        String uuid = res.getString(column);
+        return uuid == null ? null : UUID.fromString(uuid);
+    }
+
+    /**
+     * Binds positional parameters to a prepared statement.
+     * Booleans are stored as 1/0 and UUIDs as their string form or as 16 raw bytes, like the schema expects.
+     *
+     * @param statement
+     * @param params
+     * @throws SQLException
+     */
+    public void bind(PreparedStatement statement, Object... params) throws SQLException {
+        if (params == null) {
+            return;
+        }
+
+        for (int i = 0; i < params.length; i++) {
+            Object param = params[i];
+
+            if (param instanceof Boolean) {
+                statement.setInt(i + 1, (Boolean) param ? 1 : 0);
+            } else if (param instanceof UUID) {
+                if (binaryUuids) {
+                    statement.setBytes(i + 1, UUIDFetcher.toBytes((UUID) param));
+                } else {
+                    statement.setString(i + 1, param.toString());
+                }
+            } else {
+                statement.setObject(i + 1, param);
+            }
+        }
+    }
+
+    /**
+     * Closes JDBC resources, ignoring nulls and failures
+     *
+     * @param resources
+     */
+    public static void closeQuietly(AutoCloseable... resources) {
+        for (AutoCloseable resource : resources) {
+            if (resource == null) {
+                continue;
+            }
+
+            try {
+                resource.close();
+            } catch (Exception ex) {
+                // nothing left to do
+            }
+        }
+    }
+
+    /**
+     * A physical connection owned by the pool
+     */
+    private final class PooledConnection {
+
+        private final Connection raw;
+        private final long created = System.currentTimeMillis();
+        private volatile long lastUsed = created;
+        private final Map<String, PreparedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+
+        private PooledConnection(Connection raw) {
+            this.raw = raw;
+        }
+
+        /**
+         * Only ever called by the lease currently holding this connection
+         */
+        private PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+
+            if (statement != null && !statement.isClosed()) {
+                return statement;
+            }
+
+            statement = raw.prepareStatement(sql);
+            statements.put(sql, statement);
+
+            if (statements.size() > statementCacheSize) {
+                Iterator<PreparedStatement> eldest = statements.values().iterator();
+                PreparedStatement evicted = eldest.next();
+                eldest.remove();
+                ConnectionPool.closeQuietly(evicted);
+            }
+
+            return statement;
+        }
+
+        private boolean isExpired() {
+            return maxLifetime > 0 && System.currentTimeMillis() - created > maxLifetime;
+        }
+
+        private boolean isValid() {
+            try {
+                return raw.isValid(validationTimeout);
+            } catch (SQLException ex) {
+                return false;
+            } catch (AbstractMethodError ex) {
+                // pre JDBC4 drivers
+                try {
+                    return !raw.isClosed();
+                } catch (SQLException ex2) {
+                    return false;
+                }
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                raw.close();
+            } catch (SQLException ex) {
+                // already gone
+            }
+        }
+    }
+
+    /**
+     * One borrow of a pooled connection, handed out as a Connection proxy
+     */
+    private final class Lease implements InvocationHandler {
+
+        private final PooledConnection pooled;
+        private final Throwable origin;
+        private final Thread thread = Thread.currentThread();
+        private final long borrowedAt = System.currentTimeMillis();
+        private final Connection proxy;
+        private volatile boolean released;
+        private volatile boolean reported;
+
+        private Lease(PooledConnection pooled, Throwable origin) {
+            this.pooled = pooled;
+            this.origin = origin;
+            this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+
+            if (name.equals("close")) {
+                if (!released) {
+                    released = true;
+                    release(this);
+                }
+                return null;
+            }
+
+            if (name.equals("isClosed")) {
+                return released || pooled.raw.isClosed();
+            }
+
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+
+            if (name.equals("toString")) {
+                return "Pooled" + pooled.raw.toString();
+            }
+
+            if (released) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+
+            if (name.equals("prepareStatement") && args.length == 1 && statementCacheSize > 0) {
+                PreparedStatement statement = pooled.prepare((String) args[0]);
+                return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, new CachedStatement(statement));
+            }
+
+            try {
+                return method.invoke(pooled.raw, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+
+    /**
+     * Statement handler that keeps the statement open for reuse when it is closed
+     */
+    private static final class CachedStatement implements InvocationHandler {
+
+        private final PreparedStatement statement;
+        private boolean closed;
+
+        private CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+
+            if (name.equals("close")) {
+                if (!closed) {
+                    closed = true;
+                    statement.clearParameters();
+                    statement.clearBatch();
+                }
+                return null;
+            }
+
+            if (name.equals("isClosed")) {
+                return closed || statement.isClosed();
+            }
+
+            if (closed) {
+                throw new SQLException("Statement has already been closed");
+            }
+
+            try {
+                return method.invoke(statement, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+
+    /**
+     * Result set handler that hands the connection back when the rows run out
+     */
+    private static final class ExhaustingResultSet implements InvocationHandler {
+
+        private final ResultSet res;
+        private final Statement statement;
+        private final Connection connection;
+        private boolean done;
+
+        private ExhaustingResultSet(ResultSet res, Statement statement, Connection connection) {
+            this.res = res;
+            this.statement = statement;
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+
+            if (name.equals("close")) {
+                finish();
+                return null;
+            }
+
+            if (name.equals("isClosed") && done) {
+                return true;
+            }
+
+            try {
+                Object out = method.invoke(res, args);
+
+                if (name.equals("next") && Boolean.FALSE.equals(out)) {
+                    finish();
+                }
+
+                return out;
+            } catch (InvocationTargetException ex) {
+                if (name.equals("next")) {
+                    finish();
+                }
+
+                throw ex.getCause();
+            }
+        }
+
+        private void finish() {
+            if (!done) {
+                done = true;
+                closeQuietly(res, statement, connection);
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package net.sacredlabyrinth.phaed.simpleclans.storage;
 
 import java.sql.Connection;
 import java.sql.ResultSet;
+import java.util.List;
 
 /**
  *
@@ -10,44 +11,75 @@ import java.sql.ResultSet;
 public interface DBCore
 {
     /**
-     * @return connection
+     * Borrow a connection from the pool, close it to hand it back
+     *
+     * @return connection, null if none could be obtained
      */
     Connection getConnection();
 
+    /**
+     * @return the connection pool backing this core
+     */
+    ConnectionPool getPool();
+
     /**
      * @return whether connection can be established
      */
     Boolean checkConnection();
 
     /**
-     * Close connection
+     * Close all pooled connections
      */
     void close();
 
     /**
-     * Execute a select statement
-     * @param query
+     * Execute a select statement, the connection is handed back once the
+     * result set has been read to the end or closed
+     * @param query with ? placeholders
+     * @param params values bound to the placeholders in order
      * @return
      */
-    ResultSet select(String query);
+    ResultSet select(String query, Object... params);
+
+    /**
+     * Execute a select statement on a forward-only cursor that fetches the rows in chunks,
+     * for reading whole tables without holding them in memory at once
+     * @param query with ? placeholders
+     * @param fetchSize rows fetched per round trip
+     * @param params values bound to the placeholders in order
+     * @return
+     */
+    ResultSet selectStreaming(String query, int fetchSize, Object... params);
 
     /**
      * Execute an insert statement
-     * @param query
+     * @param query with ? placeholders
+     * @param params values bound to the placeholders in order
      */
-    void insert(String query);
+    void insert(String query, Object... params);
 
     /**
      * Execute an update statement
-     * @param query
+     * @param query with ? placeholders
+     * @param params values bound to the placeholders in order
+     * @return whether the statement was executed
      */
-    void update(String query);
+    boolean update(String query, Object... params);
 
     /**
      * Execute a delete statement
-     * @param query
+     * @param query with ? placeholders
+     * @param params values bound to the placeholders in order
+     */
+    void delete(String query, Object... params);
+
+    /**
+     * Execute one statement for many rows as a single JDBC batch inside a transaction
+     * @param query with ? placeholders
+     * @param rows one parameter array per row
+     * @return whether every row was written
      */
-    void delete(String query);
+    boolean batch(String query, List<Object[]> rows);
 
     /**
      * Execute a statement
@@ -0,0 +1,202 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+
+/**
+ * Bounded buffer of sc_kills rows, written by a background thread as batched inserts.
+ * <p>
+ * A batch is sent once it is full or once its oldest row has waited for the linger time.
+ * When the buffer is full new kills are either dropped or the caller blocks until there is room.
+ * Every stored batch is also added to the kill totals.
+ *
+ * @author phaed
+ */
+public class KillBuffer implements Runnable {
+
+    private final Logger log = SimpleClans.getLog();
+    private final DBCore core;
+    private final String query;
+    private final KillTotals totals;
+    private final BlockingQueue<Object[]> buffer;
+    private final int batchSize;
+    private final long linger;
+    private final boolean block;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * @param core        database the rows are written to
+     * @param query       insert statement with one placeholder per row value
+     * @param totals      running counts the stored kills are added to
+     * @param capacity    maximum number of buffered rows
+     * @param batchSize   maximum number of rows per batch
+     * @param lingerMs    how long the first row of a batch may wait for more
+     * @param block       whether a full buffer blocks the caller instead of dropping the kill
+     */
+    public KillBuffer(DBCore core, String query, KillTotals totals, int capacity, int batchSize, long lingerMs, boolean block) {
+        this.core = core;
+        this.query = query;
+        this.totals = totals;
+        this.buffer = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.batchSize = Math.max(1, batchSize);
+        this.linger = Math.max(0, lingerMs);
+        this.block = block;
+        this.writer = new Thread(this, "SimpleClans Kill Writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queue a kill row
+     *
+     * @param row values for the insert statement
+     */
+    public void add(Object[] row) {
+        if (!running) {
+            List<Object[]> rows = Collections.singletonList(row);
+
+            if (core.batch(query, rows)) {
+                totals.record(rows);
+            }
+            return;
+        }
+
+        if (block) {
+            try {
+                buffer.put(row);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
+        if (!buffer.offer(row) && dropped.incrementAndGet() % 100 == 1) {
+            log.warning("[SimpleClans] Kill buffer is full, " + dropped.get() + " kills have not been recorded");
+        }
+    }
+
+    @Override
+    public void run() {
+        // set up before the first kill is stored, the totals are then built on their own thread
+        totals.prepare();
+
+        List<Object[]> rows = new ArrayList<>(batchSize);
+
+        while (running) {
+            try {
+                collect(rows);
+            } catch (InterruptedException ex) {
+                // shutdown() interrupts a writer waiting for rows
+            }
+
+            if (!rows.isEmpty()) {
+                write(rows);
+                rows.clear();
+            }
+        }
+    }
+
+    /**
+     * Waits for a first row, then gathers more until the batch is full or the linger time is up
+     */
+    private void collect(List<Object[]> rows) throws InterruptedException {
+        Object[] first = buffer.poll(1, TimeUnit.SECONDS);
+
+        if (first == null) {
+            return;
+        }
+
+        rows.add(first);
+        long deadline = System.currentTimeMillis() + linger;
+
+        while (rows.size() < batchSize) {
+            buffer.drainTo(rows, batchSize - rows.size());
+
+            long wait = deadline - System.currentTimeMillis();
+
+            if (rows.size() >= batchSize || wait <= 0) {
+                return;
+            }
+
+            Object[] next = buffer.poll(wait, TimeUnit.MILLISECONDS);
+
+            if (next == null) {
+                return;
+            }
+
+            rows.add(next);
+        }
+    }
+
+    private void write(List<Object[]> rows) {
+        if (!core.batch(query, rows)) {
+            // kills that were not stored are not counted either
+            return;
+        }
+
+        totals.record(rows);
+        written.addAndGet(rows.size());
+        batches.incrementAndGet();
+    }
+
+    /**
+     * Stops the writer thread and writes everything still buffered on the calling thread
+     */
+    public void shutdown() {
+        running = false;
+        writer.interrupt();
+
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Object[]> rows = new ArrayList<>(batchSize);
+
+        while (buffer.drainTo(rows, batchSize) > 0) {
+            write(rows);
+            rows.clear();
+        }
+    }
+
+    /**
+     * @return rows waiting to be written
+     */
+    public int getQueuedCount() {
+        return buffer.size();
+    }
+
+    /**
+     * @return rows written so far
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return batches written so far
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * @return kills dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
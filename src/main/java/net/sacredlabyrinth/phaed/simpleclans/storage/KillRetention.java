@@ -0,0 +1,159 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+
+/**
+ * Moves old kills out of sc_kills into daily counts per attacker, victim and kill type in sc_kills_daily.
+ * <p>
+ * Rows are moved oldest first in chunks. The counts of a chunk are added and its rows deleted in one
+ * transaction, so a kill is always in exactly one of the two tables and the reports can simply add them up.
+ * Kills stored before sc_kills had a date count as day 0.
+ *
+ * @author phaed
+ */
+public class KillRetention implements Runnable {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private final Logger log = SimpleClans.getLog();
+    private final DBCore core;
+    private final boolean mysql;
+    private final int rawDays;
+    private final int chunkSize;
+    private final AtomicLong rolledUp = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * @param core      database holding sc_kills
+     * @param mysql     whether the database is MySQL rather than SQLite
+     * @param rawDays   number of days kills are kept as they were recorded
+     * @param chunkSize maximum number of kills moved per transaction
+     */
+    public KillRetention(DBCore core, boolean mysql, int rawDays, int chunkSize) {
+        this.core = core;
+        this.mysql = mysql;
+        this.rawDays = Math.max(1, rawDays);
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Moves every kill older than the retention period, one chunk at a time
+     */
+    @Override
+    public void run() {
+        long cutoff = System.currentTimeMillis() - rawDays * DAY;
+        long start = System.currentTimeMillis();
+        long moved = 0;
+
+        try {
+            int chunk;
+
+            while (running && (chunk = rollUpChunk(cutoff)) > 0) {
+                moved += chunk;
+            }
+        } catch (SQLException ex) {
+            log.log(Level.SEVERE, "[SimpleClans] Could not roll up old kills", ex);
+        }
+
+        if (moved > 0) {
+            rolledUp.addAndGet(moved);
+            SimpleClans.debug("Rolled up " + moved + " kills in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Stops after the chunk in progress
+     */
+    public void shutdown() {
+        running = false;
+    }
+
+    /**
+     * @return kills moved into the daily counts since startup
+     */
+    public long getRolledUpCount() {
+        return rolledUp.get();
+    }
+
+    private int rollUpChunk(long cutoff) throws SQLException {
+        // sqlite tables without an integer primary key are only ordered by their rowid
+        String key = mysql ? "kill_id" : "rowid";
+        Connection connection = core.getConnection();
+
+        if (connection == null) {
+            return 0;
+        }
+
+        PreparedStatement last = null;
+        PreparedStatement counts = null;
+        PreparedStatement insert = null;
+        PreparedStatement increment = null;
+        PreparedStatement delete = null;
+        ResultSet res = null;
+
+        try {
+            connection.setAutoCommit(false);
+
+            last = connection.prepareStatement("SELECT MAX(id) AS last_id FROM (SELECT " + key + " AS id FROM `sc_kills` WHERE `killed_at` < ? ORDER BY " + key + " LIMIT ?) chunk;");
+            core.getPool().bind(last, cutoff, chunkSize);
+            res = last.executeQuery();
+
+            if (!res.next()) {
+                return 0;
+            }
+
+            long lastId = res.getLong("last_id");
+
+            if (res.wasNull()) {
+                return 0;
+            }
+
+            ConnectionPool.closeQuietly(res);
+
+            counts = connection.prepareStatement("SELECT `killed_at` " + (mysql ? "DIV" : "/") + " ? AS day, `attacker`, `victim`, `kill_type`, COUNT(*) AS kills FROM `sc_kills` WHERE `killed_at` < ? AND " + key + " <= ? GROUP BY day, `attacker`, `victim`, `kill_type`;");
+            insert = connection.prepareStatement((mysql ? "INSERT IGNORE" : "INSERT OR IGNORE") + " INTO `sc_kills_daily` (`day`, `attacker`, `victim`, `kill_type`, `kills`) VALUES (?, ?, ?, ?, 0);");
+            increment = connection.prepareStatement("UPDATE `sc_kills_daily` SET `kills` = `kills` + ? WHERE `day` = ? AND `attacker` = ? AND `victim` = ? AND `kill_type` = ?;");
+
+            core.getPool().bind(counts, DAY, cutoff, lastId);
+            res = counts.executeQuery();
+
+            int kills = 0;
+
+            while (res.next()) {
+                long day = res.getLong("day");
+                String attacker = res.getString("attacker");
+                String victim = res.getString("victim");
+                String type = res.getString("kill_type");
+                int count = res.getInt("kills");
+
+                core.getPool().bind(insert, day, attacker, victim, type);
+                insert.addBatch();
+                core.getPool().bind(increment, count, day, attacker, victim, type);
+                increment.addBatch();
+                kills += count;
+            }
+
+            insert.executeBatch();
+            increment.executeBatch();
+
+            delete = connection.prepareStatement("DELETE FROM `sc_kills` WHERE `killed_at` < ? AND " + key + " <= ?;");
+            core.getPool().bind(delete, cutoff, lastId);
+            delete.executeUpdate();
+
+            connection.commit();
+            return kills;
+        } finally {
+            // the pool rolls back anything left uncommitted when the connection is handed back
+            ConnectionPool.closeQuietly(res, last, counts, insert, increment, delete, connection);
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+
+/**
+ * Running kill counts per attacker and victim, kept in sc_kill_totals so the kill reports
+ * do not have to group the whole sc_kills table.
+ * <p>
+ * Counts are added by the kill writer right after it stores each batch of kills. The first time
+ * the table is needed it is built from the kills stored so far on a thread of its own. Kills stored
+ * while it is built are counted in memory and added once it is complete, so no kill is counted twice
+ * or missed.
+ *
+ * @author phaed
+ */
+public class KillTotals {
+
+    // attackers whose counts are built per transaction
+    private static final int CHUNK_ATTACKERS = 100;
+
+    private final Logger log = SimpleClans.getLog();
+    private final DBCore core;
+    private final boolean mysql;
+    private final int attackerColumn;
+    private final int victimColumn;
+    private final Object lock = new Object();
+    // counts of the kills stored while the table is built, null when no build runs
+    private Map<List<Object>, Integer> pending;
+    private volatile boolean ready;
+    private volatile boolean running = true;
+
+    /**
+     * @param core           database holding sc_kills
+     * @param mysql          whether the database is MySQL rather than SQLite
+     * @param attackerColumn position of the attacker's name in a kill row
+     * @param victimColumn   position of the victim's name in a kill row
+     */
+    public KillTotals(DBCore core, boolean mysql, int attackerColumn, int victimColumn) {
+        this.core = core;
+        this.mysql = mysql;
+        this.attackerColumn = attackerColumn;
+        this.victimColumn = victimColumn;
+    }
+
+    /**
+     * Starts building sc_kill_totals from sc_kills and sc_kills_daily if it does not exist yet.
+     * Must be called on the kill writer before it stores any kill, the build itself runs on its own thread.
+     */
+    public void prepare() {
+        if (core.existsTable("sc_kill_totals")) {
+            ready = true;
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        log.info("[SimpleClans] Building sc_kill_totals from sc_kills");
+
+        core.execute("DROP TABLE IF EXISTS `sc_kill_totals_build`;");
+
+        if (mysql) {
+            core.execute("CREATE TABLE `sc_kill_totals_build` ( `attacker` varchar(16) NOT NULL, `victim` varchar(16) NOT NULL, `kills` int(11) NOT NULL default '0', PRIMARY KEY  (`attacker`, `victim`), KEY `idx_sc_kill_totals_kills` (`kills`));");
+        } else {
+            core.execute("CREATE TABLE `sc_kill_totals_build` ( `attacker` varchar(16) NOT NULL, `victim` varchar(16) NOT NULL, `kills` int(11) NOT NULL default '0', PRIMARY KEY  (`attacker`, `victim`));");
+            core.execute("CREATE INDEX `idx_sc_kill_totals_kills` ON `sc_kill_totals_build` (`kills`);");
+        }
+
+        // kills moved out of sc_kills by the retention job live on as daily counts
+        final boolean daily = core.existsTable("sc_kills_daily");
+        final long lastKill = lastKill();
+
+        if (lastKill < 0) {
+            log.warning("[SimpleClans] Could not build sc_kill_totals, kill reports will read sc_kills");
+            return;
+        }
+
+        // the writer is not storing anything right now, every later kill is counted in memory
+        synchronized (lock) {
+            pending = new LinkedHashMap<>();
+        }
+
+        Thread builder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                build(daily, lastKill, start);
+            }
+        }, "SimpleClans Kill Totals");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    /**
+     * Fills the table under another name and renames it at the end, so an interrupted build is started over.
+     * It is filled a few attackers at a time, so the connection is free for other queries between chunks.
+     *
+     * @param daily    whether sc_kills_daily exists
+     * @param lastKill key of the last kill stored before the build started
+     * @param start    when the build started
+     */
+    private void build(boolean daily, long lastKill, long start) {
+        boolean built = true;
+
+        try {
+            String after = buildChunk("", daily, lastKill);
+
+            while (after != null && running) {
+                after = buildChunk(after, daily, lastKill);
+            }
+        } catch (SQLException ex) {
+            log.log(Level.SEVERE, "[SimpleClans] Could not count the kills for sc_kill_totals", ex);
+            built = false;
+        }
+
+        if (!running) {
+            return;
+        }
+
+        Map<List<Object>, Integer> stored;
+
+        if (built && core.execute("ALTER TABLE `sc_kill_totals_build` RENAME TO `sc_kill_totals`;")) {
+            synchronized (lock) {
+                stored = pending;
+                pending = null;
+                ready = true;
+            }
+
+            add(stored);
+            log.info("[SimpleClans] Built sc_kill_totals in " + (System.currentTimeMillis() - start) + "ms");
+        } else {
+            synchronized (lock) {
+                pending = null;
+            }
+
+            log.warning("[SimpleClans] Could not build sc_kill_totals, kill reports will read sc_kills");
+        }
+    }
+
+    /**
+     * @return key of the last kill in sc_kills, 0 if there is none, -1 if it could not be read
+     */
+    private long lastKill() {
+        // sqlite tables without an integer primary key are only ordered by their rowid
+        ResultSet res = core.select("SELECT MAX(" + (mysql ? "kill_id" : "rowid") + ") AS last_kill FROM `sc_kills`;");
+
+        if (res == null) {
+            return -1;
+        }
+
+        try {
+            return res.next() ? res.getLong("last_kill") : 0;
+        } catch (SQLException ex) {
+            log.log(Level.SEVERE, "[SimpleClans] Could not read the last kill", ex);
+            return -1;
+        } finally {
+            ConnectionPool.closeQuietly(res);
+        }
+    }
+
+    /**
+     * Stops a running build after the chunk in progress, it starts over on the next start
+     */
+    public void shutdown() {
+        running = false;
+    }
+
+    /**
+     * Counts the kills of the next few attackers after the given one, an attacker's kills are
+     * all counted in the same chunk so their pairs are complete when inserted
+     *
+     * @param after    the last attacker already counted
+     * @param daily    whether sc_kills_daily exists
+     * @param lastKill key of the last kill stored before the build started, later ones are counted in memory
+     * @return the last attacker counted, null once every attacker is
+     */
+    private String buildChunk(String after, boolean daily, long lastKill) throws SQLException {
+        Connection connection = core.getConnection();
+
+        if (connection == null) {
+            throw new SQLException("No database connection");
+        }
+
+        PreparedStatement insert = null;
+
+        try {
+            String last = lastAttacker(connection, "sc_kills", after);
+
+            if (daily) {
+                String lastDaily = lastAttacker(connection, "sc_kills_daily", after);
+
+                // neither table gives the chunk more attackers than the chunk size
+                if (last == null || (lastDaily != null && lastDaily.compareTo(last) < 0)) {
+                    last = lastDaily;
+                }
+            }
+
+            if (last == null) {
+                return null;
+            }
+
+            String range = "`attacker` > ? AND `attacker` <= ?";
+            String kills = range + " AND " + (mysql ? "kill_id" : "rowid") + " <= ?";
+
+            if (daily) {
+                insert = connection.prepareStatement("INSERT INTO `sc_kill_totals_build` (`attacker`, `victim`, `kills`) SELECT `attacker`, `victim`, SUM(`kills`) FROM (SELECT `attacker`, `victim`, COUNT(*) AS kills FROM `sc_kills` WHERE " + kills + " GROUP BY `attacker`, `victim` UNION ALL SELECT `attacker`, `victim`, SUM(`kills`) AS kills FROM `sc_kills_daily` WHERE " + range + " GROUP BY `attacker`, `victim`) k GROUP BY `attacker`, `victim`;");
+                core.getPool().bind(insert, after, last, lastKill, after, last);
+            } else {
+                insert = connection.prepareStatement("INSERT INTO `sc_kill_totals_build` (`attacker`, `victim`, `kills`) SELECT `attacker`, `victim`, COUNT(*) FROM `sc_kills` WHERE " + kills + " GROUP BY `attacker`, `victim`;");
+                core.getPool().bind(insert, after, last, lastKill);
+            }
+
+            insert.executeUpdate();
+            return last;
+        } finally {
+            ConnectionPool.closeQuietly(insert, connection);
+        }
+    }
+
+    /**
+     * @return the last of the next chunk of attackers after the given one, null if there are none
+     */
+    private String lastAttacker(Connection connection, String table, String after) throws SQLException {
+        PreparedStatement statement = null;
+        ResultSet res = null;
+
+        try {
+            statement = connection.prepareStatement("SELECT MAX(`attacker`) AS last_attacker FROM (SELECT DISTINCT `attacker` FROM `" + table + "` WHERE `attacker` > ? ORDER BY `attacker` LIMIT ?) chunk;");
+            core.getPool().bind(statement, after, CHUNK_ATTACKERS);
+            res = statement.executeQuery();
+            return res.next() ? res.getString("last_attacker") : null;
+        } finally {
+            ConnectionPool.closeQuietly(res, statement);
+        }
+    }
+
+    /**
+     * Adds a batch of stored kills to the totals
+     *
+     * @param rows kill rows as they were written to sc_kills
+     */
+    public void record(List<Object[]> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        synchronized (lock) {
+            if (pending != null) {
+                for (Object[] row : rows) {
+                    count(pending, Arrays.asList(row[attackerColumn], row[victimColumn]));
+                }
+                return;
+            }
+        }
+
+        if (!ready) {
+            return;
+        }
+
+        Map<List<Object>, Integer> counts = new LinkedHashMap<>();
+
+        for (Object[] row : rows) {
+            count(counts, Arrays.asList(row[attackerColumn], row[victimColumn]));
+        }
+
+        add(counts);
+    }
+
+    private static void count(Map<List<Object>, Integer> counts, List<Object> pair) {
+        Integer count = counts.get(pair);
+        counts.put(pair, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Adds kill counts per attacker and victim to sc_kill_totals
+     *
+     * @param counts
+     */
+    private void add(Map<List<Object>, Integer> counts) {
+        if (counts.isEmpty()) {
+            return;
+        }
+
+        List<Object[]> pairs = new ArrayList<>(counts.size());
+        List<Object[]> increments = new ArrayList<>(counts.size());
+
+        for (Map.Entry<List<Object>, Integer> entry : counts.entrySet()) {
+            Object attacker = entry.getKey().get(0);
+            Object victim = entry.getKey().get(1);
+            pairs.add(new Object[]{attacker, victim});
+            increments.add(new Object[]{entry.getValue(), attacker, victim});
+        }
+
+        core.batch((mysql ? "INSERT IGNORE" : "INSERT OR IGNORE") + " INTO `sc_kill_totals` (`attacker`, `victim`, `kills`) VALUES (?, ?, 0);", pairs);
+        core.batch("UPDATE `sc_kill_totals` SET `kills` = `kills` + ? WHERE `attacker` = ? AND `victim` = ?;", increments);
+    }
+
+    /**
+     * @return whether sc_kill_totals is complete and kept up to date
+     */
+    public boolean isReady() {
+        return ready;
+    }
+}
@@ -0,0 +1,137 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * One step of the database schema history.
+ * <p>
+ * Each step runs once, in version order, inside a transaction that also records it in
+ * sc_schema_version. Databases created before versioning already carry some of these changes,
+ * so every step has to check for what it adds rather than assume it is missing.
+ *
+ * @author phaed
+ */
+public abstract class Migration {
+
+    private final int version;
+    private final String description;
+
+    /**
+     * @param version     position of the step in the schema history, never reused
+     * @param description what the step changes
+     */
+    protected Migration(int version, String description) {
+        this.version = version;
+        this.description = description;
+    }
+
+    /**
+     * @return the version
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the description
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Steps that cannot run yet are left out and tried again on the next start
+     *
+     * @return whether the step can run now
+     */
+    public boolean isApplicable() {
+        return true;
+    }
+
+    /**
+     * Apply the step, the caller commits
+     *
+     * @param connection connection with auto-commit off
+     * @param mysql      whether the database is MySQL rather than SQLite
+     * @throws SQLException
+     */
+    public abstract void apply(Connection connection, boolean mysql) throws SQLException;
+
+    /**
+     * Execute a statement
+     *
+     * @param connection
+     * @param query
+     * @throws SQLException
+     */
+    public static void execute(Connection connection, String query) throws SQLException {
+        Statement statement = connection.createStatement();
+
+        try {
+            statement.execute(query);
+        } finally {
+            ConnectionPool.closeQuietly(statement);
+        }
+    }
+
+    /**
+     * Check whether a column exists
+     *
+     * @param connection
+     * @param table
+     * @param column
+     * @return
+     * @throws SQLException
+     */
+    public static boolean existsColumn(Connection connection, String table, String column) throws SQLException {
+        ResultSet col = connection.getMetaData().getColumns(null, null, table, column);
+
+        try {
+            return col.next();
+        } finally {
+            ConnectionPool.closeQuietly(col);
+        }
+    }
+
+    /**
+     * Check whether a table has an index of the given name
+     *
+     * @param connection
+     * @param table
+     * @param index
+     * @return
+     * @throws SQLException
+     */
+    public static boolean existsIndex(Connection connection, String table, String index) throws SQLException {
+        ResultSet indexes = connection.getMetaData().getIndexInfo(null, null, table, false, false);
+
+        try {
+            while (indexes.next()) {
+                if (index.equalsIgnoreCase(indexes.getString("INDEX_NAME"))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            ConnectionPool.closeQuietly(indexes);
+        }
+    }
+
+    /**
+     * Create an index unless the table already has one of that name
+     *
+     * @param connection
+     * @param table
+     * @param index
+     * @param columns comma separated, already quoted
+     * @throws SQLException
+     */
+    public static void createIndex(Connection connection, String table, String index, String columns) throws SQLException {
+        if (!existsIndex(connection, table, index)) {
+            execute(connection, "CREATE INDEX `" + index + "` ON `" + table + "` (" + columns + ");");
+        }
+    }
+}
@@ -1,13 +1,15 @@
 package net.sacredlabyrinth.phaed.simpleclans.storage;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
 import java.util.logging.Logger;
 
 import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
-import net.sacredlabyrinth.phaed.simpleclans.threads.ThreadUpdateSQL;
+import net.sacredlabyrinth.phaed.simpleclans.managers.SettingsManager;
 
 /**
  * @author cc_madelg
@@ -15,7 +17,7 @@ import net.sacredlabyrinth.phaed.simpleclans.threads.ThreadUpdateSQL;
 public class MySQLCore implements DBCore {
 
     private Logger log;
-    private Connection connection;
+    private ConnectionPool pool;
     private String host;
     private String username;
     private String password;
@@ -41,11 +43,12 @@ public class MySQLCore implements DBCore {
     private void initialize() {
         try {
             Class.forName("com.mysql.jdbc.Driver");
-            connection = DriverManager.getConnection("jdbc:mysql://" + host + ":" + port + "/" + database + "?useUnicode=true&characterEncoding=utf-8&autoReconnect=false", username, password);
+            SettingsManager settings = SimpleClans.getInstance().getSettingsManager();
+            pool = new ConnectionPool("jdbc:mysql://" + host + ":" + port + "/" + database + "?useUnicode=true&characterEncoding=utf-8&autoReconnect=false&useServerPrepStmts=true&useCursorFetch=true", username, password,
+                    settings.getPoolMaxSize(), settings.getPoolMinIdle(), settings.getPoolBorrowTimeout(), settings.getPoolMaxLifetime(),
+                    settings.getPoolIdleTimeout(), settings.getPoolLeakDetection(), settings.getPoolValidationTimeout(), settings.getPoolStatementCacheSize());
         } catch (ClassNotFoundException e) {
             log.severe("ClassNotFoundException! " + e.getMessage());
-        } catch (SQLException e) {
-            log.severe("SQLException! " + e.getMessage());
         }
     }
 
@@ -54,14 +57,24 @@ public class MySQLCore implements DBCore {
      */
     @Override
     public Connection getConnection() {
+        if (pool == null) {
+            return null;
+        }
+
         try {
-            if (connection == null || connection.isClosed()) {
-                initialize();
-            }
+            return pool.borrow();
         } catch (SQLException e) {
-            initialize();
+            log.severe("SQLException! " + e.getMessage());
         }
-        return connection;
+        return null;
+    }
+
+    /**
+     * @return the connection pool
+     */
+    @Override
+    public ConnectionPool getPool() {
+        return pool;
     }
 
     /**
@@ -69,7 +82,9 @@ public class MySQLCore implements DBCore {
      */
     @Override
     public Boolean checkConnection() {
-        return getConnection() != null;
+        Connection connection = getConnection();
+        ConnectionPool.closeQuietly(connection);
+        return connection != null;
     }
 
     /**
@@ -78,8 +93,8 @@ public class MySQLCore implements DBCore {
     @Override
     public void close() {
         try {
-            if (connection != null) {
-                connection.close();
+            if (pool != null) {
+                pool.close();
             }
         } catch (Exception e) {
             log.severe("Failed to close database connection! " + e.getMessage());
@@ -90,13 +105,25 @@ public class MySQLCore implements DBCore {
      * Execute a select statement
      *
      * @param query
+     * @param params
      * @return
      */
     @Override
-    public ResultSet select(String query) {
+    public ResultSet select(String query, Object... params) {
+        Connection connection = getConnection();
+
+        if (connection == null) {
+            return null;
+        }
+
+        PreparedStatement statement = null;
+
         try {
-            return getConnection().createStatement().executeQuery(query);
+            statement = connection.prepareStatement(query);
+            pool.bind(statement, params);
+            return ConnectionPool.releaseOnExhaustion(statement.executeQuery(), statement, connection);
         } catch (SQLException ex) {
+            ConnectionPool.closeQuietly(statement, connection);
             log.severe("Error at SQL Query: " + ex.getMessage());
             log.severe("Query: " + query);
         }
@@ -104,68 +131,137 @@ public class MySQLCore implements DBCore {
     }
 
     /**
-     * Execute an insert statement
+     * Execute a select statement on a forward-only cursor
      *
      * @param query
+     * @param fetchSize
+     * @param params
+     * @return
      */
     @Override
-    public void insert(String query) {
-        if (SimpleClans.getInstance().getSettingsManager().getUseThreads()) {
-            Thread th = new Thread(new ThreadUpdateSQL(getConnection(), query, "INSERT"));
-            th.start();
-        } else {
-            try {
-                getConnection().createStatement().executeUpdate(query);
-            } catch (SQLException ex) {
-                if (!ex.toString().contains("not return ResultSet")) {
-                    log.severe("Error at SQL INSERT Query: " + ex);
-                    log.severe("Query: " + query);
-                }
-            }
+    public ResultSet selectStreaming(String query, int fetchSize, Object... params) {
+        Connection connection = getConnection();
+
+        if (connection == null) {
+            return null;
+        }
+
+        PreparedStatement statement = null;
+
+        try {
+            statement = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(fetchSize);
+            pool.bind(statement, params);
+            return ConnectionPool.releaseOnExhaustion(statement.executeQuery(), statement, connection);
+        } catch (SQLException ex) {
+            ConnectionPool.closeQuietly(statement, connection);
+            log.severe("Error at SQL Query: " + ex.getMessage());
+            log.severe("Query: " + query);
         }
+        return null;
+    }
+
+    /**
+     * Execute an insert statement
+     *
+     * @param query
+     * @param params
+     */
+    @Override
+    public void insert(String query, Object... params) {
+        executeUpdate(query, params, "INSERT");
     }
 
     /**
      * Execute an update statement
      *
      * @param query
+     * @param params
+     * @return whether the statement was executed
+     */
+    @Override
+    public boolean update(String query, Object... params) {
+        return executeUpdate(query, params, "UPDATE");
+    }
+
+    /**
+     * Execute a delete statement
+     *
+     * @param query
+     * @param params
      */
     @Override
-    public void update(String query) {
-        if (SimpleClans.getInstance().getSettingsManager().getUseThreads()) {
-            Thread th = new Thread(new ThreadUpdateSQL(getConnection(), query, "UPDATE"));
-            th.start();
-        } else {
-            try {
-                getConnection().createStatement().executeUpdate(query);
-            } catch (SQLException ex) {
-                if (!ex.toString().contains("not return ResultSet")) {
-                    log.severe("Error at SQL UPDATE Query: " + ex);
-                    log.severe("Query: " + query);
-                }
+    public void delete(String query, Object... params) {
+        executeUpdate(query, params, "DELETE");
+    }
+
+    private boolean executeUpdate(String query, Object[] params, String type) {
+        Connection connection = getConnection();
+
+        if (connection == null) {
+            return false;
+        }
+
+        PreparedStatement statement = null;
+
+        try {
+            statement = connection.prepareStatement(query);
+            pool.bind(statement, params);
+            statement.executeUpdate();
+            return true;
+        } catch (SQLException ex) {
+            if (ex.toString().contains("not return ResultSet")) {
+                return true;
             }
+
+            log.severe("Error at SQL " + type + " Query: " + ex);
+            log.severe("Query: " + query);
+            return false;
+        } finally {
+            ConnectionPool.closeQuietly(statement, connection);
         }
     }
 
     /**
-     * Execute a delete statement
+     * Execute one statement for many rows as a single batch
      *
      * @param query
+     * @param rows
+     * @return whether every row was written
      */
     @Override
-    public void delete(String query) {
-        if (SimpleClans.getInstance().getSettingsManager().getUseThreads()) {
-            Thread th = new Thread(new ThreadUpdateSQL(getConnection(), query, "DELETE"));
-            th.start();
-        } else {
-            try {
-                getConnection().createStatement().executeUpdate(query);
-            } catch (SQLException ex) {
-                if (!ex.toString().contains("not return ResultSet")) {
-                    log.severe("Error at SQL DELETE Query: " + ex);
-                    log.severe("Query: " + query);
-                }
+    public boolean batch(String query, List<Object[]> rows) {
+        if (rows.isEmpty()) {
+            return true;
+        }
+
+        Connection connection = getConnection();
+
+        if (connection == null) {
+            return false;
+        }
+
+        PreparedStatement statement = null;
+
+        try {
+            connection.setAutoCommit(false);
+            statement = connection.prepareStatement(query);
+
+            for (Object[] row : rows) {
+                pool.bind(statement, row);
+                statement.addBatch();
             }
+
+            statement.executeBatch();
+            connection.commit();
+            return true;
+        } catch (SQLException ex) {
+            log.severe("Error at SQL BATCH Query: " + ex);
+            log.severe("Query: " + query + " (" + rows.size() + " rows)");
+            return false;
+        } finally {
+            // the pool rolls back anything left uncommitted when the connection is handed back
+            ConnectionPool.closeQuietly(statement, connection);
         }
     }
 
@@ -177,13 +273,24 @@ public class MySQLCore implements DBCore {
      */
     @Override
     public Boolean execute(String query) {
+        Connection connection = getConnection();
+
+        if (connection == null) {
+            return false;
+        }
+
+        Statement statement = null;
+
         try {
-            getConnection().createStatement().execute(query);
+            statement = connection.createStatement();
+            statement.execute(query);
             return true;
         } catch (SQLException ex) {
             log.severe(ex.getMessage());
             log.severe("Query: " + query);
             return false;
+        } finally {
+            ConnectionPool.closeQuietly(statement, connection);
         }
     }
 
@@ -194,12 +301,22 @@ public class MySQLCore implements DBCore {
      * @return
      */
     public Boolean existsTable(String table) {
+        Connection connection = getConnection();
+
+        if (connection == null) {
+            return false;
+        }
+
+        ResultSet tables = null;
+
         try {
-            ResultSet tables = getConnection().getMetaData().getTables(null, null, table, null);
+            tables = connection.getMetaData().getTables(null, null, table, null);
             return tables.next();
         } catch (SQLException e) {
             log.severe("Failed to check if table " + table + " exists: " + e.getMessage());
             return false;
+        } finally {
+            ConnectionPool.closeQuietly(tables, connection);
         }
     }
 
@@ -211,12 +328,22 @@ public class MySQLCore implements DBCore {
      * @return
      */
     public Boolean existsColumn(String table, String column) {
+        Connection connection = getConnection();
+
+        if (connection == null) {
+            return false;
+        }
+
+        ResultSet col = null;
+
         try {
-            ResultSet col = getConnection().getMetaData().getColumns(null, null, table, column);
+            col = connection.getMetaData().getColumns(null, null, table, column);
             return col.next();
         } catch (Exception e) {
             log.severe("Failed to check if column " + column + " exists in table " + table + " : " + e.getMessage());
             return false;
+        } finally {
+            ConnectionPool.closeQuietly(col, connection);
         }
     }
 }
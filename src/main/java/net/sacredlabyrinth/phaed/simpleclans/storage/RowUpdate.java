@@ -0,0 +1,78 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An UPDATE of one row that sets only the columns it is given.
+ * <p>
+ * Rows that changed the same columns produce the same query, so they can share a prepared statement
+ * and be written in one batch.
+ *
+ * @author phaed
+ */
+public class RowUpdate {
+
+    private final String table;
+    private final StringBuilder columns = new StringBuilder();
+    private final List<Object> params = new ArrayList<>();
+    private String keyColumn;
+
+    /**
+     * @param table
+     */
+    public RowUpdate(String table) {
+        this.table = table;
+    }
+
+    /**
+     * Add a column to the update
+     *
+     * @param column
+     * @param value
+     * @return this update
+     */
+    public RowUpdate set(String column, Object value) {
+        if (columns.length() > 0) {
+            columns.append(", ");
+        }
+
+        columns.append('`').append(column).append("` = ?");
+        params.add(value);
+        return this;
+    }
+
+    /**
+     * Pick the row to update, must be called last
+     *
+     * @param column
+     * @param key
+     * @return this update
+     */
+    public RowUpdate where(String column, Object key) {
+        keyColumn = column;
+        params.add(key);
+        return this;
+    }
+
+    /**
+     * @return whether no column was set, in which case nothing needs to be written
+     */
+    public boolean isEmpty() {
+        return columns.length() == 0;
+    }
+
+    /**
+     * @return the query
+     */
+    public String getQuery() {
+        return "UPDATE `" + table + "` SET " + columns + " WHERE `" + keyColumn + "` = ?;";
+    }
+
+    /**
+     * @return the values of the set columns followed by the key
+     */
+    public Object[] getParams() {
+        return params.toArray();
+    }
+}
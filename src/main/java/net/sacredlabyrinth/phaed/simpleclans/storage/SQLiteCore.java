@@ -2,19 +2,22 @@ package net.sacredlabyrinth.phaed.simpleclans.storage;
 
 import java.io.File;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
 import java.util.logging.Logger;
 
 import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+import net.sacredlabyrinth.phaed.simpleclans.managers.SettingsManager;
 
 /**
  * @author cc_madelg
  */
 public class SQLiteCore implements DBCore {
     private Logger log;
-    private Connection connection;
+    private ConnectionPool pool;
     private String dbLocation;
     private String dbName;
     private File file;
@@ -47,9 +50,14 @@ public class SQLiteCore implements DBCore {
 
         try {
             Class.forName("org.sqlite.JDBC");
-            connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
-        } catch (SQLException ex) {
-            log.severe("SQLite exception on initialize " + ex);
+            SettingsManager settings = SimpleClans.getInstance().getSettingsManager();
+
+            // sqlite allows a single writer, more connections would only fight over the file lock.
+            // Background jobs borrow it once per chunk and the pool hands it out in the order it was
+            // asked for, so a waiting read gets it before the job's next chunk
+            pool = new ConnectionPool("jdbc:sqlite:" + file.getAbsolutePath(), null, null,
+                    1, 1, settings.getPoolBorrowTimeout(), settings.getPoolMaxLifetime(),
+                    settings.getPoolIdleTimeout(), settings.getPoolLeakDetection(), settings.getPoolValidationTimeout(), settings.getPoolStatementCacheSize());
         } catch (ClassNotFoundException ex) {
             log.severe("You need the SQLite library " + ex);
         }
@@ -60,11 +68,28 @@ public class SQLiteCore implements DBCore {
      */
     @Override
     public Connection getConnection() {
-        if (connection == null) {
+        if (pool == null) {
             initialize();
         }
 
-        return connection;
+        if (pool == null) {
+            return null;
+        }
+
+        try {
+            return pool.borrow();
+        } catch (SQLException ex) {
+            log.severe("SQLite exception on initialize " + ex);
+        }
+        return null;
+    }
+
+    /**
+     * @return the connection pool
+     */
+    @Override
+    public ConnectionPool getPool() {
+        return pool;
     }
 
     /**
@@ -72,7 +97,9 @@ public class SQLiteCore implements DBCore {
      */
     @Override
     public Boolean checkConnection() {
-        return getConnection() != null;
+        Connection connection = getConnection();
+        ConnectionPool.closeQuietly(connection);
+        return connection != null;
     }
 
     /**
@@ -81,8 +108,8 @@ public class SQLiteCore implements DBCore {
     @Override
     public void close() {
         try {
-            if (connection != null) {
-                connection.close();
+            if (pool != null) {
+                pool.close();
             }
         } catch (Exception e) {
             log.severe("Failed to close database connection! " + e.getMessage());
@@ -93,14 +120,25 @@ public class SQLiteCore implements DBCore {
      * Execute a select statement
      *
      * @param query
+     * @param params
      * @return
      */
     @Override
-    public ResultSet select(String query) {
-        try {
+    public ResultSet select(String query, Object... params) {
+        Connection connection = getConnection();
+
+        if (connection == null) {
+            return null;
+        }
+
+        PreparedStatement statement = null;
 
-            return getConnection().createStatement().executeQuery(query);
+        try {
+            statement = connection.prepareStatement(query);
+            pool.bind(statement, params);
+            return ConnectionPool.releaseOnExhaustion(statement.executeQuery(), statement, connection);
         } catch (SQLException ex) {
+            ConnectionPool.closeQuietly(statement, connection);
             log.severe("Error at SQL Query: " + ex.getMessage());
             log.severe("Query: " + query);
         }
@@ -108,53 +146,137 @@ public class SQLiteCore implements DBCore {
     }
 
     /**
-     * Execute an insert statement
+     * Execute a select statement on a forward-only cursor
      *
      * @param query
+     * @param fetchSize
+     * @param params
+     * @return
      */
     @Override
-    public void insert(String query) {
+    public ResultSet selectStreaming(String query, int fetchSize, Object... params) {
+        Connection connection = getConnection();
+
+        if (connection == null) {
+            return null;
+        }
+
+        PreparedStatement statement = null;
+
         try {
-            getConnection().createStatement().executeQuery(query);
+            statement = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(fetchSize);
+            pool.bind(statement, params);
+            return ConnectionPool.releaseOnExhaustion(statement.executeQuery(), statement, connection);
         } catch (SQLException ex) {
-            if (!ex.toString().contains("not return ResultSet")) {
-                log.severe("Error at SQL INSERT Query: " + ex);
-                log.severe("Query: " + query);
-            }
+            ConnectionPool.closeQuietly(statement, connection);
+            log.severe("Error at SQL Query: " + ex.getMessage());
+            log.severe("Query: " + query);
         }
+        return null;
+    }
+
+    /**
+     * Execute an insert statement
+     *
+     * @param query
+     * @param params
+     */
+    @Override
+    public void insert(String query, Object... params) {
+        executeUpdate(query, params, "INSERT");
     }
 
     /**
      * Execute an update statement
      *
      * @param query
+     * @param params
+     * @return whether the statement was executed
      */
     @Override
-    public void update(String query) {
+    public boolean update(String query, Object... params) {
+        return executeUpdate(query, params, "UPDATE");
+    }
+
+    /**
+     * Execute a delete statement
+     *
+     * @param query
+     * @param params
+     */
+    @Override
+    public void delete(String query, Object... params) {
+        executeUpdate(query, params, "DELETE");
+    }
+
+    private boolean executeUpdate(String query, Object[] params, String type) {
+        Connection connection = getConnection();
+
+        if (connection == null) {
+            return false;
+        }
+
+        PreparedStatement statement = null;
+
         try {
-            getConnection().createStatement().executeQuery(query);
+            statement = connection.prepareStatement(query);
+            pool.bind(statement, params);
+            statement.executeUpdate();
+            return true;
         } catch (SQLException ex) {
-            if (!ex.toString().contains("not return ResultSet")) {
-                log.severe("Error at SQL UPDATE Query: " + ex);
-                log.severe("Query: " + query);
+            if (ex.toString().contains("not return ResultSet")) {
+                return true;
             }
+
+            log.severe("Error at SQL " + type + " Query: " + ex);
+            log.severe("Query: " + query);
+            return false;
+        } finally {
+            ConnectionPool.closeQuietly(statement, connection);
         }
     }
 
     /**
-     * Execute a delete statement
+     * Execute one statement for many rows as a single batch
      *
      * @param query
+     * @param rows
+     * @return whether every row was written
      */
     @Override
-    public void delete(String query) {
+    public boolean batch(String query, List<Object[]> rows) {
+        if (rows.isEmpty()) {
+            return true;
+        }
+
+        Connection connection = getConnection();
+
+        if (connection == null) {
+            return false;
+        }
+
+        PreparedStatement statement = null;
+
         try {
-            getConnection().createStatement().executeQuery(query);
-        } catch (SQLException ex) {
-            if (!ex.toString().contains("not return ResultSet")) {
-                log.severe("Error at SQL DELETE Query: " + ex);
-                log.severe("Query: " + query);
+            connection.setAutoCommit(false);
+            statement = connection.prepareStatement(query);
+
+            for (Object[] row : rows) {
+                pool.bind(statement, row);
+                statement.addBatch();
             }
+
+            statement.executeBatch();
+            connection.commit();
+            return true;
+        } catch (SQLException ex) {
+            log.severe("Error at SQL BATCH Query: " + ex);
+            log.severe("Query: " + query + " (" + rows.size() + " rows)");
+            return false;
+        } finally {
+            // the pool rolls back anything left uncommitted when the connection is handed back
+            ConnectionPool.closeQuietly(statement, connection);
         }
     }
 
@@ -166,13 +288,24 @@ public class SQLiteCore implements DBCore {
      */
     @Override
     public Boolean execute(String query) {
+        Connection connection = getConnection();
+
+        if (connection == null) {
+            return false;
+        }
+
+        Statement statement = null;
+
         try {
-            getConnection().createStatement().execute(query);
+            statement = connection.createStatement();
+            statement.execute(query);
             return true;
         } catch (SQLException ex) {
             log.severe(ex.getMessage());
             log.severe("Query: " + query);
             return false;
+        } finally {
+            ConnectionPool.closeQuietly(statement, connection);
         }
     }
 
@@ -183,12 +316,22 @@ public class SQLiteCore implements DBCore {
      * @return
      */
     public Boolean existsTable(String table) {
+        Connection connection = getConnection();
+
+        if (connection == null) {
+            return false;
+        }
+
+        ResultSet tables = null;
+
         try {
-            ResultSet tables = getConnection().getMetaData().getTables(null, null, table, null);
+            tables = connection.getMetaData().getTables(null, null, table, null);
             return tables.next();
         } catch (SQLException e) {
             log.severe("Failed to check if table " + table + " exists: " + e.getMessage());
             return false;
+        } finally {
+            ConnectionPool.closeQuietly(tables, connection);
         }
     }
 
@@ -200,12 +343,22 @@ public class SQLiteCore implements DBCore {
      * @return
      */
     public Boolean existsColumn(String table, String column) {
+        Connection connection = getConnection();
+
+        if (connection == null) {
+            return false;
+        }
+
+        ResultSet col = null;
+
         try {
-            ResultSet col = getConnection().getMetaData().getColumns(null, null, table, column);
+            col = connection.getMetaData().getColumns(null, null, table, column);
             return col.next();
         } catch (Exception e) {
             log.severe("Failed to check if column " + column + " exists in table " + table + " : " + e.getMessage());
             return false;
+        } finally {
+            ConnectionPool.closeQuietly(col, connection);
         }
     }
 }
@@ -0,0 +1,150 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+
+/**
+ * Brings the database schema up to date by running the migrations it has not seen yet.
+ * <p>
+ * Applied versions are kept in sc_schema_version, so a start on an up to date database costs a
+ * single select instead of probing the metadata of every table. Each migration commits together
+ * with its version row. SQLite rolls a failed step back completely; MySQL commits schema changes
+ * as they run, which is why migrations must be safe to repeat.
+ *
+ * @author phaed
+ */
+public class SchemaMigrator {
+
+    private final Logger log = SimpleClans.getLog();
+    private final DBCore core;
+    private final boolean mysql;
+    private final List<Migration> migrations = new ArrayList<>();
+    private final Set<Integer> done = new HashSet<>();
+
+    /**
+     * @param core
+     * @param mysql whether the database is MySQL rather than SQLite
+     */
+    public SchemaMigrator(DBCore core, boolean mysql) {
+        this.core = core;
+        this.mysql = mysql;
+    }
+
+    /**
+     * Register a migration
+     *
+     * @param migration
+     * @return this migrator
+     */
+    public SchemaMigrator add(Migration migration) {
+        migrations.add(migration);
+        return this;
+    }
+
+    /**
+     * Run every applicable migration that has not been applied yet, in version order.
+     * Stops at the first one that fails.
+     *
+     * @return the versions applied by this call
+     */
+    public List<Integer> migrate() {
+        List<Integer> applied = new ArrayList<>();
+
+        if (!core.execute("CREATE TABLE IF NOT EXISTS `sc_schema_version` ( `version` int(11) NOT NULL, `description` varchar(255) NOT NULL, `applied` bigint NOT NULL, PRIMARY KEY  (`version`));")) {
+            return applied;
+        }
+
+        done.addAll(appliedVersions());
+
+        Collections.sort(migrations, new Comparator<Migration>() {
+            @Override
+            public int compare(Migration a, Migration b) {
+                return a.getVersion() < b.getVersion() ? -1 : (a.getVersion() == b.getVersion() ? 0 : 1);
+            }
+        });
+
+        for (Migration migration : migrations) {
+            if (done.contains(migration.getVersion()) || !migration.isApplicable()) {
+                continue;
+            }
+
+            if (!apply(migration)) {
+                break;
+            }
+
+            applied.add(migration.getVersion());
+            done.add(migration.getVersion());
+        }
+
+        return applied;
+    }
+
+    /**
+     * @param version
+     * @return whether the database has this migration, valid after {@link #migrate()}
+     */
+    public boolean isApplied(int version) {
+        return done.contains(version);
+    }
+
+    private Set<Integer> appliedVersions() {
+        Set<Integer> out = new HashSet<>();
+        ResultSet res = core.select("SELECT `version` FROM `sc_schema_version`;");
+
+        if (res != null) {
+            try {
+                while (res.next()) {
+                    out.add(res.getInt("version"));
+                }
+            } catch (SQLException ex) {
+                log.log(Level.SEVERE, "[SimpleClans] Could not read the schema version", ex);
+            } finally {
+                ConnectionPool.closeQuietly(res);
+            }
+        }
+
+        return out;
+    }
+
+    private boolean apply(Migration migration) {
+        Connection connection = core.getConnection();
+
+        if (connection == null) {
+            return false;
+        }
+
+        PreparedStatement statement = null;
+
+        try {
+            long start = System.currentTimeMillis();
+            connection.setAutoCommit(false);
+            migration.apply(connection, mysql);
+
+            statement = connection.prepareStatement("INSERT INTO `sc_schema_version` (`version`, `description`, `applied`) VALUES (?, ?, ?);");
+            core.getPool().bind(statement, migration.getVersion(), migration.getDescription(), System.currentTimeMillis());
+            statement.executeUpdate();
+            connection.commit();
+
+            SimpleClans.log("[SimpleClans] Schema version " + migration.getVersion() + ": " + migration.getDescription() + " (" + (System.currentTimeMillis() - start) + "ms)");
+            return true;
+        } catch (SQLException ex) {
+            log.log(Level.SEVERE, "[SimpleClans] Schema version " + migration.getVersion() + " failed: " + migration.getDescription(), ex);
+            return false;
+        } finally {
+            // the pool rolls back anything left uncommitted when the connection is handed back
+            ConnectionPool.closeQuietly(statement, connection);
+        }
+    }
+}
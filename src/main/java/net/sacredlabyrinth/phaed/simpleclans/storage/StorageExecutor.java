@@ -0,0 +1,317 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+
+/**
+ * Fixed set of storage worker threads, each with its own bounded queue.
+ * <p>
+ * Tasks are routed to a worker by their key, so every write for the same clan or player runs
+ * on the same thread in the order it was submitted. When a worker's queue is full the submitting
+ * thread waits for room instead of the queue growing without bound.
+ *
+ * @author phaed
+ */
+public class StorageExecutor {
+
+    private final Logger log = SimpleClans.getLog();
+    private final Worker[] workers;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private volatile boolean shutdown;
+
+    /**
+     * @param threads       number of worker threads
+     * @param queueCapacity maximum number of queued tasks per worker
+     */
+    public StorageExecutor(int threads, int queueCapacity) {
+        workers = new Worker[Math.max(1, threads)];
+
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker("SimpleClans Storage " + (i + 1), Math.max(1, queueCapacity));
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queue a task behind every earlier task with the same key.
+     * Once shut down, tasks run on the calling thread.
+     *
+     * @param key  identifies the entity the task writes, null for no ordering
+     * @param task
+     */
+    public void execute(Object key, Runnable task) {
+        if (shutdown) {
+            task.run();
+            return;
+        }
+
+        enqueue(worker(key), task);
+    }
+
+    /**
+     * Queue a task behind every earlier task of each of the keys, later tasks of any of the keys
+     * run after it. The workers of the other keys wait while the task runs.
+     * Once shut down, tasks run on the calling thread.
+     *
+     * @param keys identify the entities the task writes
+     * @param task
+     */
+    public synchronized void execute(Collection<?> keys, final Runnable task) {
+        Set<Worker> lanes = new LinkedHashSet<>();
+
+        for (Object key : keys) {
+            lanes.add(worker(key));
+        }
+
+        if (shutdown) {
+            task.run();
+            return;
+        }
+
+        if (lanes.size() <= 1) {
+            enqueue(lanes.isEmpty() ? workers[0] : lanes.iterator().next(), task);
+            return;
+        }
+
+        // submissions are serialized, so the parts of two tasks are queued in the same order on every worker
+        final CountDownLatch arrived = new CountDownLatch(lanes.size() - 1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Iterator<Worker> it = lanes.iterator();
+
+        enqueue(it.next(), new Runnable() {
+            @Override
+            public void run() {
+                await(arrived);
+
+                try {
+                    task.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+
+        while (it.hasNext()) {
+            enqueue(it.next(), new Runnable() {
+                @Override
+                public void run() {
+                    arrived.countDown();
+                    await(done);
+                }
+            });
+        }
+    }
+
+    private Worker worker(Object key) {
+        return workers[(key == null ? 0 : key.hashCode() & Integer.MAX_VALUE) % workers.length];
+    }
+
+    private static void await(CountDownLatch latch) {
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enqueue(Worker worker, Runnable task) {
+        Job job = new Job(task);
+
+        submitted.incrementAndGet();
+
+        if (!worker.queue.offer(job)) {
+            blocked.incrementAndGet();
+
+            try {
+                worker.queue.put(job);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                submitted.decrementAndGet();
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting work and waits for every queued task to finish
+     *
+     * @param timeoutSecs how long to wait for each worker
+     */
+    public void shutdown(long timeoutSecs) {
+        // no task spanning several workers is half queued behind the poison
+        synchronized (this) {
+            shutdown = true;
+        }
+
+        try {
+            for (Worker worker : workers) {
+                worker.queue.put(Job.POISON);
+            }
+
+            for (Worker worker : workers) {
+                worker.join(TimeUnit.SECONDS.toMillis(timeoutSecs));
+
+                if (worker.isAlive()) {
+                    log.warning("[SimpleClans] " + worker.getName() + " did not finish, " + worker.queue.size() + " writes were not saved");
+                    continue;
+                }
+
+                // tasks that slipped in behind the poison while shutting down
+                Job job;
+
+                while ((job = worker.queue.poll()) != null) {
+                    if (job != Job.POISON) {
+                        job.task.run();
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void recordLatency(long nanos) {
+        completed.incrementAndGet();
+        totalLatencyNanos.addAndGet(nanos);
+
+        long max;
+
+        do {
+            max = maxLatencyNanos.get();
+        } while (nanos > max && !maxLatencyNanos.compareAndSet(max, nanos));
+    }
+
+    /**
+     * @return tasks waiting in all queues
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+
+        for (Worker worker : workers) {
+            depth += worker.queue.size();
+        }
+
+        return depth;
+    }
+
+    /**
+     * @return number of worker threads
+     */
+    public int getThreadCount() {
+        return workers.length;
+    }
+
+    /**
+     * @return tasks submitted so far
+     */
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    /**
+     * @return tasks finished so far
+     */
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * @return submissions that had to wait for room in a full queue
+     */
+    public long getBlockedCount() {
+        return blocked.get();
+    }
+
+    /**
+     * @return average time from submission to completion, in milliseconds
+     */
+    public double getAverageLatencyMillis() {
+        long count = completed.get();
+        return count == 0 ? 0 : (totalLatencyNanos.get() / (double) count) / 1000000D;
+    }
+
+    /**
+     * @return longest time from submission to completion, in milliseconds
+     */
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos.get() / 1000000D;
+    }
+
+    /**
+     * A queued task and when it was submitted
+     */
+    private static final class Job {
+
+        private static final Job POISON = new Job(null);
+
+        private final Runnable task;
+        private final long queuedAt = System.nanoTime();
+
+        private Job(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    /**
+     * Runs the tasks of its queue one after the other
+     */
+    private final class Worker extends Thread {
+
+        private final BlockingQueue<Job> queue;
+
+        private Worker(String name, int capacity) {
+            super(name);
+            this.queue = new LinkedBlockingQueue<>(capacity);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Job job;
+
+                try {
+                    job = queue.take();
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+
+                if (job == Job.POISON) {
+                    return;
+                }
+
+                try {
+                    job.task.run();
+                } catch (Throwable ex) {
+                    log.log(Level.SEVERE, "[SimpleClans] Storage task failed", ex);
+                } finally {
+                    recordLatency(System.nanoTime() - job.queuedAt);
+                }
+            }
+        }
+    }
+}
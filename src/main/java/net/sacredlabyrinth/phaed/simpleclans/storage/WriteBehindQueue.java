@@ -0,0 +1,135 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sacredlabyrinth.phaed.simpleclans.Clan;
+import net.sacredlabyrinth.phaed.simpleclans.ClanPlayer;
+
+/**
+ * Tracks clans and clan players whose rows are out of date.
+ * <p>
+ * Marking an entity that is already pending does nothing, so any number of changes made
+ * between two flushes collapse into a single UPDATE written with the entity's latest state.
+ *
+ * @author phaed
+ */
+public class WriteBehindQueue {
+
+    private final Set<Clan> clans = Collections.newSetFromMap(new IdentityHashMap<Clan, Boolean>());
+    private final Set<ClanPlayer> clanPlayers = Collections.newSetFromMap(new IdentityHashMap<ClanPlayer, Boolean>());
+    private final AtomicLong marked = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+
+    /**
+     * Queue a clan's row to be rewritten
+     *
+     * @param clan
+     */
+    public synchronized void markDirty(Clan clan) {
+        marked.incrementAndGet();
+        clans.add(clan);
+    }
+
+    /**
+     * Queue a clan player's row to be rewritten
+     *
+     * @param cp
+     */
+    public synchronized void markDirty(ClanPlayer cp) {
+        marked.incrementAndGet();
+        clanPlayers.add(cp);
+    }
+
+    /**
+     * Forget a pending clan, used when its row is deleted
+     *
+     * @param clan
+     */
+    public synchronized void discard(Clan clan) {
+        clans.remove(clan);
+    }
+
+    /**
+     * Forget a pending clan player, used when its row is deleted or written directly
+     *
+     * @param cp
+     * @return whether the clan player was pending
+     */
+    public synchronized boolean discard(ClanPlayer cp) {
+        return clanPlayers.remove(cp);
+    }
+
+    /**
+     * Finds the pending clan player with this uuid
+     *
+     * @param playerUniqueId
+     * @return the pending clan player, null if there is none
+     */
+    public synchronized ClanPlayer getPendingClanPlayer(UUID playerUniqueId) {
+        for (ClanPlayer cp : clanPlayers) {
+            if (playerUniqueId.equals(cp.getUniqueId())) {
+                return cp;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Takes every pending clan out of the queue
+     *
+     * @return the clans to write
+     */
+    public synchronized List<Clan> drainClans() {
+        List<Clan> out = new ArrayList<>(clans);
+        clans.clear();
+        written.addAndGet(out.size());
+        return out;
+    }
+
+    /**
+     * Takes every pending clan player out of the queue
+     *
+     * @return the clan players to write
+     */
+    public synchronized List<ClanPlayer> drainClanPlayers() {
+        List<ClanPlayer> out = new ArrayList<>(clanPlayers);
+        clanPlayers.clear();
+        written.addAndGet(out.size());
+        return out;
+    }
+
+    /**
+     * @return clans waiting to be written
+     */
+    public synchronized int getPendingClans() {
+        return clans.size();
+    }
+
+    /**
+     * @return clan players waiting to be written
+     */
+    public synchronized int getPendingClanPlayers() {
+        return clanPlayers.size();
+    }
+
+    /**
+     * @return rows handed out for writing
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return updates that were folded into an already pending write
+     */
+    public synchronized long getCoalescedCount() {
+        return marked.get() - written.get() - clans.size() - clanPlayers.size();
+    }
+}
@@ -0,0 +1,243 @@
+package net.sacredlabyrinth.phaed.simpleclans.uuid;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+
+/**
+ * Remembers which uuid a player name belongs to, and which names have no account, so a name is
+ * looked up at Mojang at most once per time to live. The entries are kept in a file across restarts.
+ * <p>
+ * Lookups go through the batching resolver. Callers on the main thread only ever read the cache.
+ *
+ * @author phaed
+ */
+public class UUIDCache {
+
+    private final File file;
+    private final long ttl;
+    private final long negativeTtl;
+    private final UUIDResolver resolver;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty;
+
+    /**
+     * @param file        where the entries are kept
+     * @param resolver    looks up the names that are not cached
+     * @param ttl         how long a found uuid is trusted, in milliseconds
+     * @param negativeTtl how long a name without an account is remembered, in milliseconds
+     */
+    public UUIDCache(File file, UUIDResolver resolver, long ttl, long negativeTtl) {
+        this.file = file;
+        this.resolver = resolver;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+    }
+
+    /**
+     * @param name
+     * @return whether the name was looked up and the result has not expired
+     */
+    public boolean contains(String name) {
+        Entry entry = entries.get(name.toLowerCase());
+
+        if (entry == null) {
+            return false;
+        }
+
+        if (entry.expiresAt < System.currentTimeMillis()) {
+            entries.remove(name.toLowerCase(), entry);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @param name
+     * @return the uuid of the name, null if it has no account or is not cached
+     */
+    public UUID get(String name) {
+        Entry entry = entries.get(name.toLowerCase());
+        return entry == null || entry.expiresAt < System.currentTimeMillis() ? null : entry.uuid;
+    }
+
+    /**
+     * Remember the uuid of a name
+     *
+     * @param name
+     * @param uuid null if the name has no account
+     */
+    public void put(String name, UUID uuid) {
+        String key = name.toLowerCase();
+        Entry old = entries.get(key);
+
+        if (old != null && uuid != null && uuid.equals(old.uuid) && old.expiresAt - System.currentTimeMillis() > ttl / 2) {
+            return;
+        }
+
+        entries.put(key, new Entry(uuid, System.currentTimeMillis() + (uuid == null ? negativeTtl : ttl)));
+        dirty = true;
+    }
+
+    /**
+     * Looks the name up at Mojang and caches the result, blocks until it is known
+     *
+     * @param name
+     * @return the uuid, null if the name has no account or the lookup failed
+     */
+    public UUID resolve(String name) {
+        if (contains(name)) {
+            return get(name);
+        }
+
+        try {
+            UUID uuid = resolver.resolve(name).get(30, TimeUnit.SECONDS);
+            put(name, uuid);
+            return uuid;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException ex) {
+            // a failed lookup is not cached, the next call tries again
+            SimpleClans.debug("UUID lookup of " + name + " failed: " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * Looks the name up in the background unless it is cached
+     *
+     * @param name
+     */
+    public void resolveAsync(final String name) {
+        if (contains(name)) {
+            return;
+        }
+
+        // the resolver hands out the same future while the name is being looked up
+        final ListenableFuture<UUID> lookup = resolver.resolve(name);
+
+        lookup.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    put(name, lookup.get());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    SimpleClans.debug("UUID lookup of " + name + " failed: " + ex.getCause());
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Reads the entries kept in the file, expired ones are left out
+     */
+    public void load() {
+        if (!file.isFile()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t");
+
+                if (parts.length != 3) {
+                    continue;
+                }
+
+                long expiresAt = Long.parseLong(parts[2]);
+
+                if (expiresAt >= now) {
+                    entries.put(parts[0], new Entry(parts[1].equals("-") ? null : UUID.fromString(parts[1]), expiresAt));
+                }
+            }
+        } catch (IOException | IllegalArgumentException ex) {
+            SimpleClans.getLog().log(Level.WARNING, "[SimpleClans] Could not read the UUID cache", ex);
+        }
+    }
+
+    /**
+     * Writes the entries to the file if any changed since the last save
+     */
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+
+        dirty = false;
+        File temp = new File(file.getPath() + ".tmp");
+        long now = System.currentTimeMillis();
+
+        try {
+            try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    Entry value = entry.getValue();
+
+                    if (value.expiresAt >= now) {
+                        out.write(entry.getKey() + "\t" + (value.uuid == null ? "-" : value.uuid.toString()) + "\t" + value.expiresAt);
+                        out.newLine();
+                    }
+                }
+            }
+
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            dirty = true;
+            SimpleClans.getLog().log(Level.WARNING, "[SimpleClans] Could not write the UUID cache", ex);
+        }
+    }
+
+    /**
+     * @return number of names cached, including expired ones not yet dropped
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * A cached lookup result
+     */
+    private static final class Entry {
+
+        private final UUID uuid;
+        private final long expiresAt;
+
+        private Entry(UUID uuid, long expiresAt) {
+            this.uuid = uuid;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
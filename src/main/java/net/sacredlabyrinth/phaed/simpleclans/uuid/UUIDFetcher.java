@@ -25,14 +25,20 @@ import java.util.concurrent.Callable;
 public class UUIDFetcher implements Callable<Map<String, UUID>> {
 
     private static final double PROFILES_PER_REQUEST = 100;
-    private static final String PROFILE_URL = "https://api.mojang.com/profiles/minecraft";
+    public static final String PROFILE_URL = "https://api.mojang.com/profiles/minecraft";
     private final JSONParser jsonParser = new JSONParser();
     private final List<String> names;
     private final boolean rateLimiting;
+    private final String profileUrl;
 
-    public UUIDFetcher(List<String> names, boolean rateLimiting) {
+    public UUIDFetcher(List<String> names, boolean rateLimiting, String profileUrl) {
         this.names = ImmutableList.copyOf(names);
         this.rateLimiting = rateLimiting;
+        this.profileUrl = profileUrl;
+    }
+
+    public UUIDFetcher(List<String> names, boolean rateLimiting) {
+        this(names, rateLimiting, PROFILE_URL);
     }
 
     public UUIDFetcher(List<String> names) {
@@ -46,8 +52,8 @@ public class UUIDFetcher implements Callable<Map<String, UUID>> {
         stream.close();
     }
 
-    private static HttpURLConnection createConnection() throws Exception {
-        URL url = new URL(PROFILE_URL);
+    private static HttpURLConnection createConnection(String profileUrl) throws Exception {
+        URL url = new URL(profileUrl);
         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
         connection.setRequestMethod("POST");
         connection.setRequestProperty("Content-Type", "application/json");
@@ -91,7 +97,7 @@ public class UUIDFetcher implements Callable<Map<String, UUID>> {
         Map<String, UUID> uuidMap = new HashMap<>();
         int requests = (int) Math.ceil(names.size() / PROFILES_PER_REQUEST);
         for (int i = 0; i < requests; i++) {
-            HttpURLConnection connection = createConnection();
+            HttpURLConnection connection = createConnection(profileUrl);
             String body = JSONArray.toJSONString(names.subList(i * 100, Math.min((i + 1) * 100, names.size())));
             writeBody(connection, body);
             JSONArray array = (JSONArray) jsonParser.parse(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
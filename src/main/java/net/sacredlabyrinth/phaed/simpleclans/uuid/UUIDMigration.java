@@ -4,7 +4,6 @@ import java.util.UUID;
 import net.sacredlabyrinth.phaed.simpleclans.ClanPlayer;
 import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
 import org.bukkit.Bukkit;
-import org.bukkit.OfflinePlayer;
 import org.bukkit.entity.Player;
 
 /**
@@ -26,28 +25,46 @@ public class UUIDMigration {
         }
     }
 
+    /**
+     * Finds the uuid of a player by name. Online players, the uuid cache and the clan players are
+     * tried first. Names found nowhere are looked up at Mojang, on the main thread only in the
+     * background, so a later call can find them in the cache.
+     *
+     * @param playerDisplayName
+     * @return the uuid, null if the name has no account or is still being looked up
+     */
     public static UUID getForcedPlayerUUID(String playerDisplayName) {
         Player OnlinePlayer = SimpleClans.getInstance().getServer().getPlayerExact(playerDisplayName);
-        OfflinePlayer OfflinePlayer = SimpleClans.getInstance().getServer().getOfflinePlayer(playerDisplayName);
+        UUIDCache cache = SimpleClans.getInstance().getUuidCache();
 
         if (OnlinePlayer != null) {
+            cache.put(playerDisplayName, OnlinePlayer.getUniqueId());
             return OnlinePlayer.getUniqueId();
-        } else {
-            for (ClanPlayer cp : SimpleClans.getInstance().getClanManager().getAllClanPlayers()) {
-                if (cp.getName().equalsIgnoreCase(playerDisplayName)) {
-                    return cp.getUniqueId();
-                }
-            }
-            try {
-                return UUIDFetcher.getUUIDOf(playerDisplayName);
-            } catch (Exception ex) {
-                if (OfflinePlayer != null) {
-                    return OfflinePlayer.getUniqueId();
-                } else {
-                    return null;
-                }
-            }
         }
+
+        UUID cached = cache.get(playerDisplayName);
+
+        if (cached != null) {
+            return cached;
+        }
+
+        ClanPlayer known = SimpleClans.getInstance().getClanManager().findClanPlayerByName(playerDisplayName);
+
+        if (known != null) {
+            return known.getUniqueId();
+        }
+
+        // known to have no account
+        if (cache.contains(playerDisplayName)) {
+            return null;
+        }
+
+        if (Bukkit.isPrimaryThread()) {
+            cache.resolveAsync(playerDisplayName);
+            return null;
+        }
+
+        return cache.resolve(playerDisplayName);
     }
 
 }
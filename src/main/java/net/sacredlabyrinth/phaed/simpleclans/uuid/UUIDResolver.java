@@ -0,0 +1,172 @@
+package net.sacredlabyrinth.phaed.simpleclans.uuid;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks names up at the profile endpoint in batches.
+ * <p>
+ * Names asked for within one window are sent together, up to 100 per request, and a name that is
+ * already waiting or being looked up shares the lookup in progress. Requests are sent one at a time
+ * and never faster than the rate limit allows.
+ *
+ * @author phaed
+ */
+public class UUIDResolver {
+
+    private static final int BATCH_SIZE = 100;
+
+    private final String profileUrl;
+    private final long window;
+    private final long interval;
+    private final Map<String, SettableFuture<UUID>> waiting = new LinkedHashMap<>();
+    private final Map<String, SettableFuture<UUID>> inFlight = new HashMap<>();
+    private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor();
+    private boolean scheduled;
+    private long nextRequestAt;
+
+    /**
+     * @param profileUrl        the endpoint taking a list of names, Mojang's unless testing
+     * @param window            how long a name waits for others to share its request, in milliseconds
+     * @param requestsPerMinute most requests sent per minute
+     */
+    public UUIDResolver(String profileUrl, long window, int requestsPerMinute) {
+        this.profileUrl = profileUrl;
+        this.window = Math.max(0, window);
+        this.interval = TimeUnit.MINUTES.toMillis(1) / Math.max(1, requestsPerMinute);
+    }
+
+    /**
+     * Queue a name for the next request
+     *
+     * @param name
+     * @return the future uuid, null if the name has no account, failed if the request failed
+     */
+    public synchronized ListenableFuture<UUID> resolve(String name) {
+        String key = name.toLowerCase();
+        SettableFuture<UUID> future = inFlight.get(key);
+
+        if (future == null) {
+            future = waiting.get(key);
+        }
+
+        if (future != null) {
+            return future;
+        }
+
+        future = SettableFuture.create();
+        waiting.put(key, future);
+
+        if (waiting.size() >= BATCH_SIZE) {
+            schedule(0);
+        } else if (!scheduled) {
+            schedule(window);
+        }
+
+        return future;
+    }
+
+    /**
+     * Stops sending requests, lookups not sent yet fail
+     */
+    public void shutdown() {
+        sender.shutdownNow();
+
+        synchronized (this) {
+            for (SettableFuture<UUID> future : waiting.values()) {
+                future.setException(new IllegalStateException("UUID resolver shut down"));
+            }
+
+            waiting.clear();
+        }
+    }
+
+    /**
+     * @return the endpoint names are looked up at
+     */
+    public String getProfileUrl() {
+        return profileUrl;
+    }
+
+    private void schedule(long delay) {
+        scheduled = true;
+
+        if (sender.isShutdown()) {
+            return;
+        }
+
+        sender.schedule(new Runnable() {
+            @Override
+            public void run() {
+                send();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends one request for up to 100 waiting names, runs on the sender thread only
+     */
+    private void send() {
+        Map<String, SettableFuture<UUID>> batch = new HashMap<>();
+
+        synchronized (this) {
+            scheduled = false;
+
+            for (Iterator<Map.Entry<String, SettableFuture<UUID>>> it = waiting.entrySet().iterator(); it.hasNext() && batch.size() < BATCH_SIZE; ) {
+                Map.Entry<String, SettableFuture<UUID>> entry = it.next();
+                batch.put(entry.getKey(), entry.getValue());
+                inFlight.put(entry.getKey(), entry.getValue());
+                it.remove();
+            }
+
+            if (!waiting.isEmpty()) {
+                schedule(0);
+            }
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        try {
+            long wait = nextRequestAt - System.currentTimeMillis();
+
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+
+            nextRequestAt = System.currentTimeMillis() + interval;
+
+            List<String> names = new ArrayList<>(batch.keySet());
+            Map<String, UUID> found = new HashMap<>();
+
+            // the answer carries each name in the case the account uses
+            for (Map.Entry<String, UUID> entry : new UUIDFetcher(names, false, profileUrl).call().entrySet()) {
+                found.put(entry.getKey().toLowerCase(), entry.getValue());
+            }
+
+            for (Map.Entry<String, SettableFuture<UUID>> entry : batch.entrySet()) {
+                entry.getValue().set(found.get(entry.getKey()));
+            }
+        } catch (Exception ex) {
+            for (SettableFuture<UUID> future : batch.values()) {
+                future.setException(ex);
+            }
+        } finally {
+            synchronized (this) {
+                inFlight.keySet().removeAll(batch.keySet());
+            }
+        }
+    }
+}